@@ -0,0 +1,17 @@
+package com.accton.common.store;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of PersistentStoreDriver.
+ *
+ * The returned futures complete exceptionally with the IllegalArgumentException or IOException
+ * the blocking call would have thrown.
+ */
+public interface AsyncPersistentStoreDriver {
+    CompletableFuture<DocumentMeta> saveAsync(String key, byte[] value, Map<String, Object> meta);
+    CompletableFuture<DocumentMeta> saveAsync(String key, byte[] value, DocumentMeta meta);
+
+    CompletableFuture<Map.Entry<byte[], DocumentMeta>> loadAsync(String key);
+}
@@ -0,0 +1,201 @@
+package com.accton.common.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary delta of a document against a base version, a list of COPY (offset and length in the
+ * base) and INSERT (literal bytes) instructions. Applying a delta reads the base once, so a
+ * version stored as a delta of a keyframe costs two reads to reconstruct.
+ *
+ * Layout: 'D', version, base length, target length, then instructions, lengths as varints.
+ */
+final class DeltaCodec {
+    private static final byte MAGIC = 'D';
+    private static final byte VERSION = 1;
+
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+
+    // the shortest match worth a COPY, the base is indexed in blocks of this size
+    static final int BLOCK_BYTES = 16;
+
+    private DeltaCodec() {
+    }
+
+    static byte[] encode(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, target.length / 8));
+
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        // offset + 1 of a block of base by the hash of its content, 0 if none
+        int blocks = base.length / BLOCK_BYTES;
+        int tableSize = Integer.highestOneBit(Math.max(16, blocks * 2 - 1)) << 1;
+        int mask = tableSize - 1;
+        int[] table = new int[tableSize];
+
+        for (int p = 0; p + BLOCK_BYTES <= base.length; p += BLOCK_BYTES) {
+            table[hash(base, p) & mask] = p + 1;
+        }
+
+        int literal = 0;
+        int i = 0;
+
+        while (i + BLOCK_BYTES <= target.length) {
+            int candidate = table[hash(target, i) & mask] - 1;
+
+            if (candidate < 0 || !regionEquals(base, candidate, target, i, BLOCK_BYTES)) {
+                ++i;
+                continue;
+            }
+
+            // grow the match both ways, backwards no further than the pending literal
+            int start = i;
+            int baseStart = candidate;
+            while (start > literal && baseStart > 0 && target[start - 1] == base[baseStart - 1]) {
+                --start;
+                --baseStart;
+            }
+
+            int end = i + BLOCK_BYTES;
+            int baseEnd = candidate + BLOCK_BYTES;
+            while (end < target.length && baseEnd < base.length && target[end] == base[baseEnd]) {
+                ++end;
+                ++baseEnd;
+            }
+
+            if (start > literal) {
+                writeInsert(out, target, literal, start - literal);
+            }
+
+            out.write(COPY);
+            writeVarint(out, baseStart);
+            writeVarint(out, end - start);
+
+            i = end;
+            literal = end;
+        }
+
+        if (literal < target.length) {
+            writeInsert(out, target, literal, target.length - literal);
+        }
+
+        return out.toByteArray();
+    }
+
+    static byte[] decode(byte[] base, byte[] delta) throws IOException {
+        int[] position = {0};
+
+        if (delta.length < 2 || delta[0] != MAGIC || delta[1] != VERSION) {
+            throw new IOException("invalid delta: unknown format");
+        }
+        position[0] = 2;
+
+        int baseLength = readVarint(delta, position);
+        if (baseLength != base.length) {
+            throw new IOException("invalid delta: base length " + base.length + ", expected " + baseLength);
+        }
+
+        int targetLength = readVarint(delta, position);
+        if (targetLength < 0) {
+            throw new IOException("invalid delta: target length " + targetLength);
+        }
+
+        byte[] target = new byte[targetLength];
+        int written = 0;
+
+        while (position[0] < delta.length) {
+            int op = delta[position[0]++];
+
+            if (op == COPY) {
+                int offset = readVarint(delta, position);
+                int length = readVarint(delta, position);
+
+                if (offset < 0 || length < 0 || offset > base.length - length || written + length > targetLength) {
+                    throw new IOException("invalid delta: copy out of range");
+                }
+
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, position);
+
+                if (length < 0 || position[0] > delta.length - length || written + length > targetLength) {
+                    throw new IOException("invalid delta: insert out of range");
+                }
+
+                System.arraycopy(delta, position[0], target, written, length);
+                position[0] += length;
+                written += length;
+            } else {
+                throw new IOException("invalid delta: unknown instruction " + op);
+            }
+        }
+
+        if (written != targetLength) {
+            throw new IOException("invalid delta: " + written + " bytes, expected " + targetLength);
+        }
+
+        return target;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK_BYTES; ++i) {
+            h = h * 31 + bytes[i];
+        }
+
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        if (aOffset + length > a.length || bOffset + length > b.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] bytes, int offset, int length) {
+        out.write(INSERT);
+        writeVarint(out, length);
+        out.write(bytes, offset, length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw new IOException("invalid delta: truncated");
+            }
+
+            byte b = bytes[position[0]++];
+            value |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("invalid delta: varint too long");
+    }
+}
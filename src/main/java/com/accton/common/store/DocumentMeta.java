@@ -1,21 +1,75 @@
 package com.accton.common.store;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 //import org.json.JSONException;
 //import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Meta data of a document.
+ *
+ * The core fields (id, key, modified, size and fileUrl) are kept as typed fields, every other
+ * field lives in an ObjectNode. Both are written out by toJsonString() as a single JSON object.
+ */
 public class DocumentMeta {
+    public static final String DEFAULT_MODIFIED_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+    // returned by getModifiedTime() when modified can't be parsed
+    public static final long INVALID_TIME = Long.MIN_VALUE;
+
+    // hint to the driver: store the payload once per distinct content, see contentHash
+    public static final String CONTENT_ADDRESSED = "contentAddressed";
+    // hex SHA-256 of the payload, set by the driver on content addressed documents
+    public static final String CONTENT_HASH = "contentHash";
+    // hint to the driver: encode the payload with its codec, e.g. compress it
+    public static final String COMPRESS = "compress";
+    // id of the codec the payload is stored with, absent if stored as is. size stays the size of
+    // the document, storedSize is the size of the encoded payload
+    public static final String CODEC = "codec";
+    public static final String STORED_SIZE = "storedSize";
+
+    // ObjectMapper is thread-safe once configured, it is shared by every instance
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // DateTimeFormatter is immutable and thread-safe, one instance per pattern is shared
+    private static final ConcurrentMap<String, DateTimeFormatter> FORMATTERS = new ConcurrentHashMap<>();
+
 //    private JSONObject object;
     private ObjectNode object;
 
+    private String id;
+    private String key;
+    private String modified;
+    private Integer size;
+    private String fileUrl;
+
+    // epoch milliseconds of modified, parsed on first use; one volatile field, so a reader never sees
+    // a parsed flag without its time
+    private static final long UNPARSED_TIME = Long.MAX_VALUE;
+    private volatile long modifiedTime = UNPARSED_TIME;
+
 //    public static DocumentMeta create(Map<String, String> attrs) {
 //        DocumentMeta docMeta = new DocumentMeta("", "", -1, "");
 //
@@ -45,19 +99,31 @@ public class DocumentMeta {
 //        }
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode actualObj = mapper.readTree(jsonString);
-            if (!actualObj.isObject()) {
-                return null;
-            }
+            return create(MAPPER.readTree(jsonString));
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-            return new DocumentMeta((ObjectNode) actualObj);
+    public static DocumentMeta create(byte[] json) {
+        try {
+            return create(MAPPER.readTree(json));
         } catch (IOException e) {
             return null;
         }
+    }
+
+    private static DocumentMeta create(JsonNode actualObj) {
+        if (actualObj == null || !actualObj.isObject()) {
+            return null;
+        }
 
+        return new DocumentMeta((ObjectNode) actualObj);
     }
 
+    /**
+     * The core fields are moved out of objectNode, it shouldn't be used by the caller any more.
+     */
     public static DocumentMeta create(ObjectNode objectNode) {
         return new DocumentMeta(objectNode);
     }
@@ -78,6 +144,26 @@ public class DocumentMeta {
     private DocumentMeta(ObjectNode objectNode) {
 //        object = jsonObject;
         object = objectNode;
+
+        for (String coreKey : new String[] {"id", "key", "modified", "size", "fileUrl"}) {
+            JsonNode value = object.get(coreKey);
+
+            if (value != null && putCore(coreKey, value)) {
+                object.remove(coreKey);
+            }
+        }
+    }
+
+    private DocumentMeta(DocumentMeta other) {
+        object = other.object.deepCopy();
+
+        id = other.id;
+        key = other.key;
+        modified = other.modified;
+        size = other.size;
+        fileUrl = other.fileUrl;
+
+        modifiedTime = other.modifiedTime;
     }
 
     public DocumentMeta(String id, String modified, Integer size, String fileUrl) {
@@ -86,29 +172,29 @@ public class DocumentMeta {
 
         put("id", id);
         put("modified", modified);
-        put("modifiedFormat", "yyyy-MM-dd HH:mm:ss.SSS");
+        put("modifiedFormat", DEFAULT_MODIFIED_FORMAT);
         put("size", size);
         put("fileUrl", fileUrl);
     }
 
     public String getId() {
 //        return object.optString("id", null);
-        return getString("id");
+        return id != null ? id : getString("id");
     }
 
     public String getKey() {
 //        return object.optString("key", null);
-        return getString("key");
+        return key != null ? key : getString("key");
     }
 
     public Integer getSize() {
 //        return object.optInt("size", -1);
-        return getInt("size", -1);
+        return size != null ? size : getInt("size", -1);
     }
 
     public String getModified() {
 //        return object.optString("modified", null);
-        return getString("modified");
+        return modified != null ? modified : getString("modified");
     }
 
     public String getModifiedFormat() {
@@ -116,6 +202,20 @@ public class DocumentMeta {
         return getString("modifiedFormat");
     }
 
+    /**
+     * @return modified in milliseconds since 1970, or INVALID_TIME
+     */
+    public long getModifiedTime() {
+        long time = modifiedTime;
+        if (time == UNPARSED_TIME) {
+            String format = getModifiedFormat();
+            time = parseTime(getModified(), format != null ? format : DEFAULT_MODIFIED_FORMAT);
+            modifiedTime = time;
+        }
+
+        return time;
+    }
+
     public String getModifiedBy() {
 //        return object.optString("modifiedBy", null);
         return getString("modifiedBy");
@@ -128,7 +228,7 @@ public class DocumentMeta {
 
     public String getFileUrl() {
 //        return object.optString("fileUrl", null);
-        return getString("fileUrl");
+        return fileUrl != null ? fileUrl : getString("fileUrl");
     }
 
     public DocumentMeta put(String key, Object value) {
@@ -138,19 +238,147 @@ public class DocumentMeta {
 //            ;
 //        }
 
-        ObjectMapper mapper = new ObjectMapper();
+        if (key.equals("modified") || key.equals("modifiedFormat")) {
+            modifiedTime = UNPARSED_TIME;
+        }
+
+        if (putCore(key, value)) {
+            object.remove(key);
+            return this;
+        }
+
+        clearCore(key);
 
-        JsonNode jsonNode = mapper.convertValue(value, JsonNode.class);
-        object.put(key, jsonNode);
+        if (value == null) {
+            object.putNull(key);
+        } else if (value instanceof String) {
+            object.put(key, (String) value);
+        } else if (value instanceof Integer) {
+            object.put(key, (Integer) value);
+        } else if (value instanceof Long) {
+            object.put(key, (Long) value);
+        } else if (value instanceof Boolean) {
+            object.put(key, (Boolean) value);
+        } else if (value instanceof Double) {
+            object.put(key, (Double) value);
+        } else if (value instanceof JsonNode) {
+            object.set(key, (JsonNode) value);
+        } else {
+            object.set(key, MAPPER.valueToTree(value));
+        }
 
         return this;
     }
 
+    public DocumentMeta remove(String key) {
+        if (key.equals("modified") || key.equals("modifiedFormat")) {
+            modifiedTime = UNPARSED_TIME;
+        }
+
+        clearCore(key);
+        object.remove(key);
+
+        return this;
+    }
+
+    /**
+     * Keeps value in the typed field if key is a core field and value has the expected type.
+     */
+    private boolean putCore(String key, Object value) {
+        if (value instanceof TextNode) {
+            value = ((TextNode) value).textValue();
+        } else if (value instanceof JsonNode && ((JsonNode) value).isIntegralNumber()
+                && ((JsonNode) value).canConvertToInt()) {
+            value = ((JsonNode) value).intValue();
+        } else if (value instanceof Long && Integer.MIN_VALUE <= (Long) value && (Long) value <= Integer.MAX_VALUE) {
+            value = ((Long) value).intValue();
+        }
+
+        switch (key) {
+            case "id":
+                if (value instanceof String) {
+                    id = (String) value;
+                    return true;
+                }
+                break;
+            case "key":
+                if (value instanceof String) {
+                    this.key = (String) value;
+                    return true;
+                }
+                break;
+            case "modified":
+                if (value instanceof String) {
+                    modified = (String) value;
+                    return true;
+                }
+                break;
+            case "size":
+                if (value instanceof Integer) {
+                    size = (Integer) value;
+                    return true;
+                }
+                break;
+            case "fileUrl":
+                if (value instanceof String) {
+                    fileUrl = (String) value;
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+
+        return false;
+    }
+
+    private void clearCore(String key) {
+        switch (key) {
+            case "id":
+                id = null;
+                break;
+            case "key":
+                this.key = null;
+                break;
+            case "modified":
+                modified = null;
+                break;
+            case "size":
+                size = null;
+                break;
+            case "fileUrl":
+                fileUrl = null;
+                break;
+            default:
+                break;
+        }
+    }
+
+    public DocumentMeta copy() {
+        return new DocumentMeta(this);
+    }
+
     public String[] keys() {
         //return object.keySet().toArray(new String[0]);
 
         ArrayList<String> arrayList = new ArrayList<>();
 
+        if (id != null) {
+            arrayList.add("id");
+        }
+        if (key != null) {
+            arrayList.add("key");
+        }
+        if (modified != null) {
+            arrayList.add("modified");
+        }
+        if (size != null) {
+            arrayList.add("size");
+        }
+        if (fileUrl != null) {
+            arrayList.add("fileUrl");
+        }
+
         for (Iterator<String> iterator = object.fieldNames(); iterator.hasNext();) {
             String key = iterator.next();
             arrayList.add(key);
@@ -161,6 +389,40 @@ public class DocumentMeta {
 
     public Object get(String key) {
 //        return object.opt(key);
+        return getNode(key);
+    }
+
+    private JsonNode getNode(String key) {
+        switch (key) {
+            case "id":
+                if (id != null) {
+                    return TextNode.valueOf(id);
+                }
+                break;
+            case "key":
+                if (this.key != null) {
+                    return TextNode.valueOf(this.key);
+                }
+                break;
+            case "modified":
+                if (modified != null) {
+                    return TextNode.valueOf(modified);
+                }
+                break;
+            case "size":
+                if (size != null) {
+                    return IntNode.valueOf(size);
+                }
+                break;
+            case "fileUrl":
+                if (fileUrl != null) {
+                    return TextNode.valueOf(fileUrl);
+                }
+                break;
+            default:
+                break;
+        }
+
         return object.get(key);
     }
 
@@ -179,7 +441,7 @@ public class DocumentMeta {
 
     public String getString(String key, String defaultValue) {
         //return object.optString(key, defaultValue);
-        JsonNode value = object.get(key);
+        JsonNode value = getNode(key);
 
         if (value == null) {
             return defaultValue;
@@ -193,7 +455,7 @@ public class DocumentMeta {
     }
 
     public Integer getInt(String key, Integer defaultValue) {
-        JsonNode value = object.get(key);
+        JsonNode value = getNode(key);
 
         if (value == null) {
             return defaultValue;
@@ -202,8 +464,112 @@ public class DocumentMeta {
         return value.asInt();
     }
 
+    public Boolean getBoolean(String key, Boolean defaultValue) {
+        JsonNode value = getNode(key);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return value.asBoolean();
+    }
+
     public String toJsonString() {
         //return object.toString(4);
-        return object.toString();
+        StringWriter writer = new StringWriter();
+
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(writer)) {
+            write(generator);
+        } catch (IOException e) {
+            // StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+
+        return writer.toString();
+    }
+
+    public byte[] toJsonBytes() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(output, JsonEncoding.UTF8)) {
+            write(generator);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+
+        return output.toByteArray();
+    }
+
+    private void write(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+
+        if (id != null) {
+            generator.writeStringField("id", id);
+        }
+        if (key != null) {
+            generator.writeStringField("key", key);
+        }
+        if (modified != null) {
+            generator.writeStringField("modified", modified);
+        }
+        if (size != null) {
+            generator.writeNumberField("size", size);
+        }
+        if (fileUrl != null) {
+            generator.writeStringField("fileUrl", fileUrl);
+        }
+
+        for (Iterator<Map.Entry<String, JsonNode>> iterator = object.fields(); iterator.hasNext();) {
+            Map.Entry<String, JsonNode> field = iterator.next();
+
+            generator.writeFieldName(field.getKey());
+            MAPPER.writeTree(generator, field.getValue());
+        }
+
+        generator.writeEndObject();
+    }
+
+    static DateTimeFormatter getFormatter(String pattern) {
+        DateTimeFormatter formatter = FORMATTERS.get(pattern);
+
+        if (formatter == null) {
+            formatter = DateTimeFormatter.ofPattern(pattern);
+            FORMATTERS.putIfAbsent(pattern, formatter);
+        }
+
+        return formatter;
+    }
+
+    /**
+     * Parses a local date time string, as written by formatTime, into milliseconds since 1970.
+     *
+     * @return milliseconds since 1970, or INVALID_TIME if text doesn't match pattern
+     */
+    public static long parseTime(String text, String pattern) {
+        if (text == null) {
+            return INVALID_TIME;
+        }
+
+        try {
+            return LocalDateTime.parse(text, getFormatter(pattern))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            // patterns without a time of day, or text only accepted by the lenient SimpleDateFormat
+        }
+
+        try {
+            return new SimpleDateFormat(pattern).parse(text).getTime();
+        } catch (IllegalArgumentException | ParseException e) {
+            return INVALID_TIME;
+        }
+    }
+
+    /**
+     * Formats milliseconds since 1970 as a local date time string.
+     */
+    public static String formatTime(long epochMilli, String pattern) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault())
+                .format(getFormatter(pattern));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package com.accton.common.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of versions returned by PersistentStoreManager.queryVersions, newest first.
+ *
+ * The cursor of the next page points after the last version of this one, so versions saved in
+ * the meantime don't shift the pages. It's opaque, pass it back as is.
+ */
+public final class HistoryPage {
+    private final List<DocumentMeta> versions;
+    private final String nextCursor;
+
+    HistoryPage(List<DocumentMeta> versions, String nextCursor) {
+        this.versions = Collections.unmodifiableList(versions);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the versions of the page, newest first
+     */
+    public List<DocumentMeta> getVersions() {
+        return this.versions;
+    }
+
+    /**
+     * @return the cursor of the next, older, page, or null if this is the last one
+     */
+    public String getNextCursor() {
+        return this.nextCursor;
+    }
+
+    public boolean hasNext() {
+        return this.nextCursor != null;
+    }
+
+    /**
+     * @return a cursor pointing before the version modified at modifiedTime with id
+     */
+    static String encodeCursor(long modifiedTime, String id) {
+        String cursor = modifiedTime + "/" + (id != null ? id : "");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the modified time of the cursor, its id is returned by decodeCursorId
+     */
+    static long decodeCursorTime(String cursor) throws IllegalArgumentException {
+        String decoded = decode(cursor);
+
+        try {
+            return Long.parseLong(decoded.substring(0, decoded.indexOf('/')));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("invalid cursor " + cursor, e);
+        }
+    }
+
+    static String decodeCursorId(String cursor) throws IllegalArgumentException {
+        String decoded = decode(cursor);
+        int separator = decoded.indexOf('/');
+
+        if (separator < 0) {
+            throw new IllegalArgumentException("invalid cursor " + cursor);
+        }
+
+        return decoded.substring(separator + 1);
+    }
+
+    private static String decode(String cursor) throws IllegalArgumentException {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid cursor " + cursor, e);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.accton.common.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A record of the version history. Records read from a snapshot keep their meta as JSON, in the
+ * snapshot buffer, until it's first asked for.
+ */
+final class HistoryRecord {
+    final String id;
+    final String key;
+    final long modifiedTime;
+
+    private volatile DocumentMeta meta;
+    private ByteBuffer json;
+
+    HistoryRecord(DocumentMeta meta) {
+        this.id = meta.getId();
+        this.key = meta.getKey();
+        this.modifiedTime = meta.getModifiedTime();
+        this.meta = meta;
+    }
+
+    HistoryRecord(String id, String key, long modifiedTime, ByteBuffer json) {
+        this.id = id;
+        this.key = key;
+        this.modifiedTime = modifiedTime;
+        this.json = json;
+    }
+
+    DocumentMeta getMeta() {
+        DocumentMeta meta = this.meta;
+        if (meta != null) {
+            return meta;
+        }
+
+        synchronized (this) {
+            if (this.meta == null) {
+                byte[] bytes = new byte[this.json.remaining()];
+                this.json.duplicate().get(bytes);
+
+                DocumentMeta parsed = DocumentMeta.create(bytes);
+                if (parsed == null) {
+                    // a damaged record, keep what the snapshot index knows
+                    parsed = new DocumentMeta(this.id, DocumentMeta.formatTime(this.modifiedTime,
+                            DocumentMeta.DEFAULT_MODIFIED_FORMAT), -1, null);
+                    parsed.put("key", this.key);
+                }
+
+                this.meta = parsed;
+                this.json = null;
+            }
+
+            return this.meta;
+        }
+    }
+
+    /**
+     * @return the meta as JSON, without parsing it if it's still in the snapshot
+     */
+    synchronized ByteBuffer toJson() {
+        if (this.json != null) {
+            return this.json.duplicate();
+        }
+
+        return ByteBuffer.wrap(this.meta.toJsonBytes());
+    }
+}
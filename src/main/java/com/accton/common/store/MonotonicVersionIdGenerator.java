@@ -0,0 +1,47 @@
+package com.accton.common.store;
+
+/**
+ * The default VersionIdGenerator: the time of the version as yyyyMMddHHmmssSSS, as ids have always
+ * been, plus a sequence number for the versions after the first of a millisecond, e.g.
+ * 20170601001000000, 20170601001000000-0001, 20170601001000000-0002, 20170601001000001.
+ *
+ * Ids never go back: if the clock does, or a millisecond runs out of sequence numbers, the ids
+ * go on from the last time used until the clock catches up.
+ */
+public class MonotonicVersionIdGenerator implements VersionIdGenerator {
+    static final int MAX_SEQUENCE = 9999;
+
+    private long lastTime = Long.MIN_VALUE;
+    private int sequence;
+    // lastTime formatted, shared by the ids of the millisecond
+    private String lastTimeId;
+
+    @Override
+    public synchronized String nextId(long time) {
+        if (this.lastTime < time) {
+            this.lastTime = time;
+            this.sequence = 0;
+        } else if (this.sequence < MAX_SEQUENCE) {
+            ++this.sequence;
+        } else {
+            // borrow the next millisecond
+            ++this.lastTime;
+            this.sequence = 0;
+        }
+
+        if (this.sequence == 0) {
+            this.lastTimeId = DocumentMeta.formatTime(this.lastTime, PersistentStoreManager.VERSION_ID_FORMAT);
+            return this.lastTimeId;
+        }
+
+        // -0001 to -9999
+        char[] id = new char[this.lastTimeId.length() + 5];
+        this.lastTimeId.getChars(0, this.lastTimeId.length(), id, 0);
+        id[id.length - 5] = '-';
+        for (int i = id.length - 1, n = this.sequence; i > id.length - 5; --i, n /= 10) {
+            id[i] = (char) ('0' + n % 10);
+        }
+
+        return new String(id);
+    }
+}
@@ -0,0 +1,19 @@
+package com.accton.common.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding of stored payloads, e.g. compression. The id is recorded in the meta of each encoded
+ * document, so it must not change once documents are stored with it.
+ */
+public interface PayloadCodec {
+    String getId();
+
+    // the returned stream writes value encoded to out, closing it closes out
+    OutputStream encode(OutputStream out) throws IOException;
+
+    // the returned stream reads the decoded value of in, closing it closes in
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -1,14 +1,142 @@
 package com.accton.common.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public interface PersistentStoreDriver {
     DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException;
     DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException;
 
+    /**
+     * Saves the content read from value until its end. value is not closed.
+     * The default reads the whole content first, drivers should override this to stream it.
+     */
+    default DocumentMeta save(String key, ReadableByteChannel value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream inputStream = Channels.newInputStream(value);
+
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1) {
+            content.write(buffer, 0, n);
+        }
+
+        return save(key, content.toByteArray(), meta);
+    }
+
+    default DocumentMeta save(String key, InputStream value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        return save(key, Channels.newChannel(value), meta);
+    }
+
+    // append value to the end of the document, the document is created if not exist
+    default DocumentMeta append(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return append(key, value, DocumentMeta.create(meta));
+    }
+
+    /**
+     * Appends value to the end of the document, which is created if it doesn't exist.
+     * The default loads the document and saves it again, drivers should override this to append in place.
+     */
+    default DocumentMeta append(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        byte[] previous;
+        try {
+            previous = load(key).getKey();
+        } catch (NoSuchFileException e) {
+            previous = null;
+        }
+
+        if (previous == null || previous.length == 0) {
+            return save(key, value, meta);
+        }
+
+        byte[] content = new byte[previous.length + value.length];
+        System.arraycopy(previous, 0, content, 0, previous.length);
+        System.arraycopy(value, 0, content, previous.length, value.length);
+
+        return save(key, content, meta);
+    }
+
     // TODO: change the data type of return value
     Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException;
 
-    // TODO: add delete function
+    /**
+     * Loads the value as a read-only buffer. Drivers can override this to avoid copying the value,
+     * e.g. by mapping the file.
+     */
+    default Map.Entry<ByteBuffer, DocumentMeta> loadBuffer(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> result = load(key);
+        ByteBuffer value = (result.getKey() != null) ? ByteBuffer.wrap(result.getKey()).asReadOnlyBuffer() : null;
+
+        return new AbstractMap.SimpleEntry<>(value, result.getValue());
+    }
+
+    /**
+     * Loads the value as a channel, which the caller must close.
+     * The default reads the whole value first, drivers should override this to stream it.
+     */
+    default Map.Entry<ReadableByteChannel, DocumentMeta> loadChannel(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> result = load(key);
+        ReadableByteChannel value = (result.getKey() != null)
+                ? Channels.newChannel(new ByteArrayInputStream(result.getKey())) : null;
+
+        return new AbstractMap.SimpleEntry<>(value, result.getValue());
+    }
+
+    /**
+     * Saves every entry, key to (value, meta), in iteration order.
+     * Drivers can override this to share work between the entries, e.g. group commit.
+     *
+     * @return the meta of each key
+     */
+    default Map<String, DocumentMeta> saveAll(Map<String, Map.Entry<byte[], DocumentMeta>> entries)
+            throws IllegalArgumentException, IOException {
+        Map<String, DocumentMeta> result = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+            result.put(entry.getKey(), save(entry.getKey(), entry.getValue().getKey(), entry.getValue().getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the (value, meta) of each key, in iteration order of keys
+     */
+    default Map<String, Map.Entry<byte[], DocumentMeta>> loadAll(Collection<String> keys)
+            throws IllegalArgumentException, IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> result = new LinkedHashMap<>();
+
+        for (String key : keys) {
+            result.put(key, load(key));
+        }
+
+        return result;
+    }
+
+    /**
+     * Deletes key, its meta and its payload. A payload shared with other documents is kept until
+     * collectGarbage finds it unused.
+     *
+     * @return false if key didn't exist
+     */
+    default boolean delete(String key) throws IllegalArgumentException, IOException {
+        throw new IOException("delete is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Frees the storage no document refers to anymore, e.g. shared payloads of deleted documents.
+     * It may take long, callers run it in the background. The default has nothing to free.
+     */
+    default void collectGarbage() throws IOException {
+    }
 }
@@ -0,0 +1,166 @@
+package com.accton.common.store;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the I/O done off the caller's thread.
+ */
+public final class PersistentStoreExecutors {
+    static final int DEFAULT_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final long HAND_OFF_RETRY_MILLI_SECONDS = 1000;
+    static final int MAX_HAND_OFF_ATTEMPTS = 3;
+
+    private static volatile ExecutorService defaultExecutor;
+    private static volatile ScheduledExecutorService scheduler;
+
+    private PersistentStoreExecutors() {
+    }
+
+    /**
+     * Creates an executor with a fixed number of daemon threads and a bounded queue.
+     * When the queue is full the submitting thread runs the task itself, which throttles producers
+     * instead of dropping work or growing memory without limit.
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("invalid executor size (" + threads + ", " + queueCapacity + ")");
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory(name),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * @return the executor shared by every PersistentStoreManager created without one
+     */
+    public static ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (PersistentStoreExecutors.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = newBoundedExecutor("persistent-store-io", DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+                }
+            }
+        }
+
+        return defaultExecutor;
+    }
+
+    /**
+     * @return the single daemon thread running the delayed tasks of every manager. Tasks hand their
+     * I/O to an executor, they only do it themselves if the executor keeps refusing it.
+     */
+    static ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            synchronized (PersistentStoreExecutors.class) {
+                if (scheduler == null) {
+                    scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("persistent-store-timer"));
+                }
+            }
+        }
+
+        return scheduler;
+    }
+
+    /**
+     * Runs task on executor, called by a task of the scheduler. The task is refused, not run, if
+     * the executor rejects it, or would run it on the submitting thread as newBoundedExecutor does
+     * when full, so the scheduler never does the I/O itself.
+     *
+     * @return false if task was refused
+     */
+    static boolean tryHandOff(Executor executor, Runnable task) {
+        Thread submitter = Thread.currentThread();
+        AtomicBoolean refused = new AtomicBoolean();
+
+        try {
+            executor.execute(() -> {
+                if (Thread.currentThread() == submitter) {
+                    refused.set(true);
+                } else {
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+
+        return !refused.get();
+    }
+
+    /**
+     * Same as tryHandOff, tried again on the scheduler every HAND_OFF_RETRY_MILLI_SECONDS. After
+     * MAX_HAND_OFF_ATTEMPTS refusals the scheduler runs task itself, an executor running every task
+     * on the submitting thread would refuse it forever.
+     */
+    static void handOff(Executor executor, Runnable task) {
+        handOff(executor, task, 1);
+    }
+
+    private static void handOff(Executor executor, Runnable task, int attempt) {
+        if (tryHandOff(executor, task)) {
+            return;
+        }
+
+        if (MAX_HAND_OFF_ATTEMPTS <= attempt) {
+            task.run();
+            return;
+        }
+
+        getScheduler().schedule(() -> handOff(executor, task, attempt + 1), HAND_OFF_RETRY_MILLI_SECONDS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a periodic task of the scheduler handing task to executor by tryHandOff. A round the
+     * executor refuses is skipped, after MAX_HAND_OFF_ATTEMPTS refused in a row the scheduler runs
+     * task itself, as handOff does.
+     */
+    static Runnable handOffPeriodically(Executor executor, Runnable task) {
+        AtomicInteger refused = new AtomicInteger();
+
+        return () -> {
+            if (tryHandOff(executor, task)) {
+                refused.set(0);
+            } else if (MAX_HAND_OFF_ATTEMPTS <= refused.incrementAndGet()) {
+                refused.set(0);
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // TODO: log, thrown out of a periodic task it would cancel the next rounds
+                }
+            }
+        };
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.name + "-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -4,20 +4,38 @@ package com.accton.common.store;
 //import org.json.JSONArray;
 //import org.json.JSONException;
 
+import com.accton.common.store.impl.ExecutorAsyncPersistentStoreDriver;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 //import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * sql:     database -- table      -- row -- column
@@ -29,7 +47,9 @@ import java.util.*;
  *         +-- <packageName>                <--     database
  *             +-- current                  <--     collection
  *                  +-- current.json        <--     document, `current` is document ID
- *                  +-- versionHistory.json <--     document
+ *             +-- versionHistorySnapshot.bin   <--     history checkpoint, see VersionHistoryCache.toSnapshot
+ *             +-- versionHistoryCache.json     <--     history checkpoint of older releases, read if there is no snapshot
+ *             +-- versionHistoryJournal.jsonl  <--     history records appended since the checkpoint
  *             +-- backup                   <--     collection
  *                 +-- <versionId>.json
  *                 +-- <versionId>.json
@@ -45,9 +65,24 @@ import java.util.*;
  * backup collection
  *    versionId:    string          (milliseconds since 1970)
  *
+ * concurrency:
+ *   PersistentStoreManager   writes of a package (save, restore, saveAll) hold the lock of its current
+ *                            document, a stripe of PersistentStoreManager.LOCKS, so packages are
+ *                            written in parallel and writes of one package one after another.
+ *                            currentDoc is volatile, reads don't lock
+ *   BackupService            backups of a key hold its stripe of BackupService.KEY_LOCKS, the
+ *                            in-memory history is guarded by a read-write lock, held only while
+ *                            it's read or updated, and the history files by the journal lock.
+ *                            The history is read on first use once dropped by unload. Saves held
+ *                            back by coalescing are guarded by the lock of their key and flushed
+ *                            on the executor of the manager
+ *   lock order               a stripe of LOCKS before any of KEY_LOCKS. Many stripes of either are
+ *                            taken at once, in the order of StripedLock.getAll
+ *   VersionHistoryCache      not thread-safe, guarded by the history lock of its BackupService
  */
 
 
+// not thread-safe, see concurrency above
 class VersionHistoryCache {
     /**
      * version history format:
@@ -61,382 +96,2349 @@ class VersionHistoryCache {
      *   modifiedBy:    string
      *         size:    number
      *  description:    string
+     *
+     * snapshot format, big endian, records oldest first:
+     *   'H' 'S' <version>
+     *   <key count: int> then per key:  <length: short> <key: utf-8>
+     *   <record count: int> then per record:
+     *     <modified time: long> <key index: int, -1 if none> <id length: short> <id: utf-8>
+     *     <meta length: int> <meta: JSON>
      */
-    private ArrayList<DocumentMeta> versionHistory;
+    private static final byte SNAPSHOT_MAGIC_0 = 'H';
+    private static final byte SNAPSHOT_MAGIC_1 = 'S';
+    private static final byte SNAPSHOT_VERSION = 1;
+
+    private static final Comparator<HistoryRecord> OLDEST_FIRST = new Comparator<HistoryRecord>() {
+        @Override
+        public int compare(HistoryRecord r1, HistoryRecord r2) {
+            return Long.compare(r1.modifiedTime, r2.modifiedTime);
+        }
+    };
+
+    private ArrayList<HistoryRecord> versionHistory;   // oldest first, new records are appended
+
+    private Map<String, HistoryRecord> idIndex;
+    private Map<String, ArrayList<HistoryRecord>> keyIndex;
 
     public VersionHistoryCache() {
-        this.versionHistory = new ArrayList<DocumentMeta>();
+        this.versionHistory = new ArrayList<HistoryRecord>();
+        this.idIndex = new HashMap<>();
+        this.keyIndex = new HashMap<>();
     }
 
+    /**
+     * Adds record as the newest version.
+     */
     public boolean add(DocumentMeta record) {
-        this.versionHistory.add(0, record);
+        return add(new HistoryRecord(record));
+    }
+
+    boolean add(HistoryRecord record) {
+        this.versionHistory.add(record);
+        index(record);
         return true;
     }
 
-    public DocumentMeta find(String docId) {
-        for (DocumentMeta docMeta : this.versionHistory) {
-            if (docMeta.getId().equals(docId)) {
-                return docMeta;
-            }
-        }
+    /**
+     * Reorders the history, oldest first, and rebuilds the indexes. Records keep their order when
+     * they have the same time.
+     */
+    public void sort() {
+        Collections.sort(this.versionHistory, OLDEST_FIRST);
 
-        return null;
-    }
+        this.idIndex.clear();
+        this.keyIndex.clear();
 
-    public ArrayList<DocumentMeta> getHistoryList() {
-        return this.versionHistory;
+        for (HistoryRecord record : this.versionHistory) {
+            index(record);
+        }
     }
 
-    public String toJsonString() {
-        String s = "[\n";
+    private void index(HistoryRecord record) {
+        // a newer record wins when two records share the same id
+        this.idIndex.put(record.id, record);
 
-        for (DocumentMeta entry : this.versionHistory) {
-            if (!s.equals("[\n")) {
-                s += ",";
-            }
+        ArrayList<HistoryRecord> keyHistory = this.keyIndex.get(record.key);
+        if (keyHistory == null) {
+            keyHistory = new ArrayList<>();
+            this.keyIndex.put(record.key, keyHistory);
+        }
 
-            s += entry.toJsonString() + "\n";
+        // the history of a key stays ordered by time for findAsOf, a record older than the newest
+        // one, after the clock was set back, goes after those of the same time
+        if (keyHistory.isEmpty() || keyHistory.get(keyHistory.size() - 1).modifiedTime <= record.modifiedTime) {
+            keyHistory.add(record);
+        } else {
+            keyHistory.add(upperBound(keyHistory, record.modifiedTime), record);
         }
+    }
 
-        s += "]";
+    public DocumentMeta find(String docId) {
+        HistoryRecord record = this.idIndex.get(docId);
+        return record != null ? record.getMeta() : null;
+    }
 
-        return s;
+    public boolean contains(String docId) {
+        return this.idIndex.containsKey(docId);
     }
-}
 
-class BackupService {
-    static final long DEFAULT_AUTO_SAVE_INTERVAL_MILLI_SECONDS = 10 * 60 * 1000;
+    /**
+     * @return the newest version of key modified at time or before, or null if there is none
+     */
+    public DocumentMeta findAsOf(String key, long time) {
+        ArrayList<HistoryRecord> keyHistory = this.keyIndex.get(key);
 
-    private String packageName;
-    private PersistentStoreDriver persistentStoreDriver;
-    private VersionHistoryCache versionHistoryCache;
+        if (keyHistory == null) {
+            return null;
+        }
 
-    private long autoSaveIntervalMilliSeconds;
+        int index = upperBound(keyHistory, time);
+        return index > 0 ? keyHistory.get(index - 1).getMeta() : null;
+    }
 
-    BackupService(String packageName, PersistentStoreDriver persistentStoreDriver, long autoSaveIntervalMilliSeconds) {
-        this.packageName = packageName;
-        this.persistentStoreDriver = persistentStoreDriver;
-        this.versionHistoryCache = new VersionHistoryCache();
+    /**
+     * @return the index of the first record of l modified at time or later, l is ordered by time
+     */
+    static int lowerBound(List<HistoryRecord> l, long time) {
+        int low = 0;
+        int high = l.size();
 
-        this.autoSaveIntervalMilliSeconds = autoSaveIntervalMilliSeconds;
-    }
+        while (low < high) {
+            int mid = (low + high) >>> 1;
 
-    BackupService(String packageName, PersistentStoreDriver persistentStoreDriver) {
-        this(packageName, persistentStoreDriver, DEFAULT_AUTO_SAVE_INTERVAL_MILLI_SECONDS);
+            if (l.get(mid).modifiedTime < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
     }
 
-    public void init() throws IOException {
-        Map.Entry<byte[], DocumentMeta> data = this.persistentStoreDriver.load(this.packageName + ".versionHistoryCache");
-        byte[] bytes =  data.getKey();
-        String jsonString = new String(bytes, StandardCharsets.UTF_8);
+    /**
+     * @return the index of the first record of l modified after time, l is ordered by time
+     */
+    static int upperBound(List<HistoryRecord> l, long time) {
+        int low = 0;
+        int high = l.size();
 
-        //try {
-//            JSONArray array = new JSONArray(jsonString);
-            //ArrayNode array = JsonNodeFactory.instance.arrayNode();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
 
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode actualObj = mapper.readTree(jsonString);
-            if (!actualObj.isArray()) {
-                return;
+            if (l.get(mid).modifiedTime <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
+        }
 
-            ArrayNode array = ((ArrayNode) actualObj);
+        return low;
+    }
 
-            this.versionHistoryCache = new VersionHistoryCache();
-            //for (Object item : array.toList()) {
-            for (Iterator<JsonNode> iterator = array.iterator(); iterator.hasNext();) {
-                JsonNode item = iterator.next();
+    /**
+     * @return all versions, newest first
+     */
+    public List<DocumentMeta> getHistoryList() {
+        return new NewestFirstList(this.versionHistory);
+    }
 
-//                if (item instanceof Map) {
-//                    DocumentMeta documentMeta = DocumentMeta.create((Map<String, Object>) item);
-//                    this.versionHistoryCache.add(documentMeta);
-//                }
-                if (item instanceof ObjectNode) {
-                    DocumentMeta documentMeta = DocumentMeta.create((ObjectNode)item);
-                    this.versionHistoryCache.add(documentMeta);
-                }
-            }
+    /**
+     * @return versions of the key, newest first
+     */
+    public List<DocumentMeta> getHistoryList(String key) {
+        ArrayList<HistoryRecord> keyHistory = this.keyIndex.get(key);
 
-            // sort
-            Collections.sort(this.versionHistoryCache.getHistoryList(), new Comparator<DocumentMeta>() {
-                @Override
-                public int compare(DocumentMeta m1, DocumentMeta m2) {
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        if (keyHistory == null) {
+            return Collections.emptyList();
+        }
 
-                    try {
-                        Date m1_date = dateFormat.parse(m1.getModified());
-                        Date m2_date = dateFormat.parse(m2.getModified());
+        return new NewestFirstList(keyHistory);
+    }
 
-                        return (m1_date.before(m2_date) == true) ? 1 : -1;
-                    } catch (ParseException e) {
-                        return 0;
-                    }
-                }
-            });
-        //} catch (JSONException e) {
-        //    ;
-        //}
-        } catch (IOException e) {
-            ;
-        }
+    /**
+     * @return all records, oldest first, their meta isn't parsed until asked for
+     */
+    List<HistoryRecord> getRecords() {
+        return Collections.unmodifiableList(this.versionHistory);
     }
 
-    // TODO: using async interface
-    public void dataChanged(String key) throws IOException {
-        Map.Entry<byte[], DocumentMeta> data = persistentStoreDriver.load(key);
+    /**
+     * @return the records of key, oldest first
+     */
+    List<HistoryRecord> getRecords(String key) {
+        ArrayList<HistoryRecord> keyHistory = this.keyIndex.get(key);
+        return keyHistory != null ? Collections.unmodifiableList(keyHistory) : Collections.<HistoryRecord>emptyList();
+    }
 
-        String[] parts = key.split("\\.");
+    /**
+     * Removes the records of ids and rebuilds the indexes.
+     */
+    void removeAll(Set<String> ids) {
+        ArrayList<HistoryRecord> kept = new ArrayList<>(Math.max(0, this.versionHistory.size() - ids.size()));
+        for (HistoryRecord record : this.versionHistory) {
+            if (!ids.contains(record.id)) {
+                kept.add(record);
+            }
+        }
 
-        parts[parts.length - 1] = "backups";
-        String backupId = String.join(File.separator, parts) + "." + data.getValue().getId();
+        this.versionHistory = kept;
+        this.idIndex.clear();
+        this.keyIndex.clear();
 
-        try {
-            persistentStoreDriver.save(backupId, data.getKey(), data.getValue());
-        } catch (IllegalArgumentException e) {
-            throw new IOException("failed to backup file for key(" + key + "): ", e);
+        for (HistoryRecord record : this.versionHistory) {
+            index(record);
         }
+    }
 
-        {
-            DocumentMeta documentMeta = data.getValue();
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(this.keyIndex.keySet());
+    }
 
-            this.versionHistoryCache.add(documentMeta);
+    public int size() {
+        return this.versionHistory.size();
+    }
 
-            String versionHistoryJson = this.versionHistoryCache.toJsonString();
+    public String toJsonString() {
+        StringBuilder s = new StringBuilder("[\n");
 
-            byte[] v = versionHistoryJson.getBytes();
+        for (int i = this.versionHistory.size() - 1; 0 <= i; --i) {
+            if (i != this.versionHistory.size() - 1) {
+                s.append(",");
+            }
 
-            Map<String, Object> versionHistoryCacheMeta = new HashMap<>();
+            s.append(this.versionHistory.get(i).getMeta().toJsonString()).append("\n");
+        }
 
-            Date now = Calendar.getInstance().getTime();
-            String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(now);
+        s.append("]");
 
-            versionHistoryCacheMeta.put("modified", timeStamp);
-            versionHistoryCacheMeta.put("fileExtension", ".json");
+        return s.toString();
+    }
 
-            try {
-                this.persistentStoreDriver.save(this.packageName + ".versionHistoryCache", v, versionHistoryCacheMeta);
-            } catch (IllegalArgumentException e) {
-                throw new IOException("failed to save versionHistoryCache file: ", e);
+    /**
+     * @return the history in the snapshot format, records not yet parsed are copied as they are
+     */
+    public byte[] toSnapshot() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + this.versionHistory.size() * 256);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(SNAPSHOT_MAGIC_0);
+            out.writeByte(SNAPSHOT_MAGIC_1);
+            out.writeByte(SNAPSHOT_VERSION);
+
+            Map<String, Integer> keys = new HashMap<>();
+            out.writeInt(this.keyIndex.size() - (this.keyIndex.containsKey(null) ? 1 : 0));
+            for (String key : this.keyIndex.keySet()) {
+                if (key != null) {
+                    keys.put(key, keys.size());
+                    writeString(out, key);
+                }
             }
-        }
-    }
 
-    // TODO: using async interface
-    public Map.Entry<byte[], DocumentMeta> find(String versionId) throws IllegalArgumentException, IOException {
-        DocumentMeta docMeta = this.versionHistoryCache.find(versionId);
+            out.writeInt(this.versionHistory.size());
+            for (HistoryRecord record : this.versionHistory) {
+                out.writeLong(record.modifiedTime);
+                out.writeInt(record.key != null ? keys.get(record.key) : -1);
+                writeString(out, record.id != null ? record.id : "");
 
-        if (docMeta == null) {
-            throw new IllegalArgumentException("Can't find this version " + versionId);
+                ByteBuffer json = record.toJson();
+                out.writeInt(json.remaining());
+                if (json.hasArray()) {
+                    out.write(json.array(), json.arrayOffset() + json.position(), json.remaining());
+                } else {
+                    byte[] copy = new byte[json.remaining()];
+                    json.get(copy);
+                    out.write(copy);
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
         }
 
-        return this.persistentStoreDriver.load(this.packageName + ".backups." + versionId);
+        return bytes.toByteArray();
     }
 
-    public Map<String, DocumentMeta[]> getAllVersions() {
-        ArrayList<DocumentMeta> historyList  = this.versionHistoryCache.getHistoryList();
-        Map<String, ArrayList<DocumentMeta>> allVersions = new HashMap<>();
-        Map<String, Date> lastSaveDate = new HashMap<>();
+    /**
+     * Reads a history written by toSnapshot. Only the index of each record is read, its meta is
+     * parsed when first asked for, from snapshot, which must not change afterwards.
+     */
+    public static VersionHistoryCache fromSnapshot(ByteBuffer snapshot) throws IOException {
+        ByteBuffer in = snapshot.duplicate().order(ByteOrder.BIG_ENDIAN);
+        VersionHistoryCache versionHistoryCache = new VersionHistoryCache();
 
-        for (ListIterator iterator = historyList.listIterator(historyList.size()); iterator.hasPrevious();) {
-            DocumentMeta doc = (DocumentMeta) iterator.previous();
+        try {
+            if (in.get() != SNAPSHOT_MAGIC_0 || in.get() != SNAPSHOT_MAGIC_1 || in.get() != SNAPSHOT_VERSION) {
+                throw new IOException("invalid history snapshot: unknown format");
+            }
 
-            if (allVersions.get(doc.getKey()) == null) {
-                allVersions.put(doc.getKey(), new ArrayList<>());
+            String[] keys = new String[in.getInt()];
+            for (int i = 0; i < keys.length; ++i) {
+                keys[i] = readString(in);
             }
 
-            //if (key.equals(doc.getKey())) {
-            try {
-                Date current = BackupService.getDocumentModifiedDate(doc);
-
-                if (lastSaveDate.get(doc.getKey()) == null) {
-                    ArrayList<DocumentMeta> l = allVersions.get(doc.getKey());
-                    l.add(0, doc);
-                    lastSaveDate.put(doc.getKey(), current);
-
-//                    if (doc.getDescription() != null) {
-//                        ArrayList<String> descriptions = new ArrayList<String>();
-//                        descriptions.add(doc.getDescription());
-//                        l.get(0).put("descriptions", descriptions);
-//                    }
-                } else {
-                    long diffMillis = current.getTime() - lastSaveDate.get(doc.getKey()).getTime();
-                    if (this.autoSaveIntervalMilliSeconds <= diffMillis) {
-                        //allVersions.add(0, doc);
-                        ArrayList<DocumentMeta> l = allVersions.get(doc.getKey());
-                        l.add(0, doc);
-                        lastSaveDate.put(doc.getKey(), current);
-
-//                        if (doc.getDescription() != null) {
-//                            ArrayList<String> descriptions = new ArrayList<String>();
-//                            descriptions.add(doc.getDescription());
-//                            l.get(0).put("descriptions", descriptions);
-//                        }
-                    } else {
-                        ArrayList<DocumentMeta> l = allVersions.get(doc.getKey());
-                        DocumentMeta old = l.remove(0);
-
-                        l.add(0, doc);
-                        //allVersions.remove(0);
-                        //allVersions.add(0, doc);
-
-//                        Object obj = old.get("descriptions");
-//                        if (obj instanceof ArrayList) {
-//                            ArrayList<String> descriptions = (ArrayList<String>)obj;
-//                            if (doc.getDescription() != null) {
-//                                descriptions.add(0, doc.getDescription());
-//                            }
-//                            doc.put("descriptions", descriptions);
-//                        } else if (obj instanceof ArrayNode) {
-//                            ArrayNode descriptions = (ArrayNode) obj;
-//                            if (doc.getDescription() != null) {
-//                                descriptions.add(0, doc.getDescription());
-//                            }
-//                            doc.put("descriptions", descriptions);
-//                        }
-                    }
+            int records = in.getInt();
+            versionHistoryCache.versionHistory.ensureCapacity(records);
+
+            for (int i = 0; i < records; ++i) {
+                long modifiedTime = in.getLong();
+                int keyIndex = in.getInt();
+                String id = readString(in);
+
+                int length = in.getInt();
+                if (length < 0 || in.remaining() < length) {
+                    throw new IOException("invalid history snapshot: truncated");
                 }
-            } catch (ParseException e) {
-                // TODO: log bad record
-            }
-            //}
-        }
 
-        Map<String, DocumentMeta[]> ret = new HashMap<>();
-        for (Map.Entry<String, ArrayList<DocumentMeta>> entry : allVersions.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                ret.put(entry.getKey(), entry.getValue().toArray(new DocumentMeta[0]));
+                ByteBuffer json = in.duplicate();
+                json.limit(json.position() + length);
+                in.position(in.position() + length);
+
+                versionHistoryCache.add(new HistoryRecord(id, keyIndex < 0 ? null : keys[keyIndex], modifiedTime, json.slice()));
             }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("invalid history snapshot: ", e);
         }
 
-        return ret;
+        return versionHistoryCache;
     }
 
-    // TODO: Add getKeys() : string[]
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
 
-    public DocumentMeta[] getAllVersions(String key) {
-        Map<String, DocumentMeta[]> allVersions = getAllVersions();
-        return allVersions.getOrDefault(key, new DocumentMeta[0]);
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    static Date getDocumentModifiedDate(DocumentMeta documentMeta) throws ParseException {
-        String format = documentMeta.getModifiedFormat();
-        String modified = documentMeta.getModified();
+    private static class NewestFirstList extends AbstractList<DocumentMeta> implements RandomAccess {
+        private final List<HistoryRecord> oldestFirst;
+
+        NewestFirstList(List<HistoryRecord> oldestFirst) {
+            this.oldestFirst = oldestFirst;
+        }
+
+        @Override
+        public DocumentMeta get(int index) {
+            return this.oldestFirst.get(this.oldestFirst.size() - 1 - index).getMeta();
+        }
 
-        DateFormat dateFormat = new SimpleDateFormat(format);
-        return dateFormat.parse(modified);
+        @Override
+        public int size() {
+            return this.oldestFirst.size();
+        }
     }
 }
 
-public class PersistentStoreManager {
-    private PersistentStoreDriver persistentStoreDriver;
+class BackupService {
+    static final long DEFAULT_AUTO_SAVE_INTERVAL_MILLI_SECONDS = 10 * 60 * 1000;
+
+    /**
+     * Every save appends one record to the history journal. The journal is compacted into the
+     * versionHistoryCache checkpoint once it holds more records than this threshold or the
+     * checkpoint itself, so the amortized cost of a save doesn't grow with the history length.
+     */
+    static final int DEFAULT_HISTORY_CHECKPOINT_RECORDS = 1024;
+
+    // meta of a backup stored as a delta: the version id of the keyframe it applies to
+    static final String DELTA_BASE = "deltaBase";
+
     private String packageName;
+    private PersistentStoreDriver persistentStoreDriver;
 
-    private Calendar calendarInstance;  // for internal testing
-    private BackupService backupService;
+    // guards versionHistoryCache, versions and lastSaveDate. Taken after journalLock, never held
+    // during I/O
+    private final ReentrantReadWriteLock historyLock = new ReentrantReadWriteLock();
+    private VersionHistoryCache versionHistoryCache;
 
-    private DocumentMeta currentDoc;
+    // guards the history files and the journal state, so records are persisted in the order they
+    // are added to versionHistoryCache
+    private final Object journalLock = new Object();
 
-    public PersistentStoreManager(String packageName, PersistentStoreDriver persistentStoreDriver) {
-        this.persistentStoreDriver = persistentStoreDriver;
-        this.packageName = packageName;
+    // false once the history is dropped by unload, it's read again on first use
+    private volatile boolean loaded = true;
 
-        this.currentDoc = null;
+    // told when the history is read again, called with the history locked, so it must not lock
+    // anything but itself
+    private volatile Runnable loadListener;
 
-        calendarInstance = null;
-        this.backupService = new BackupService(packageName, persistentStoreDriver);
-    }
+    // false until the in-memory history is known to match the persisted one, the next write
+    // rewrites the checkpoint instead of appending to the journal
+    private boolean historyJournalOpened;
+    private int historyJournalRecords;
 
-    public void init() throws IllegalArgumentException, IOException {
-        Map.Entry<byte[], DocumentMeta> result = this.persistentStoreDriver.load(this.packageName + ".current");
-        this.currentDoc = result.getValue();
+    // versions listed by getAllVersions(), oldest first, maintained as records are added
+    private Map<String, ArrayList<HistoryRecord>> versions;
+    private Map<String, Long> lastSaveDate;
 
-        this.backupService.init();
+    // the last change submitted by dataChangedAsync
+    private final Object pendingChangeLock = new Object();
+    private CompletableFuture<Void> pendingChange;
+
+    private long autoSaveIntervalMilliSeconds;
+
+    // held while a key is backed up, guards the keyframe of the key. Keys are unique to their
+    // package, so the locks are shared by every package
+    private static final StripedLock KEY_LOCKS = new StripedLock();
+
+    // 0 or 1 backs up every version as a full copy. Otherwise every keyframeInterval-th backup of a
+    // document is a full copy, a keyframe, and the ones in between are deltas against it
+    private volatile int keyframeInterval;
+    private Map<String, Keyframe> keyframes;
+
+    // asks the driver to compress backups, see DocumentMeta.COMPRESS
+    private volatile boolean compressBackups;
+
+    // saves within autoSaveIntervalMilliSeconds of the version they belong to wait here, the newest
+    // of each key, to be backed up once the interval ends. Guarded by the lock of the key
+    private volatile boolean coalesceSaves;
+    private Executor flushExecutor;
+    private final Map<String, PendingBackup> pendingBackups = new ConcurrentHashMap<>();
+
+    // drops versions from the history, null keeps them all. The backups of dropped versions wait
+    // here to be deleted, a few per round of the background pruner
+    private volatile RetentionPolicy retentionPolicy;
+    private final Queue<String> pendingDeletes = new ConcurrentLinkedQueue<>();
+
+    private static class PendingBackup {
+        final byte[] value;
+        final DocumentMeta documentMeta;
+        final long versionTime;
+
+        PendingBackup(byte[] value, DocumentMeta documentMeta, long versionTime) {
+            this.value = value;
+            this.documentMeta = documentMeta;
+            this.versionTime = versionTime;
+        }
     }
 
-    // TODO: accept string format content
-    // TODO: accept json format content
-    public void save(byte[] content) throws IOException {
-        Calendar calendar = this.calendarInstance;
-        if (this.calendarInstance == null) {
-            calendar = Calendar.getInstance();
+    private static class Keyframe {
+        final String id;
+        final byte[] content;
+        int deltas;
+
+        Keyframe(String id, byte[] content) {
+            this.id = id;
+            this.content = content;
         }
+    }
 
-        Date now = calendar.getTime();
+    BackupService(String packageName, PersistentStoreDriver persistentStoreDriver, long autoSaveIntervalMilliSeconds) {
+        this.packageName = packageName;
+        this.persistentStoreDriver = persistentStoreDriver;
+        this.versionHistoryCache = new VersionHistoryCache();
+        this.historyJournalOpened = false;
+        this.historyJournalRecords = 0;
 
-        Map<String, Object> options = new HashMap<>();
-//        if (description != null) {
-//            options.put("description", description);
-//        }
+        this.versions = new HashMap<>();
+        this.lastSaveDate = new HashMap<>();
+
+        this.pendingChange = CompletableFuture.completedFuture(null);
 
-        this.currentDoc = save(this.packageName + ".current", content, options, now, this.persistentStoreDriver);
-        this.backupService.dataChanged(this.packageName + ".current");
+        this.autoSaveIntervalMilliSeconds = autoSaveIntervalMilliSeconds;
+
+        this.keyframeInterval = 0;
+        this.keyframes = new ConcurrentHashMap<>();
+
+        this.compressBackups = true;
     }
 
-    public byte[] restore(String versionId) throws IllegalArgumentException, IOException {
-        try {
-            Map.Entry<byte[], DocumentMeta> result = this.backupService.find(versionId);
-            this.currentDoc = this.persistentStoreDriver.save(this.packageName + ".current", result.getKey(), result.getValue());
-            return result.getKey();
-        } catch (IllegalArgumentException e) {
-            throw new IOException("failed to restore file for id(" + versionId + "): ", e);
+    BackupService(String packageName, PersistentStoreDriver persistentStoreDriver) {
+        this(packageName, persistentStoreDriver, DEFAULT_AUTO_SAVE_INTERVAL_MILLI_SECONDS);
+    }
+
+    public void init() throws IOException {
+        synchronized (this.journalLock) {
+            this.historyLock.writeLock().lock();
+            try {
+                // stays unloaded if the history can't be read, so no write checkpoints over it
+                this.loaded = false;
+                load();
+                this.loaded = true;
+            } finally {
+                this.historyLock.writeLock().unlock();
+            }
         }
     }
 
-    // TODO: return versionHistoryCache plus self information, like current used config, packetname ... etc
-    public Map<String, DocumentMeta[]> getAllVersions() {
-        return this.backupService.getAllVersions();
+    /**
+     * Drops the history and keyframes from memory, they are read again by the next call needing
+     * them. Every record is persisted by recordChange, so nothing is lost.
+     */
+    void unload() {
+        synchronized (this.journalLock) {
+            this.historyLock.writeLock().lock();
+            try {
+                this.versionHistoryCache = new VersionHistoryCache();
+                this.versions.clear();
+                this.lastSaveDate.clear();
+                this.historyJournalOpened = false;
+                this.historyJournalRecords = 0;
+                this.loaded = false;
+            } finally {
+                this.historyLock.writeLock().unlock();
+            }
+
+            // the next backup of each key is a keyframe
+            this.keyframes.clear();
+        }
     }
 
-    public DocumentMeta[] getAllVersions(String key) {
-        return this.backupService.getAllVersions(key);
+    boolean isLoaded() {
+        return this.loaded;
     }
 
-    public String getCurrentVersionId() {
-        if (this.currentDoc == null) {
-            return null;
+    private void ensureLoaded() throws IOException {
+        ensureLoaded(false);
+    }
+
+    private void ensureLoaded(boolean quiet) throws IOException {
+        if (this.loaded) {
+            return;
         }
 
-        return this.currentDoc.getId();
-    }
+        synchronized (this.journalLock) {
+            if (this.loaded) {
+                return;
+            }
 
-    public byte[] getCurrentVersionContent() {
-        if (this.currentDoc == null) {
-            return null;
+            this.historyLock.writeLock().lock();
+            try {
+                try {
+                    load();
+                } catch (NoSuchFileException e) {
+                    // a package without history yet
+                }
+
+                this.loaded = true;
+            } finally {
+                this.historyLock.writeLock().unlock();
+            }
+
+            Runnable loadListener = this.loadListener;
+            if (loadListener != null && !quiet) {
+                loadListener.run();
+            }
         }
+    }
 
-        try {
-            Map.Entry<byte[], DocumentMeta> result = this.persistentStoreDriver.load(this.packageName + ".current");
-            return result.getKey();
-        } catch (IllegalArgumentException | IOException e) {
-            return null;
+    void setLoadListener(Runnable loadListener) {
+        this.loadListener = loadListener;
+    }
+
+    /**
+     * Takes the read lock of the history, loading it first if needed. A history that can't be read
+     * stays unloaded, every reader fails until it can.
+     */
+    private void lockHistory() throws IOException {
+        while (true) {
+            ensureLoaded();
+
+            this.historyLock.readLock().lock();
+            if (this.loaded) {
+                return;
+            }
+
+            // dropped by unload in between
+            this.historyLock.readLock().unlock();
         }
     }
 
-    public byte[] getVersionContent(String versionId) {
+    // for readers not declared to throw IOException
+    private void lockHistoryUnchecked() {
         try {
-            Map.Entry<byte[], DocumentMeta> result = this.persistentStoreDriver.load(this.packageName + ".backups." + versionId);
-            return result.getKey();
-        } catch (IllegalArgumentException | IOException e) {
-            return null;
+            lockHistory();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e.getMessage(), e);
         }
     }
 
-    protected void setCalendarInstance(Calendar calendarInstance) {
-        this.calendarInstance = calendarInstance;
-    }
+    private void load() throws IOException {
+        ByteBuffer snapshot;
 
-    public static DocumentMeta save(String key, byte[] content, Date now, PersistentStoreDriver persistentStoreDriver)
+        try {
+            snapshot = this.persistentStoreDriver.loadBuffer(this.packageName + ".versionHistorySnapshot").getKey();
+        } catch (NoSuchFileException e) {
+            snapshot = null;
+        }
+
+        if (snapshot == null) {
+            loadCheckpoint();
+            return;
+        }
+
+        try {
+            // records are parsed on first use, large snapshots are mapped by the driver
+            this.versionHistoryCache = VersionHistoryCache.fromSnapshot(snapshot);
+
+            this.historyJournalRecords = replayHistoryJournal();
+        } catch (IOException e) {
+            // left unloaded and unopened, so no checkpoint replaces the history that failed to load
+            this.versionHistoryCache = new VersionHistoryCache();
+            throw new IOException("failed to load history of package " + this.packageName + ": ", e);
+        }
+
+        this.historyJournalOpened = true;
+
+        // the snapshot is in order, only records replayed from the journal may move
+        this.versionHistoryCache.sort();
+
+        rebuildVersions();
+    }
+
+    /**
+     * Reads the JSON checkpoint written by older releases.
+     */
+    private void loadCheckpoint() throws IOException {
+        Map.Entry<byte[], DocumentMeta> data = this.persistentStoreDriver.load(this.packageName + ".versionHistoryCache");
+        byte[] bytes =  data.getKey();
+
+        //try {
+//            JSONArray array = new JSONArray(jsonString);
+            //ArrayNode array = JsonNodeFactory.instance.arrayNode();
+
+        try {
+            JsonNode actualObj = DocumentMeta.MAPPER.readTree(bytes);
+            if (actualObj == null || !actualObj.isArray()) {
+                return;
+            }
+
+            ArrayNode array = ((ArrayNode) actualObj);
+
+            this.versionHistoryCache = new VersionHistoryCache();
+            // the checkpoint is stored newest first
+            for (int i = array.size() - 1; 0 <= i; --i) {
+                JsonNode item = array.get(i);
+
+//                if (item instanceof Map) {
+//                    DocumentMeta documentMeta = DocumentMeta.create((Map<String, Object>) item);
+//                    this.versionHistoryCache.add(documentMeta);
+//                }
+                if (item instanceof ObjectNode) {
+                    DocumentMeta documentMeta = DocumentMeta.create((ObjectNode)item);
+                    this.versionHistoryCache.add(documentMeta);
+                }
+            }
+
+            this.historyJournalRecords = replayHistoryJournal();
+            this.historyJournalOpened = true;
+
+            // sort, oldest first
+            this.versionHistoryCache.sort();
+
+            rebuildVersions();
+        //} catch (JSONException e) {
+        //    ;
+        //}
+        } catch (IOException e) {
+            this.versionHistoryCache = new VersionHistoryCache();
+            throw new IOException("failed to load history of package " + this.packageName + ": ", e);
+        }
+    }
+
+    public void dataChanged(String key) throws IOException {
+        Map.Entry<byte[], DocumentMeta> data = persistentStoreDriver.load(key);
+        dataChanged(key, data.getKey(), data.getValue());
+    }
+
+    /**
+     * Backs up value, the content just saved under key, and records documentMeta in the history.
+     * documentMeta is updated by the driver, pass a copy if the caller keeps using it.
+     */
+    public void dataChanged(String key, byte[] value, DocumentMeta documentMeta) throws IOException {
+        // backups of other keys go on in parallel
+        Lock lock = KEY_LOCKS.get(key);
+        lock.lock();
+        try {
+            if (this.coalesceSaves && coalesce(key, value, documentMeta)) {
+                return;
+            }
+
+            flushPending(key);
+            store(key, value, documentMeta);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock of key held
+    private void store(String key, byte[] value, DocumentMeta documentMeta) throws IOException {
+        String backupId = getBackupKey(key, documentMeta.getId());
+        byte[] stored = encodeBackup(key, value, documentMeta);
+
+        try {
+            persistentStoreDriver.save(backupId, stored, documentMeta);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to backup file for key(" + key + "): ", e);
+        }
+
+        backupStored(key, value, documentMeta);
+        recordChange(documentMeta);
+    }
+
+    /**
+     * Holds value back if it's saved within autoSaveIntervalMilliSeconds of the last version of
+     * key, replacing the one held back before. The first save that holds a value back schedules
+     * its backup at the end of the interval. Called with the lock of key held.
+     *
+     * @return true if value is held back, false if it starts a new version
+     */
+    private boolean coalesce(String key, byte[] value, DocumentMeta documentMeta) throws IOException {
+        long current = documentMeta.getModifiedTime();
+        Long last;
+
+        lockHistory();
+        try {
+            last = this.lastSaveDate.get(key);
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+
+        if (last == null || current == DocumentMeta.INVALID_TIME || current < last
+                || this.autoSaveIntervalMilliSeconds <= current - last) {
+            return false;
+        }
+
+        // the caller may reuse its array once the save returns
+        PendingBackup previous = this.pendingBackups.put(key, new PendingBackup(value.clone(), documentMeta, last));
+
+        if (previous == null || previous.versionTime != last) {
+            // the delay is measured by the clock of the saves, which may not be the system one
+            long delay = this.autoSaveIntervalMilliSeconds - (current - last);
+            Executor executor = this.flushExecutor;
+
+            // run on the scheduler only if the executor keeps refusing it, see handOff
+            PersistentStoreExecutors.getScheduler().schedule(() -> PersistentStoreExecutors.handOff(executor, () -> {
+                try {
+                    flushPending(key, last);
+                } catch (IOException e) {
+                    // TODO: log, the content is still in the current document
+                }
+            }), delay, TimeUnit.MILLISECONDS);
+        }
+
+        return true;
+    }
+
+    /**
+     * Backs up the save of key held back by coalesce, if any, before a save that starts a new
+     * version or isn't coalesced. Called with the lock of key held, or takes it.
+     */
+    void flushPending(String key) throws IOException {
+        flushPending(key, null);
+    }
+
+    // flushes the save held back only if it belongs to the version at versionTime, unless null
+    private void flushPending(String key, Long versionTime) throws IOException {
+        if (this.pendingBackups.isEmpty()) {
+            return;
+        }
+
+        Lock lock = KEY_LOCKS.get(key);
+        lock.lock();
+        try {
+            PendingBackup pending = this.pendingBackups.get(key);
+            if (pending == null || (versionTime != null && pending.versionTime != versionTime)) {
+                return;
+            }
+
+            this.pendingBackups.remove(key);
+
+            try {
+                store(key, pending.value, pending.documentMeta);
+            } catch (IOException e) {
+                // kept for the next flush, unless a newer save replaced it meanwhile
+                this.pendingBackups.putIfAbsent(key, pending);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Backs up every save held back by coalesce now.
+     */
+    void flushPending() throws IOException {
+        for (String key : new ArrayList<>(this.pendingBackups.keySet())) {
+            flushPending(key);
+        }
+    }
+
+    boolean isCoalesceSaves() {
+        return this.coalesceSaves;
+    }
+
+    /**
+     * @param flushExecutor runs the backups of the saves held back, at the end of their interval
+     */
+    void setCoalesceSaves(boolean coalesceSaves, Executor flushExecutor) throws IOException {
+        this.flushExecutor = flushExecutor;
+        this.coalesceSaves = coalesceSaves;
+
+        if (!coalesceSaves) {
+            flushPending();
+        }
+    }
+
+    RetentionPolicy getRetentionPolicy() {
+        return this.retentionPolicy;
+    }
+
+    void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+    }
+
+    /**
+     * Drops the versions the retention policy doesn't keep from the history, then deletes their
+     * backups, at most maxDeletes of them, the rest is left to the next call. The history is
+     * checkpointed once, saves only wait for that, not for the deletes.
+     *
+     * @param now the time the ages of versions are measured from
+     * @return the number of versions dropped
+     */
+    int prune(long now, int maxDeletes) throws IOException {
+        return prune(now, maxDeletes, true);
+    }
+
+    /**
+     * @param keepLoaded false drops a history read for the round again after it, as unload does
+     */
+    int prune(long now, int maxDeletes, boolean keepLoaded) throws IOException {
+        RetentionPolicy retentionPolicy = this.retentionPolicy;
+        int dropped = 0;
+
+        if (retentionPolicy != null) {
+            synchronized (this.journalLock) {
+                boolean unloaded = !this.loaded;
+                try {
+                    dropped = pruneLoaded(retentionPolicy, now, !keepLoaded && unloaded);
+                } finally {
+                    if (!keepLoaded && unloaded) {
+                        unload();
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < maxDeletes; ++i) {
+            String backupKey = this.pendingDeletes.poll();
+            if (backupKey == null) {
+                break;
+            }
+
+            try {
+                this.persistentStoreDriver.delete(backupKey);
+            } catch (IllegalArgumentException | IOException e) {
+                // TODO: log, an unused file is left
+            }
+        }
+
+        return dropped;
+    }
+
+    // called with journalLock held, quiet doesn't tell the load listener the history is read
+    private int pruneLoaded(RetentionPolicy retentionPolicy, long now, boolean quiet) throws IOException {
+        int dropped = 0;
+
+        ensureLoaded(quiet);
+
+        Map<String, String> backups;
+        this.historyLock.readLock().lock();
+        try {
+            backups = selectDropped(retentionPolicy, now);
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+
+        if (!backups.isEmpty()) {
+            this.historyLock.writeLock().lock();
+            try {
+                this.versionHistoryCache.removeAll(backups.keySet());
+                rebuildVersions();
+            } finally {
+                this.historyLock.writeLock().unlock();
+            }
+
+            // no record refers to the backups once the checkpoint is written, a crash
+            // before they are deleted only leaves unused files
+            checkpointHistory();
+            this.pendingDeletes.addAll(backups.values());
+            dropped = backups.size();
+        }
+
+        return dropped;
+    }
+
+    /**
+     * @return true if backups of dropped versions are still to be deleted
+     */
+    boolean hasPendingDeletes() {
+        return !this.pendingDeletes.isEmpty();
+    }
+
+    /**
+     * @return true if saves held back by coalesce are still to be backed up
+     */
+    boolean hasPendingBackups() {
+        return !this.pendingBackups.isEmpty();
+    }
+
+    // called with historyLock held, the id to the backup key of every version to drop
+    private Map<String, String> selectDropped(RetentionPolicy retentionPolicy, long now) {
+        Map<String, String> backups = new LinkedHashMap<>();
+
+        for (String key : this.versionHistoryCache.keys()) {
+            if (key == null) {
+                continue;
+            }
+
+            List<HistoryRecord> records = this.versionHistoryCache.getRecords(key);
+            long[] modifiedTimes = new long[records.size()];
+            for (int i = 0; i < modifiedTimes.length; ++i) {
+                modifiedTimes[i] = records.get(i).modifiedTime;
+            }
+
+            List<HistoryRecord> dropped = new ArrayList<>();
+            BitSet selected = retentionPolicy.select(modifiedTimes, now);
+            for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+                dropped.add(records.get(i));
+            }
+
+            if (dropped.isEmpty()) {
+                continue;
+            }
+
+            // keyframes of the versions kept, and the one the next deltas will refer to
+            Set<String> droppedIds = new HashSet<>();
+            for (HistoryRecord record : dropped) {
+                droppedIds.add(record.id);
+            }
+
+            Set<String> keyframes = new HashSet<>();
+            Keyframe keyframe = this.keyframes.get(key);
+            if (keyframe != null) {
+                keyframes.add(keyframe.id);
+            }
+
+            for (HistoryRecord record : records) {
+                if (!droppedIds.contains(record.id)) {
+                    String base = record.getMeta().getString(DELTA_BASE);
+                    if (base != null) {
+                        keyframes.add(base);
+                    }
+                }
+            }
+
+            for (HistoryRecord record : dropped) {
+                if (!keyframes.contains(record.id)) {
+                    backups.put(record.id, getBackupKey(key, record.id));
+                }
+            }
+        }
+
+        return backups;
+    }
+
+    int getKeyframeInterval() {
+        return this.keyframeInterval;
+    }
+
+    void setKeyframeInterval(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    boolean isCompressBackups() {
+        return this.compressBackups;
+    }
+
+    void setCompressBackups(boolean compressBackups) {
+        this.compressBackups = compressBackups;
+    }
+
+    /**
+     * The caller holds the lock of key until backupStored, see lockKeys.
+     *
+     * @return what to store as the backup of value: value itself for a keyframe, otherwise its
+     * delta against the last keyframe of key, recorded as deltaBase in documentMeta
+     */
+    byte[] encodeBackup(String key, byte[] value, DocumentMeta documentMeta) {
+        documentMeta.remove(DELTA_BASE);
+        documentMeta.put(DocumentMeta.COMPRESS, this.compressBackups);
+
+        int keyframeInterval = this.keyframeInterval;
+        Keyframe keyframe = this.keyframes.get(key);
+        if (keyframeInterval <= 1 || keyframe == null || keyframe.deltas + 1 >= keyframeInterval
+                || keyframe.id.equals(documentMeta.getId())) {
+            return value;
+        }
+
+        byte[] delta = DeltaCodec.encode(keyframe.content, value);
+        if (delta.length > value.length / 2) {
+            // not worth it, start a new keyframe
+            return value;
+        }
+
+        documentMeta.put(DELTA_BASE, keyframe.id);
+        // a delta is unique to its version
+        documentMeta.remove(DocumentMeta.CONTENT_ADDRESSED);
+        return delta;
+    }
+
+    /**
+     * Called once the result of encodeBackup is saved, documentMeta is the meta returned by the
+     * driver. The caller holds the lock of key from encodeBackup on, see lockKeys.
+     */
+    void backupStored(String key, byte[] value, DocumentMeta documentMeta) {
+        if (this.keyframeInterval <= 1) {
+            return;
+        }
+
+        if (documentMeta.getString(DELTA_BASE) == null) {
+            this.keyframes.put(key, new Keyframe(documentMeta.getId(), value.clone()));
+            return;
+        }
+
+        Keyframe keyframe = this.keyframes.get(key);
+        if (keyframe != null) {
+            ++keyframe.deltas;
+        }
+
+        // the size of the version, not of the delta
+        documentMeta.put("size", value.length);
+    }
+
+    /**
+     * @return the locks to hold while keys are backed up by encodeBackup and backupStored, in the
+     * order to take them, see StripedLock.getAll
+     */
+    static List<Lock> lockKeys(Collection<String> keys) {
+        return KEY_LOCKS.getAll(keys);
+    }
+
+    /**
+     * @return backup, the (value, meta) loaded from a backup key, with the value reconstructed
+     * if it was stored as a delta
+     */
+    Map.Entry<byte[], DocumentMeta> decodeBackup(Map.Entry<byte[], DocumentMeta> backup) throws IOException {
+        String base = backup.getValue().getString(DELTA_BASE);
+        if (base == null) {
+            return backup;
+        }
+
+        try {
+            return decodeBackup(backup, this.persistentStoreDriver.load(this.packageName + ".backups." + base));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to load keyframe " + base + ": ", e);
+        }
+    }
+
+    CompletableFuture<Map.Entry<byte[], DocumentMeta>> decodeBackupAsync(Map.Entry<byte[], DocumentMeta> backup,
+                                                                         AsyncPersistentStoreDriver asyncPersistentStoreDriver) {
+        String base = backup.getValue().getString(DELTA_BASE);
+        if (base == null) {
+            return CompletableFuture.completedFuture(backup);
+        }
+
+        return asyncPersistentStoreDriver.loadAsync(this.packageName + ".backups." + base)
+                .thenApply(keyframe -> {
+                    try {
+                        return decodeBackup(backup, keyframe);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    private static Map.Entry<byte[], DocumentMeta> decodeBackup(Map.Entry<byte[], DocumentMeta> backup,
+                                                                Map.Entry<byte[], DocumentMeta> keyframe) throws IOException {
+        byte[] value = DeltaCodec.decode(keyframe.getKey(), backup.getKey());
+
+        DocumentMeta documentMeta = backup.getValue();
+        documentMeta.remove(DELTA_BASE);
+        documentMeta.put("size", value.length);
+
+        return new AbstractMap.SimpleEntry<>(value, documentMeta);
+    }
+
+    /**
+     * Backs up the content read from value under getBackupKey, without recording it in the version
+     * history, see recordChange.
+     */
+    DocumentMeta backup(String key, ReadableByteChannel value, DocumentMeta documentMeta) throws IOException {
+        try {
+            return persistentStoreDriver.save(getBackupKey(key, documentMeta.getId()), value, documentMeta);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to backup file for key(" + key + "): ", e);
+        }
+    }
+
+    /**
+     * Records documentMeta, already backed up under getBackupKey, in the version history.
+     * Readers of the history only wait for the in-memory update, not for the history files.
+     */
+    void recordChange(DocumentMeta documentMeta) throws IOException {
+        synchronized (this.journalLock) {
+            // the history is read first, or the checkpoint would drop the records not in memory
+            ensureLoaded();
+
+            this.historyLock.writeLock().lock();
+            try {
+                HistoryRecord record = new HistoryRecord(documentMeta);
+                this.versionHistoryCache.add(record);
+                updateVersions(record);
+            } finally {
+                this.historyLock.writeLock().unlock();
+            }
+
+            appendHistory(documentMeta);
+        }
+    }
+
+    /**
+     * @return the key of the backup of version id of document key
+     */
+    static String getBackupKey(String key, String id) {
+        String[] parts = key.split("\\.");
+
+        parts[parts.length - 1] = "backups";
+        return String.join(File.separator, parts) + "." + id;
+    }
+
+    /**
+     * A write run by submitPending.
+     */
+    interface PendingTask<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Runs dataChanged on executor. Changes are applied one after another in the order this method
+     * is called, a failed change doesn't stop the following ones.
+     */
+    public CompletableFuture<Void> dataChangedAsync(final String key, final byte[] value, final DocumentMeta documentMeta,
+                                                    Executor executor) {
+        return submitPending(() -> {
+            dataChanged(key, value, documentMeta);
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Runs task on executor after the changes submitted so far, the following ones wait for it.
+     */
+    <T> CompletableFuture<T> submitPending(final PendingTask<T> task, Executor executor) {
+        synchronized (this.pendingChangeLock) {
+            CompletableFuture<T> future = this.pendingChange.handleAsync((ignored, error) -> {
+                try {
+                    return task.run();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+
+            this.pendingChange = future.thenRun(() -> { });
+            return future;
+        }
+    }
+
+    /**
+     * @return completes, failed or not, once the changes submitted so far are done. A change
+     * submitted after it completes is recorded after them.
+     */
+    CompletableFuture<Void> getPendingChanges() {
+        synchronized (this.pendingChangeLock) {
+            return this.pendingChange.handle((ignored, error) -> null);
+        }
+    }
+
+    // called with journalLock held
+    private void appendHistory(DocumentMeta documentMeta) throws IOException {
+        int checkpointRecords = Math.max(DEFAULT_HISTORY_CHECKPOINT_RECORDS, historySize());
+
+        if (!this.historyJournalOpened || checkpointRecords <= this.historyJournalRecords) {
+            checkpointHistory();
+            return;
+        }
+
+        byte[] v = (documentMeta.toJsonString() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        Map<String, Object> versionHistoryJournalMeta = new HashMap<>();
+        versionHistoryJournalMeta.put("fileExtension", ".jsonl");
+
+        try {
+            this.persistentStoreDriver.append(this.packageName + ".versionHistoryJournal", v, versionHistoryJournalMeta);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to append versionHistoryJournal file: ", e);
+        }
+
+        this.historyJournalRecords += 1;
+    }
+
+    private int historySize() {
+        this.historyLock.readLock().lock();
+        try {
+            return this.versionHistoryCache.size();
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+    }
+
+    // called with journalLock held
+    private void checkpointHistory() throws IOException {
+        byte[] v;
+
+        this.historyLock.readLock().lock();
+        try {
+            v = this.versionHistoryCache.toSnapshot();
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+
+        Map<String, Object> versionHistorySnapshotMeta = new HashMap<>();
+
+        String timeStamp = DocumentMeta.formatTime(System.currentTimeMillis(), DocumentMeta.DEFAULT_MODIFIED_FORMAT);
+
+        versionHistorySnapshotMeta.put("modified", timeStamp);
+        versionHistorySnapshotMeta.put("fileExtension", ".bin");
+
+        try {
+            this.persistentStoreDriver.save(this.packageName + ".versionHistorySnapshot", v, versionHistorySnapshotMeta);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to save versionHistorySnapshot file: ", e);
+        }
+
+        // the checkpoint contains every record, start a new journal.
+        // A crash before the journal is truncated is fine, replay skips records already in the checkpoint
+        Map<String, Object> versionHistoryJournalMeta = new HashMap<>();
+        versionHistoryJournalMeta.put("fileExtension", ".jsonl");
+
+        try {
+            this.persistentStoreDriver.save(this.packageName + ".versionHistoryJournal", new byte[0], versionHistoryJournalMeta);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to truncate versionHistoryJournal file: ", e);
+        }
+
+        this.historyJournalOpened = true;
+        this.historyJournalRecords = 0;
+    }
+
+    private int replayHistoryJournal() throws IOException {
+        Map.Entry<byte[], DocumentMeta> data;
+
+        try {
+            data = this.persistentStoreDriver.load(this.packageName + ".versionHistoryJournal");
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        if (data.getKey() == null || data.getKey().length == 0) {
+            return 0;
+        }
+
+        Set<String> checkpointed = new HashSet<>();
+        for (HistoryRecord record : this.versionHistoryCache.getRecords()) {
+            checkpointed.add(record.key + "/" + record.id);
+        }
+
+        int records = 0;
+        String journal = new String(data.getKey(), StandardCharsets.UTF_8);
+
+        for (String line : journal.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            // the last line may be torn by a crash in the middle of an append
+            DocumentMeta documentMeta = DocumentMeta.create(line);
+            if (documentMeta == null) {
+                continue;
+            }
+
+            records += 1;
+
+            if (checkpointed.add(documentMeta.getKey() + "/" + documentMeta.getId())) {
+                this.versionHistoryCache.add(documentMeta);
+            }
+        }
+
+        return records;
+    }
+
+    public Map.Entry<byte[], DocumentMeta> find(String versionId) throws IllegalArgumentException, IOException {
+        return decodeBackup(this.persistentStoreDriver.load(getBackupKey(versionId)));
+    }
+
+    /**
+     * Same as find, the content is read from the returned channel, which the caller must close.
+     * A version stored as a delta is reconstructed in memory.
+     */
+    public Map.Entry<ReadableByteChannel, DocumentMeta> findChannel(String versionId) throws IllegalArgumentException, IOException {
+        return loadBackupChannel(getBackupKey(versionId));
+    }
+
+    Map.Entry<ReadableByteChannel, DocumentMeta> loadBackupChannel(String backupKey) throws IllegalArgumentException, IOException {
+        Map.Entry<ReadableByteChannel, DocumentMeta> result = this.persistentStoreDriver.loadChannel(backupKey);
+
+        if (result.getValue().getString(DELTA_BASE) == null) {
+            return result;
+        }
+
+        byte[] delta;
+        try (InputStream inputStream = Channels.newInputStream(result.getKey())) {
+            delta = readAll(inputStream);
+        }
+
+        Map.Entry<byte[], DocumentMeta> decoded = decodeBackup(new AbstractMap.SimpleEntry<>(delta, result.getValue()));
+        return new AbstractMap.SimpleEntry<>(
+                Channels.newChannel(new ByteArrayInputStream(decoded.getKey())), decoded.getValue());
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+
+        while ((n = inputStream.read(buffer)) != -1) {
+            content.write(buffer, 0, n);
+        }
+
+        return content.toByteArray();
+    }
+
+    public CompletableFuture<Map.Entry<byte[], DocumentMeta>> findAsync(String versionId,
+                                                                       AsyncPersistentStoreDriver asyncPersistentStoreDriver) {
+        String backupKey;
+
+        try {
+            backupKey = getBackupKey(versionId);
+        } catch (IllegalArgumentException | IOException e) {
+            CompletableFuture<Map.Entry<byte[], DocumentMeta>> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        return asyncPersistentStoreDriver.loadAsync(backupKey)
+                .thenCompose(backup -> decodeBackupAsync(backup, asyncPersistentStoreDriver));
+    }
+
+    private String getBackupKey(String versionId) throws IllegalArgumentException, IOException {
+        boolean found;
+
+        lockHistory();
+        try {
+            found = this.versionHistoryCache.contains(versionId);
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+
+        if (!found) {
+            throw new IllegalArgumentException("Can't find this version " + versionId);
+        }
+
+        return this.packageName + ".backups." + versionId;
+    }
+
+    private void rebuildVersions() {
+        this.versions.clear();
+        this.lastSaveDate.clear();
+
+        // oldest first, without parsing the records
+        for (HistoryRecord record : this.versionHistoryCache.getRecords()) {
+            updateVersions(record);
+        }
+    }
+
+    /**
+     * Folds record, the newest record of its key, into the versions returned by getAllVersions().
+     * The first save after autoSaveIntervalMilliSeconds starts a new version, later saves within
+     * the interval replace it.
+     */
+    private void updateVersions(HistoryRecord record) {
+        long current = record.modifiedTime;
+
+        if (current == DocumentMeta.INVALID_TIME) {
+            // TODO: log bad record
+            return;
+        }
+
+        ArrayList<HistoryRecord> l = this.versions.get(record.key);
+        if (l == null) {
+            l = new ArrayList<>();
+            this.versions.put(record.key, l);
+        }
+
+        Long last = this.lastSaveDate.get(record.key);
+
+        if (last == null || this.autoSaveIntervalMilliSeconds <= current - last) {
+            l.add(record);
+            this.lastSaveDate.put(record.key, current);
+        } else {
+            l.set(l.size() - 1, record);
+        }
+    }
+
+    public Map<String, DocumentMeta[]> getAllVersions() {
+        Map<String, DocumentMeta[]> ret = new HashMap<>();
+
+        lockHistoryUnchecked();
+        try {
+            for (String key : this.versions.keySet()) {
+                ret.put(key, versionsOf(key));
+            }
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+
+        return ret;
+    }
+
+    // TODO: Add getKeys() : string[]
+
+    public DocumentMeta[] getAllVersions(String key) {
+        lockHistoryUnchecked();
+        try {
+            return versionsOf(key);
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the newest version of key saved at time or before, or null if there is none
+     */
+    public DocumentMeta findAsOf(String key, long time) {
+        lockHistoryUnchecked();
+        try {
+            return this.versionHistoryCache.findAsOf(key, time);
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a page of the versions of key modified in [from, to), newest first. The versions are
+     * ordered by time already, so the page is found by binary search and only its versions are read.
+     *
+     * @param limit the most versions of the page
+     * @param cursor the next cursor of the previous page, or null for the first page
+     */
+    public HistoryPage query(String key, long from, long to, int limit, String cursor)
+            throws IllegalArgumentException {
+        if (limit < 1) {
+            throw new IllegalArgumentException("invalid limit " + limit);
+        }
+
+        long cursorTime = 0;
+        String cursorId = null;
+        if (cursor != null) {
+            cursorTime = HistoryPage.decodeCursorTime(cursor);
+            cursorId = HistoryPage.decodeCursorId(cursor);
+        }
+
+        lockHistoryUnchecked();
+        try {
+            ArrayList<HistoryRecord> l = this.versions.get(key);
+
+            if (l == null || to <= from) {
+                return new HistoryPage(new ArrayList<>(), null);
+            }
+
+            int start = VersionHistoryCache.lowerBound(l, from);
+            int end = VersionHistoryCache.lowerBound(l, to);
+
+            if (cursor != null && cursorTime < to) {
+                // the page ends before the last version returned. If it has been replaced
+                // meanwhile, before the first version of its time.
+                int position = VersionHistoryCache.lowerBound(l, cursorTime);
+                for (int i = position; i < l.size() && l.get(i).modifiedTime == cursorTime; ++i) {
+                    if (cursorId.equals(l.get(i).id)) {
+                        position = i;
+                        break;
+                    }
+                }
+
+                end = Math.min(end, position);
+            }
+
+            int last = Math.max(start, end - limit);
+            List<DocumentMeta> page = new ArrayList<>(Math.max(0, end - last));
+            for (int i = end - 1; i >= last; --i) {
+                page.add(l.get(i).getMeta());
+            }
+
+            String nextCursor = null;
+            if (start < last) {
+                HistoryRecord record = l.get(last);
+                nextCursor = HistoryPage.encodeCursor(record.modifiedTime, record.id);
+            }
+
+            return new HistoryPage(page, nextCursor);
+        } finally {
+            this.historyLock.readLock().unlock();
+        }
+    }
+
+    // called with historyLock held
+    private DocumentMeta[] versionsOf(String key) {
+        ArrayList<HistoryRecord> l = this.versions.get(key);
+
+        if (l == null) {
+            return new DocumentMeta[0];
+        }
+
+        DocumentMeta[] ret = new DocumentMeta[l.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = l.get(l.size() - 1 - i).getMeta();
+        }
+
+        return ret;
+    }
+}
+
+public class PersistentStoreManager {
+    static final String VERSION_ID_FORMAT = "yyyyMMddHHmmssSSS";
+
+    // the background pruner runs a round this often, deleting at most so many backups a round
+    static final long DEFAULT_PRUNE_INTERVAL_MILLI_SECONDS = 60 * 1000;
+    static final int DEFAULT_MAX_DELETES_PER_ROUND = 100;
+
+    // the pruner collects garbage of a driver at most this often, it may read every meta file
+    static final long DEFAULT_GARBAGE_COLLECTION_INTERVAL_MILLI_SECONDS = 60 * 60 * 1000;
+    private static final Map<PersistentStoreDriver, Long> LAST_GARBAGE_COLLECTION =
+            Collections.synchronizedMap(new WeakHashMap<PersistentStoreDriver, Long>());
+
+    // by the key of the current document, shared by all managers of the process, see concurrency above
+    private static final StripedLock LOCKS = new StripedLock();
+
+    private PersistentStoreDriver persistentStoreDriver;
+    private AsyncPersistentStoreDriver asyncPersistentStoreDriver;
+    private Executor executor;
+    private String packageName;
+
+    private Calendar calendarInstance;  // for internal testing
+    private volatile VersionIdGenerator versionIdGenerator;
+    private final VersionIdGenerator defaultVersionIdGenerator;
+
+    // the rounds of the background pruner, while there is a retention policy
+    private ScheduledFuture<?> pruneTask;
+    private volatile boolean garbage;
+    private BackupService backupService;
+
+    private volatile DocumentMeta currentDoc;
+
+    // the last restore submitted by restoreAsync, saveAsync waits for it
+    private final Object restoreLock = new Object();
+    private volatile CompletableFuture<?> pendingRestore = CompletableFuture.completedFuture(null);
+
+    // documents and backups with the same content share one payload
+    private volatile boolean contentAddressed = true;
+
+    // asks the driver to compress the current document, see DocumentMeta.COMPRESS
+    private volatile boolean compressCurrent = false;
+
+    public PersistentStoreManager(String packageName, PersistentStoreDriver persistentStoreDriver) {
+        this(packageName, persistentStoreDriver, PersistentStoreExecutors.getDefaultExecutor());
+    }
+
+    /**
+     * @param executor runs the I/O of the *Async methods, see PersistentStoreExecutors.newBoundedExecutor
+     */
+    public PersistentStoreManager(String packageName, PersistentStoreDriver persistentStoreDriver, Executor executor) {
+        this(packageName, persistentStoreDriver, executor, asyncDriver(persistentStoreDriver, executor));
+    }
+
+    /**
+     * @param asyncPersistentStoreDriver the async view of persistentStoreDriver, shared by the
+     *                                   managers of a PersistentStoreRegistry
+     */
+    PersistentStoreManager(String packageName, PersistentStoreDriver persistentStoreDriver, Executor executor,
+                           AsyncPersistentStoreDriver asyncPersistentStoreDriver) {
+        this.persistentStoreDriver = persistentStoreDriver;
+        this.packageName = packageName;
+        this.executor = executor;
+        this.asyncPersistentStoreDriver = asyncPersistentStoreDriver;
+
+        this.currentDoc = null;
+
+        calendarInstance = null;
+        this.defaultVersionIdGenerator = new MonotonicVersionIdGenerator();
+        this.versionIdGenerator = this.defaultVersionIdGenerator;
+        this.backupService = new BackupService(packageName, persistentStoreDriver);
+    }
+
+    static AsyncPersistentStoreDriver asyncDriver(PersistentStoreDriver persistentStoreDriver, Executor executor) {
+        if (persistentStoreDriver instanceof AsyncPersistentStoreDriver) {
+            return (AsyncPersistentStoreDriver) persistentStoreDriver;
+        }
+
+        return new ExecutorAsyncPersistentStoreDriver(persistentStoreDriver, executor);
+    }
+
+    public void init() throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> result = this.persistentStoreDriver.load(this.packageName + ".current");
+        this.currentDoc = result.getValue();
+
+        this.backupService.init();
+    }
+
+    /**
+     * Cheaper init for a PersistentStoreRegistry: reads the meta of the current document, not its
+     * content, and leaves the version history to be read on first use. A new package is empty.
+     */
+    void open() throws IOException {
+        try {
+            Map.Entry<ReadableByteChannel, DocumentMeta> current = this.persistentStoreDriver.loadChannel(this.packageName + ".current");
+            if (current.getKey() != null) {
+                current.getKey().close();
+            }
+
+            this.currentDoc = current.getValue();
+        } catch (NoSuchFileException e) {
+            this.currentDoc = null;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to open package " + this.packageName + ": ", e);
+        }
+
+        this.backupService.unload();
+    }
+
+    /**
+     * Drops the version history from memory until it's needed again.
+     */
+    void unloadHistory() {
+        this.backupService.unload();
+    }
+
+    boolean isHistoryLoaded() {
+        return this.backupService.isLoaded();
+    }
+
+    /**
+     * Backs up the saves held back by coalescing and waits for saveAsync and restoreAsync in
+     * progress, e.g. before a PersistentStoreRegistry lets go of the manager.
+     */
+    void awaitPendingWork() throws IOException {
+        this.backupService.flushPending();
+        this.backupService.getPendingChanges().join();
+    }
+
+    /**
+     * @return true if a new manager of the package would do the same: every setting is the default
+     * and no work is pending. A PersistentStoreRegistry only lets go of such a manager.
+     */
+    boolean isReplaceable() {
+        return this.backupService.getKeyframeInterval() <= 1
+                && this.backupService.isCompressBackups()
+                && !this.backupService.isCoalesceSaves()
+                && this.backupService.getRetentionPolicy() == null
+                && this.contentAddressed
+                && !this.compressCurrent
+                && this.versionIdGenerator == this.defaultVersionIdGenerator
+                && !this.backupService.hasPendingBackups()
+                && !this.backupService.hasPendingDeletes()
+                && this.backupService.getPendingChanges().isDone();
+    }
+
+    /**
+     * @param listener told when the history is read again after unloadHistory
+     */
+    void setHistoryLoadListener(Runnable listener) {
+        this.backupService.setLoadListener(listener);
+    }
+
+    // TODO: accept string format content
+    // TODO: accept json format content
+    public void save(byte[] content) throws IOException {
+        Lock lock = lock();
+        try {
+            DocumentMeta documentMeta = saveCurrent(content);
+            this.backupService.dataChanged(this.packageName + ".current", content, documentMeta.copy());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Locks the package for a write. Changes still pending from saveAsync and restoreAsync are
+     * done first, so the history stays in the order the current document was written.
+     */
+    private Lock lock() {
+        return lock(this.backupService::getPendingChanges);
+    }
+
+    /**
+     * Locks the package once pending is done. It's waited for unlocked, a pending restore takes the
+     * lock itself. saveAsync submits under the lock, so nothing it waits for is added meanwhile.
+     */
+    private Lock lock(Supplier<CompletableFuture<?>> pending) {
+        Lock lock = LOCKS.get(this.packageName + ".current");
+        lock.lock();
+
+        CompletableFuture<?> future;
+        while (!(future = pending.get()).isDone()) {
+            lock.unlock();
+            future.handle((ignored, error) -> null).join();
+            lock.lock();
+        }
+
+        return lock;
+    }
+
+    /**
+     * Same as save(byte[]), reading content as a stream, so the document is never held in memory.
+     * content is read once, into the backup, which is then copied to the current document. content
+     * is not closed.
+     */
+    public void save(ReadableByteChannel content) throws IOException {
+        String key = this.packageName + ".current";
+
+        Lock lock = lock();
+        try {
+            Date now = now();
+            DocumentMeta documentMeta = DocumentMeta.create(createMeta(key, options(now), now));
+
+            // streamed saves aren't coalesced, the one held back goes first
+            this.backupService.flushPending(key);
+            DocumentMeta backupMeta = this.backupService.backup(key, content, documentMeta.copy());
+
+            try (ReadableByteChannel backup = this.persistentStoreDriver
+                    .loadChannel(BackupService.getBackupKey(key, documentMeta.getId())).getKey()) {
+                this.currentDoc = this.persistentStoreDriver.save(key, backup, documentMeta);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("failed to save file for key(" + key + "): ", e);
+            }
+
+            this.backupService.recordChange(backupMeta);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void save(InputStream content) throws IOException {
+        save(Channels.newChannel(content));
+    }
+
+    /**
+     * Saves content as the current document on the caller's thread, then backs it up and records
+     * it in the version history on the executor.
+     *
+     * @return completes with the meta of the current document once the backup is done
+     */
+    public CompletableFuture<DocumentMeta> saveAsync(byte[] content) {
+        final DocumentMeta documentMeta;
+        final CompletableFuture<Void> change;
+
+        // the change is submitted under the lock, in the order the current document is written,
+        // after the restores submitted before
+        Lock lock = lock(() -> this.pendingRestore);
+        try {
+            documentMeta = saveCurrent(content);
+            change = this.backupService.dataChangedAsync(this.packageName + ".current", content, documentMeta.copy(), this.executor);
+        } catch (IllegalArgumentException | IOException e) {
+            CompletableFuture<DocumentMeta> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        } finally {
+            lock.unlock();
+        }
+
+        return change.thenApply(ignored -> documentMeta);
+    }
+
+    private Date now() {
+        Calendar calendar = this.calendarInstance;
+        if (this.calendarInstance == null) {
+            calendar = Calendar.getInstance();
+        }
+
+        return calendar.getTime();
+    }
+
+    private DocumentMeta saveCurrent(byte[] content) throws IOException {
+        Date now = now();
+
+        Map<String, Object> options = options(now);
+//        if (description != null) {
+//            options.put("description", description);
+//        }
+
+        DocumentMeta documentMeta = save(this.packageName + ".current", content, options, now, this.persistentStoreDriver);
+        this.currentDoc = documentMeta;
+
+        return documentMeta;
+    }
+
+    /**
+     * @return documentMeta, the meta of a backup, with the hints of the current document
+     */
+    private DocumentMeta currentMeta(DocumentMeta documentMeta) {
+        return documentMeta.put(DocumentMeta.COMPRESS, this.compressCurrent);
+    }
+
+    public byte[] restore(String versionId) throws IllegalArgumentException, IOException {
+        Lock lock = lock();
+        try {
+            return restoreLocked(versionId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the package locked
+    private byte[] restoreLocked(String versionId) throws IOException {
+        try {
+            Map.Entry<byte[], DocumentMeta> result = this.backupService.find(versionId);
+            this.currentDoc = this.persistentStoreDriver.save(this.packageName + ".current", result.getKey(), currentMeta(result.getValue()));
+            return result.getKey();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to restore file for id(" + versionId + "): ", e);
+        }
+    }
+
+    /**
+     * Same as restore, copying the version as a stream instead of returning its content.
+     *
+     * @return the meta of the restored current document
+     */
+    public DocumentMeta restoreVersion(String versionId) throws IOException {
+        Lock lock = lock();
+        try {
+            Map.Entry<ReadableByteChannel, DocumentMeta> result = this.backupService.findChannel(versionId);
+
+            try (ReadableByteChannel content = result.getKey()) {
+                this.currentDoc = this.persistentStoreDriver.save(this.packageName + ".current", content, currentMeta(result.getValue()));
+            }
+
+            return this.currentDoc;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to restore file for id(" + versionId + "): ", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as restore, on the executor, after the changes submitted by saveAsync and restoreAsync
+     * so far. Later writes of the package wait for it.
+     */
+    public CompletableFuture<byte[]> restoreAsync(final String versionId) {
+        synchronized (this.restoreLock) {
+            // in the chain of pending changes, so it can't wait for them under the lock
+            CompletableFuture<byte[]> future = this.backupService.submitPending(() -> {
+                Lock lock = LOCKS.get(this.packageName + ".current");
+                lock.lock();
+                try {
+                    return restoreLocked(versionId);
+                } finally {
+                    lock.unlock();
+                }
+            }, this.executor);
+
+            this.pendingRestore = future;
+            return future;
+        }
+    }
+
+    // TODO: return versionHistoryCache plus self information, like current used config, packetname ... etc
+    public Map<String, DocumentMeta[]> getAllVersions() {
+        return this.backupService.getAllVersions();
+    }
+
+    public DocumentMeta[] getAllVersions(String key) {
+        return this.backupService.getAllVersions(key);
+    }
+
+    /**
+     * Returns a page of the versions of key modified in [from, to), newest first. Pass the next
+     * cursor of a page to get the following, older, one.
+     *
+     * @param limit the most versions of the page
+     * @param cursor the next cursor of the previous page, or null for the first page
+     */
+    public HistoryPage queryVersions(String key, long from, long to, int limit, String cursor)
+            throws IllegalArgumentException {
+        return this.backupService.query(key, from, to, limit, cursor);
+    }
+
+    public HistoryPage queryVersions(String key, int limit, String cursor) throws IllegalArgumentException {
+        return queryVersions(key, Long.MIN_VALUE, Long.MAX_VALUE, limit, cursor);
+    }
+
+    /**
+     * Returns the version of key that was current at time, the newest saved at time or before.
+     * Every save counts, including those within autoSaveIntervalMilliSeconds that getAllVersions
+     * folds into one version.
+     *
+     * @param time milliseconds since 1970
+     * @return the meta of the version, or null if key had no version yet at time
+     */
+    public DocumentMeta getVersionAsOf(String key, long time) {
+        return this.backupService.findAsOf(key, time);
+    }
+
+    /**
+     * Restores the version of key that was current at time, see getVersionAsOf.
+     *
+     * @return the meta of the restored current document
+     */
+    public DocumentMeta restoreAsOf(String key, long time) throws IOException {
+        DocumentMeta documentMeta = getVersionAsOf(key, time);
+
+        if (documentMeta == null) {
+            throw new IOException("failed to restore file as of " + time + ": no version of " + key);
+        }
+
+        return restoreVersion(documentMeta.getId());
+    }
+
+    public String getCurrentVersionId() {
+        if (this.currentDoc == null) {
+            return null;
+        }
+
+        return this.currentDoc.getId();
+    }
+
+    public byte[] getCurrentVersionContent() {
+        if (this.currentDoc == null) {
+            return null;
+        }
+
+        try {
+            Map.Entry<byte[], DocumentMeta> result = this.persistentStoreDriver.load(this.packageName + ".current");
+            return result.getKey();
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    public byte[] getVersionContent(String versionId) {
+        try {
+            Map.Entry<byte[], DocumentMeta> result = this.backupService.decodeBackup(
+                    this.persistentStoreDriver.load(this.packageName + ".backups." + versionId));
+            return result.getKey();
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a channel of the content, which the caller must close, or null if there is no
+     * current document
+     */
+    public ReadableByteChannel openCurrentVersionContent() throws IOException {
+        if (this.currentDoc == null) {
+            return null;
+        }
+
+        return openContent(this.packageName + ".current");
+    }
+
+    /**
+     * @return a channel of the content, which the caller must close
+     */
+    public ReadableByteChannel openVersionContent(String versionId) throws IOException {
+        String key = this.packageName + ".backups." + versionId;
+
+        try {
+            return this.backupService.loadBackupChannel(key).getKey();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to load file for key(" + key + "): ", e);
+        }
+    }
+
+    private ReadableByteChannel openContent(String key) throws IOException {
+        try {
+            return this.persistentStoreDriver.loadChannel(key).getKey();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("failed to load file for key(" + key + "): ", e);
+        }
+    }
+
+    /**
+     * Same as getCurrentVersionContent, without copying the content when the driver can avoid it.
+     *
+     * @return a read-only buffer of the content, or null if it can't be loaded
+     */
+    public ByteBuffer getCurrentVersionBuffer() {
+        if (this.currentDoc == null) {
+            return null;
+        }
+
+        return getBuffer(this.packageName + ".current");
+    }
+
+    /**
+     * @return a read-only buffer of the content, or null if it can't be loaded
+     */
+    public ByteBuffer getVersionBuffer(String versionId) {
+        try {
+            Map.Entry<ByteBuffer, DocumentMeta> result = this.persistentStoreDriver.loadBuffer(this.packageName + ".backups." + versionId);
+
+            if (result.getValue().getString(BackupService.DELTA_BASE) == null) {
+                return result.getKey();
+            }
+
+            byte[] delta = new byte[result.getKey().remaining()];
+            result.getKey().get(delta);
+
+            return ByteBuffer.wrap(this.backupService.decodeBackup(
+                    new AbstractMap.SimpleEntry<>(delta, result.getValue())).getKey()).asReadOnlyBuffer();
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    private ByteBuffer getBuffer(String key) {
+        try {
+            return this.persistentStoreDriver.loadBuffer(key).getKey();
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return completes with the content, or null if it can't be loaded
+     */
+    public CompletableFuture<byte[]> getCurrentVersionContentAsync() {
+        if (this.currentDoc == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return getContentAsync(this.packageName + ".current");
+    }
+
+    /**
+     * @return completes with the content, or null if it can't be loaded
+     */
+    public CompletableFuture<byte[]> getVersionContentAsync(String versionId) {
+        return this.asyncPersistentStoreDriver.loadAsync(this.packageName + ".backups." + versionId)
+                .thenCompose(backup -> this.backupService.decodeBackupAsync(backup, this.asyncPersistentStoreDriver))
+                .handle((result, e) -> (e == null) ? result.getKey() : null);
+    }
+
+    private CompletableFuture<byte[]> getContentAsync(String key) {
+        return this.asyncPersistentStoreDriver.loadAsync(key)
+                .handle((result, e) -> (e == null) ? result.getKey() : null);
+    }
+
+    public int getKeyframeInterval() {
+        return this.backupService.getKeyframeInterval();
+    }
+
+    /**
+     * Backs up versions as deltas: every keyframeInterval-th backup of the document is a full
+     * copy and the ones in between are stored as a delta against it, so restoring any version
+     * reads at most two files. 0 or 1, the default, backs up every version as a full copy.
+     */
+    public void setKeyframeInterval(int keyframeInterval) {
+        this.backupService.setKeyframeInterval(keyframeInterval);
+    }
+
+    public boolean isCompressBackups() {
+        return this.backupService.isCompressBackups();
+    }
+
+    /**
+     * Asks the driver to compress backups, on by default. The driver decides whether a document
+     * is worth it, see FilePersistentStoreDriver.setCompressionThreshold.
+     */
+    public void setCompressBackups(boolean compressBackups) {
+        this.backupService.setCompressBackups(compressBackups);
+    }
+
+    public boolean isCoalesceSaves() {
+        return this.backupService.isCoalesceSaves();
+    }
+
+    /**
+     * Coalesces saves at write time, off by default. A save within autoSaveIntervalMilliSeconds
+     * of the version it belongs to is written to the current document only. Its backup is held in
+     * memory, replaced by the next save of the interval, and written on the executor when the
+     * interval ends, or before the next save of the document that isn't held back. A burst of
+     * saves then costs two backups, and getAllVersions lists the same versions as without.
+     *
+     * Until then getAllVersions and getVersionAsOf don't know the saves held back, and they are
+     * lost from the history, not from the current document, if the process stops. Turning it off
+     * writes them right away, see also flushPendingBackups.
+     */
+    public void setCoalesceSaves(boolean coalesceSaves) throws IOException {
+        this.backupService.setCoalesceSaves(coalesceSaves, this.executor);
+    }
+
+    /**
+     * Writes the backups held back by setCoalesceSaves now, e.g. before shutting down.
+     */
+    public void flushPendingBackups() throws IOException {
+        this.backupService.flushPending();
+    }
+
+    public boolean isCompressCurrent() {
+        return this.compressCurrent;
+    }
+
+    /**
+     * Asks the driver to compress the current document too, off by default.
+     */
+    public void setCompressCurrent(boolean compressCurrent) {
+        this.compressCurrent = compressCurrent;
+    }
+
+    public boolean isContentAddressed() {
+        return this.contentAddressed;
+    }
+
+    public void setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+    }
+
+    // the meta of a version saved at now
+    private Map<String, Object> options(Date now) {
+        Map<String, Object> options = new HashMap<>();
+        options.put("id", this.versionIdGenerator.nextId(now.getTime()));
+
+        if (this.contentAddressed) {
+            options.put(DocumentMeta.CONTENT_ADDRESSED, true);
+        }
+
+        if (this.compressCurrent) {
+            options.put(DocumentMeta.COMPRESS, true);
+        }
+
+        return options;
+    }
+
+    public RetentionPolicy getRetentionPolicy() {
+        return this.backupService.getRetentionPolicy();
+    }
+
+    /**
+     * Sets which versions to keep, null, the default, keeps them all. Versions the policy doesn't
+     * keep are dropped by a background pruner every DEFAULT_PRUNE_INTERVAL_MILLI_SECONDS on the
+     * executor, which deletes DEFAULT_MAX_DELETES_PER_ROUND of their backups at most a round, so
+     * it never competes with saves for long. A history dropped from memory by a
+     * PersistentStoreRegistry is read for the round and dropped again. A round is skipped while
+     * the executor is full, but run on the scheduler after a few skipped in a row, e.g. by an
+     * executor running tasks on the submitting thread. See also pruneHistory.
+     */
+    public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+        this.backupService.setRetentionPolicy(retentionPolicy);
+
+        if (retentionPolicy == null && this.pruneTask != null) {
+            this.pruneTask.cancel(false);
+            this.pruneTask = null;
+        } else if (retentionPolicy != null && this.pruneTask == null) {
+            this.pruneTask = PersistentStoreExecutors.getScheduler().scheduleWithFixedDelay(
+                    PersistentStoreExecutors.handOffPeriodically(this.executor, this::pruneRound),
+                    DEFAULT_PRUNE_INTERVAL_MILLI_SECONDS, DEFAULT_PRUNE_INTERVAL_MILLI_SECONDS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // a round of the background pruner
+    void pruneRound() {
+        try {
+            if (this.backupService.prune(now().getTime(), DEFAULT_MAX_DELETES_PER_ROUND, false) > 0) {
+                this.garbage = true;
+            }
+
+            if (this.garbage && !this.backupService.hasPendingDeletes()) {
+                long now = System.currentTimeMillis();
+                Long last = LAST_GARBAGE_COLLECTION.get(this.persistentStoreDriver);
+
+                if (last == null || DEFAULT_GARBAGE_COLLECTION_INTERVAL_MILLI_SECONDS <= now - last) {
+                    LAST_GARBAGE_COLLECTION.put(this.persistentStoreDriver, now);
+                    this.garbage = false;
+                    this.persistentStoreDriver.collectGarbage();
+                }
+            }
+        } catch (IOException e) {
+            // TODO: log, tried again next round
+        }
+    }
+
+    /**
+     * Drops the versions the retention policy doesn't keep now and deletes their backups, then
+     * collects the garbage of the driver.
+     *
+     * @return the number of versions dropped
+     */
+    public int pruneHistory() throws IOException {
+        int dropped = this.backupService.prune(now().getTime(), Integer.MAX_VALUE);
+
+        this.garbage = false;
+        this.persistentStoreDriver.collectGarbage();
+
+        return dropped;
+    }
+
+    public VersionIdGenerator getVersionIdGenerator() {
+        return this.versionIdGenerator;
+    }
+
+    /**
+     * Replaces the MonotonicVersionIdGenerator making the ids of new versions. A generator must
+     * not be shared by packages saving the same ids, unless it's thread-safe.
+     */
+    public void setVersionIdGenerator(VersionIdGenerator versionIdGenerator) {
+        this.versionIdGenerator = versionIdGenerator;
+    }
+
+    protected void setCalendarInstance(Calendar calendarInstance) {
+        this.calendarInstance = calendarInstance;
+    }
+
+    public static DocumentMeta save(String key, byte[] content, Date now, PersistentStoreDriver persistentStoreDriver)
             throws IOException {
         return save(key, content, new HashMap<String, Object>(), now, persistentStoreDriver);
     }
 
+    /**
+     * Saves the content of many packages, one entry per package, at once. The current documents
+     * of all packages sharing a driver are written as one batch, then their backups as another,
+     * so the driver can group the commits. Every package is locked for the whole batch.
+     *
+     * @return the meta of the current document of each package
+     */
+    public static Map<PersistentStoreManager, DocumentMeta> saveAll(Map<PersistentStoreManager, byte[]> contents)
+            throws IOException {
+        Set<String> keys = new HashSet<>();
+        for (PersistentStoreManager mgr : contents.keySet()) {
+            keys.add(mgr.packageName + ".current");
+        }
+
+        // in stripe order, so batches sharing packages don't deadlock
+        List<Lock> locks = LOCKS.getAll(keys);
+        for (;;) {
+            for (Lock lock : locks) {
+                lock.lock();
+            }
+
+            // pending changes are waited for unlocked, as in lock()
+            CompletableFuture<?> pending = null;
+            for (PersistentStoreManager mgr : contents.keySet()) {
+                CompletableFuture<?> future = mgr.backupService.getPendingChanges();
+                if (!future.isDone()) {
+                    pending = future;
+                    break;
+                }
+            }
+
+            if (pending == null) {
+                break;
+            }
+
+            for (int i = locks.size() - 1; 0 <= i; --i) {
+                locks.get(i).unlock();
+            }
+
+            pending.join();
+        }
+
+        try {
+            return saveAllLocked(contents);
+        } finally {
+            for (int i = locks.size() - 1; 0 <= i; --i) {
+                locks.get(i).unlock();
+            }
+        }
+    }
+
+    private static Map<PersistentStoreManager, DocumentMeta> saveAllLocked(Map<PersistentStoreManager, byte[]> contents)
+            throws IOException {
+        Map<PersistentStoreDriver, List<PersistentStoreManager>> groups = new IdentityHashMap<>();
+
+        for (PersistentStoreManager mgr : contents.keySet()) {
+            List<PersistentStoreManager> group = groups.get(mgr.persistentStoreDriver);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(mgr.persistentStoreDriver, group);
+            }
+
+            group.add(mgr);
+        }
+
+        Map<PersistentStoreManager, DocumentMeta> result = new LinkedHashMap<>();
+
+        for (Map.Entry<PersistentStoreDriver, List<PersistentStoreManager>> group : groups.entrySet()) {
+            PersistentStoreDriver persistentStoreDriver = group.getKey();
+
+            Map<String, Map.Entry<byte[], DocumentMeta>> currents = new LinkedHashMap<>();
+            for (PersistentStoreManager mgr : group.getValue()) {
+                String key = mgr.packageName + ".current";
+                Date now = mgr.now();
+                DocumentMeta documentMeta = DocumentMeta.create(createMeta(key, mgr.options(now), now));
+
+                currents.put(key, new AbstractMap.SimpleEntry<>(contents.get(mgr), documentMeta));
+            }
+
+            Map<String, DocumentMeta> saved = persistentStoreDriver.saveAll(currents);
+
+            // the keyframes of the packages, from encodeBackup to backupStored, taken at once in
+            // stripe order
+            List<Lock> keyLocks = BackupService.lockKeys(currents.keySet());
+
+            for (Lock lock : keyLocks) {
+                lock.lock();
+            }
+
+            try {
+                Map<String, Map.Entry<byte[], DocumentMeta>> backups = new LinkedHashMap<>();
+                for (PersistentStoreManager mgr : group.getValue()) {
+                    String key = mgr.packageName + ".current";
+                    DocumentMeta documentMeta = saved.get(key);
+
+                    mgr.currentDoc = documentMeta;
+                    result.put(mgr, documentMeta);
+
+                    // saveAll isn't coalesced, the save held back goes first
+                    mgr.backupService.flushPending(key);
+
+                    DocumentMeta backupMeta = documentMeta.copy();
+                    byte[] stored = mgr.backupService.encodeBackup(key, contents.get(mgr), backupMeta);
+
+                    backups.put(BackupService.getBackupKey(key, documentMeta.getId()),
+                            new AbstractMap.SimpleEntry<>(stored, backupMeta));
+                }
+
+                try {
+                    persistentStoreDriver.saveAll(backups);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("failed to backup files: ", e);
+                }
+
+                for (PersistentStoreManager mgr : group.getValue()) {
+                    String key = mgr.packageName + ".current";
+                    String backupKey = BackupService.getBackupKey(key, saved.get(key).getId());
+                    DocumentMeta backupMeta = backups.get(backupKey).getValue();
+
+                    mgr.backupService.backupStored(key, contents.get(mgr), backupMeta);
+                    mgr.backupService.recordChange(backupMeta);
+                }
+            } finally {
+                for (int i = keyLocks.size() - 1; 0 <= i; --i) {
+                    keyLocks.get(i).unlock();
+                }
+            }
+        }
+
+        return result;
+    }
+
     public static DocumentMeta save(String key, byte[] content, Map<String, Object> meta, Date now, PersistentStoreDriver persistentStoreDriver)
             throws IOException {
+        return persistentStoreDriver.save(key, content, createMeta(key, meta, now));
+    }
+
+    static Map<String, Object> createMeta(String key, Map<String, Object> meta, Date now) {
         Map<String, Object> metaClone = new HashMap<>(meta);
 
-        String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(now);
-        String id = new SimpleDateFormat("yyyyMMddHHmmssSSS").format(now);
+        String timeStamp = DocumentMeta.formatTime(now.getTime(), DocumentMeta.DEFAULT_MODIFIED_FORMAT);
+        String id = DocumentMeta.formatTime(now.getTime(), VERSION_ID_FORMAT);
 
         // TODO: meta file should have version control
 
@@ -444,9 +2446,9 @@ public class PersistentStoreManager {
         metaClone.putIfAbsent("id", id);
         metaClone.putIfAbsent("key", key);
         metaClone.putIfAbsent("modified", timeStamp);
-        metaClone.putIfAbsent("modifiedFormat", "yyyy-MM-dd HH:mm:ss.SSS");
+        metaClone.putIfAbsent("modifiedFormat", DocumentMeta.DEFAULT_MODIFIED_FORMAT);
         metaClone.putIfAbsent("fileExtension", ".json");
 
-        return persistentStoreDriver.save(key, content, metaClone);
+        return metaClone;
     }
 }
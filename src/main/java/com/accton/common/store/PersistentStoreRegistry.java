@@ -0,0 +1,291 @@
+package com.accton.common.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PersistentStoreManagers of many packages over one driver, opened on demand.
+ *
+ * A package is opened by its first get, which reads the meta of its current document only, the
+ * version history is read when first needed. The history of a package not used for
+ * idleMilliSeconds, or beyond the maxLoadedPackages most recently used, is dropped from memory and
+ * read again on next use, so memory and startup follow the active packages, not all of them.
+ *
+ * The managers share the driver, the executor and its async view. To share a cache as well, pass a
+ * CachingPersistentStoreDriver. get returns the same manager for a package as long as it's in use
+ * or kept by a caller. Once the history of a package is dropped, its pending backups are written
+ * and its async writes waited for, and the registry holds its manager weakly from then on, so the
+ * managers of idle packages nobody keeps are collected, with their BackupService. A manager whose
+ * settings differ from a new one's, e.g. coalesceSaves or a retention policy, or with work still
+ * pending, stays held, so a later get never returns a manager that behaves differently.
+ */
+public class PersistentStoreRegistry implements Closeable {
+    public static final int DEFAULT_MAX_LOADED_PACKAGES = 256;
+    public static final long DEFAULT_IDLE_MILLI_SECONDS = 10 * 60 * 1000;
+
+    private final PersistentStoreDriver persistentStoreDriver;
+    private final Executor executor;
+    private final AsyncPersistentStoreDriver asyncPersistentStoreDriver;
+
+    private final int maxLoadedPackages;
+    private final long idleMilliSeconds;
+
+    private final ConcurrentHashMap<String, PersistentStoreManager> managers;
+
+    // managers of packages whose history was dropped, until collected
+    private final ConcurrentHashMap<String, ReleasedManager> released;
+    private final ReferenceQueue<PersistentStoreManager> collected;
+
+    // packages whose history may be in memory by the time of their last use, least recently used first
+    private final LinkedHashMap<String, Long> lastUsed;
+
+    private ScheduledExecutorService evictionService;
+
+    public PersistentStoreRegistry(PersistentStoreDriver persistentStoreDriver) {
+        this(persistentStoreDriver, PersistentStoreExecutors.getDefaultExecutor(), DEFAULT_MAX_LOADED_PACKAGES,
+                DEFAULT_IDLE_MILLI_SECONDS);
+    }
+
+    /**
+     * @param executor runs the I/O of the *Async methods of every manager
+     * @param maxLoadedPackages the most packages with their history in memory
+     * @param idleMilliSeconds the history of a package unused for so long is dropped, 0 never
+     */
+    public PersistentStoreRegistry(PersistentStoreDriver persistentStoreDriver, Executor executor,
+                                   int maxLoadedPackages, long idleMilliSeconds) {
+        if (maxLoadedPackages < 1 || idleMilliSeconds < 0) {
+            throw new IllegalArgumentException("invalid registry size (" + maxLoadedPackages + ", " + idleMilliSeconds + ")");
+        }
+
+        this.persistentStoreDriver = persistentStoreDriver;
+        this.executor = executor;
+        this.asyncPersistentStoreDriver = PersistentStoreManager.asyncDriver(persistentStoreDriver, executor);
+        this.maxLoadedPackages = maxLoadedPackages;
+        this.idleMilliSeconds = idleMilliSeconds;
+        this.managers = new ConcurrentHashMap<>();
+        this.released = new ConcurrentHashMap<>();
+        this.collected = new ReferenceQueue<>();
+        this.lastUsed = new LinkedHashMap<>(16, 0.75f, true);
+
+        if (idleMilliSeconds > 0) {
+            this.evictionService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "persistent-store-registry-eviction");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            this.evictionService.scheduleWithFixedDelay(this::evictIdle, idleMilliSeconds, idleMilliSeconds,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public PersistentStoreDriver getPersistentStoreDriver() {
+        return this.persistentStoreDriver;
+    }
+
+    /**
+     * @return the manager of packageName, opened by the first call
+     */
+    public PersistentStoreManager get(String packageName) throws IOException {
+        purge();
+
+        // a released manager still kept somewhere is taken back, there is never a second one
+        PersistentStoreManager mgr = this.managers.computeIfAbsent(packageName, this::reclaim);
+
+        if (mgr == null) {
+            PersistentStoreManager opened = new PersistentStoreManager(packageName, this.persistentStoreDriver,
+                    this.executor, this.asyncPersistentStoreDriver);
+            opened.open();
+
+            // a manager kept by the caller reads its history again without asking the registry
+            opened.setHistoryLoadListener(() -> loaded(packageName));
+
+            // another thread may have opened it meanwhile, its manager wins
+            mgr = this.managers.putIfAbsent(packageName, opened);
+            if (mgr == null) {
+                mgr = opened;
+            }
+        }
+
+        used(packageName);
+        return mgr;
+    }
+
+    /**
+     * @return the packages whose manager is open, in use or kept by a caller
+     */
+    public Set<String> getPackages() {
+        purge();
+
+        Set<String> packages = new HashSet<>(this.managers.keySet());
+        for (ReleasedManager reference : this.released.values()) {
+            if (reference.get() != null) {
+                packages.add(reference.packageName);
+            }
+        }
+
+        return Collections.unmodifiableSet(packages);
+    }
+
+    /**
+     * @return the number of managers the registry holds, not counting those only kept by callers
+     */
+    int getHeldCount() {
+        return this.managers.size();
+    }
+
+    /**
+     * @return the number of packages whose history may be in memory
+     */
+    public synchronized int getLoadedCount() {
+        return this.lastUsed.size();
+    }
+
+    private void used(String packageName) {
+        List<String> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            this.lastUsed.put(packageName, System.currentTimeMillis());
+            evictOverflow(evicted);
+        }
+
+        unload(evicted);
+    }
+
+    // called with the history of the package locked, the next get or evictIdle trims the rest
+    private synchronized void loaded(String packageName) {
+        this.lastUsed.put(packageName, System.currentTimeMillis());
+
+        // a manager read again by a caller that kept it is held again
+        this.managers.computeIfAbsent(packageName, this::reclaim);
+    }
+
+    // called with the entry of packageName in managers locked
+    private PersistentStoreManager reclaim(String packageName) {
+        ReleasedManager reference = this.released.remove(packageName);
+        return (reference != null) ? reference.get() : null;
+    }
+
+    private void purge() {
+        for (Reference<? extends PersistentStoreManager> reference; (reference = this.collected.poll()) != null;) {
+            ReleasedManager releasedManager = (ReleasedManager) reference;
+            this.released.remove(releasedManager.packageName, releasedManager);
+        }
+    }
+
+    // called with the registry locked
+    private void evictOverflow(List<String> evicted) {
+        for (Iterator<String> iterator = this.lastUsed.keySet().iterator();
+             this.maxLoadedPackages < this.lastUsed.size() && iterator.hasNext();) {
+            evicted.add(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops the history of the packages not used for idleMilliSeconds, or beyond the
+     * maxLoadedPackages most recently used, also run periodically.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<String> evicted = new ArrayList<>();
+
+        synchronized (this) {
+            evictOverflow(evicted);
+
+            for (Iterator<Map.Entry<String, Long>> iterator = this.lastUsed.entrySet().iterator();
+                 0 < this.idleMilliSeconds && iterator.hasNext();) {
+                Map.Entry<String, Long> entry = iterator.next();
+
+                // least recently used first, the rest is newer
+                if (now - entry.getValue() < this.idleMilliSeconds) {
+                    break;
+                }
+
+                evicted.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        unload(evicted);
+    }
+
+    // outside the registry lock, unloading waits for writes of the package in progress
+    private void unload(List<String> packageNames) {
+        purge();
+
+        for (String packageName : packageNames) {
+            PersistentStoreManager mgr = this.managers.get(packageName);
+            if (mgr == null) {
+                ReleasedManager reference = this.released.get(packageName);
+                mgr = (reference != null) ? reference.get() : null;
+            }
+
+            if (mgr != null) {
+                try {
+                    // written before the history is dropped, recording them would read it again
+                    mgr.awaitPendingWork();
+                } catch (IOException e) {
+                    // TODO: log, kept held, the next save of the package tries again
+                    mgr.unloadHistory();
+                    continue;
+                }
+
+                mgr.unloadHistory();
+                release(packageName, mgr);
+            }
+        }
+    }
+
+    // held weakly from now on, unless the package was used again meanwhile, or a new manager
+    // wouldn't replace it
+    private synchronized void release(String packageName, PersistentStoreManager mgr) {
+        if (this.lastUsed.containsKey(packageName) || !mgr.isReplaceable()) {
+            return;
+        }
+
+        this.managers.computeIfPresent(packageName, (name, held) -> {
+            if (held != mgr) {
+                return held;
+            }
+
+            this.released.put(name, new ReleasedManager(name, mgr, this.collected));
+            return null;
+        });
+    }
+
+    private static class ReleasedManager extends WeakReference<PersistentStoreManager> {
+        final String packageName;
+
+        ReleasedManager(String packageName, PersistentStoreManager mgr, ReferenceQueue<PersistentStoreManager> queue) {
+            super(mgr, queue);
+            this.packageName = packageName;
+        }
+    }
+
+    /**
+     * Stops the periodic eviction. The managers stay usable, the driver isn't closed.
+     */
+    @Override
+    public void close() {
+        if (this.evictionService != null) {
+            this.evictionService.shutdown();
+        }
+    }
+}
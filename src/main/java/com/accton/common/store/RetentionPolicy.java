@@ -0,0 +1,136 @@
+package com.accton.common.store;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which versions of a document to keep, see PersistentStoreManager.setRetentionPolicy.
+ *
+ * A version is dropped once it's older than maxAgeMilliSeconds, or beyond the maxCount newest.
+ * Tiers thin out older versions: from a tier's age on, only the newest version of each of its
+ * intervals is kept. tiered() keeps all versions of the last day, one per hour of the last week
+ * and one per day before.
+ *
+ * The newest version of a document is always kept, and so is every keyframe a kept version is a
+ * delta of.
+ */
+public final class RetentionPolicy {
+    public static final long HOUR_MILLI_SECONDS = 60 * 60 * 1000;
+    public static final long DAY_MILLI_SECONDS = 24 * HOUR_MILLI_SECONDS;
+    public static final long WEEK_MILLI_SECONDS = 7 * DAY_MILLI_SECONDS;
+
+    private final int maxCount;
+    private final long maxAgeMilliSeconds;
+
+    // ordered by age
+    private final List<long[]> tiers;
+
+    /**
+     * @param maxCount the most versions kept of a document, 0 for any
+     * @param maxAgeMilliSeconds the oldest version kept, 0 for any
+     */
+    public RetentionPolicy(int maxCount, long maxAgeMilliSeconds) {
+        this(maxCount, maxAgeMilliSeconds, Collections.<long[]>emptyList());
+    }
+
+    private RetentionPolicy(int maxCount, long maxAgeMilliSeconds, List<long[]> tiers) {
+        if (maxCount < 0 || maxAgeMilliSeconds < 0) {
+            throw new IllegalArgumentException("invalid retention (" + maxCount + ", " + maxAgeMilliSeconds + ")");
+        }
+
+        this.maxCount = maxCount;
+        this.maxAgeMilliSeconds = maxAgeMilliSeconds;
+        this.tiers = tiers;
+    }
+
+    /**
+     * @return all versions of the last day, hourly ones of the last week, daily ones before
+     */
+    public static RetentionPolicy tiered() {
+        return new RetentionPolicy(0, 0)
+                .thin(DAY_MILLI_SECONDS, HOUR_MILLI_SECONDS)
+                .thin(WEEK_MILLI_SECONDS, DAY_MILLI_SECONDS);
+    }
+
+    /**
+     * @return this policy, keeping one version per intervalMilliSeconds of the versions older than
+     * ageMilliSeconds
+     */
+    public RetentionPolicy thin(long ageMilliSeconds, long intervalMilliSeconds) {
+        if (ageMilliSeconds < 0 || intervalMilliSeconds <= 0) {
+            throw new IllegalArgumentException("invalid tier (" + ageMilliSeconds + ", " + intervalMilliSeconds + ")");
+        }
+
+        List<long[]> tiers = new ArrayList<>(this.tiers);
+        int i = 0;
+        while (i < tiers.size() && tiers.get(i)[0] <= ageMilliSeconds) {
+            ++i;
+        }
+        tiers.add(i, new long[] {ageMilliSeconds, intervalMilliSeconds});
+
+        return new RetentionPolicy(this.maxCount, this.maxAgeMilliSeconds, Collections.unmodifiableList(tiers));
+    }
+
+    public int getMaxCount() {
+        return this.maxCount;
+    }
+
+    public long getMaxAgeMilliSeconds() {
+        return this.maxAgeMilliSeconds;
+    }
+
+    /**
+     * @param modifiedTimes the modified times of the versions of a document, oldest first
+     * @param now the time the ages are measured from
+     * @return the indexes of the versions to drop, keyframes aside
+     */
+    BitSet select(long[] modifiedTimes, long now) {
+        BitSet dropped = new BitSet(modifiedTimes.length);
+        int kept = 0;
+        int tier = -1;
+        long bucket = 0;
+
+        // newest first, the newest of each interval is seen first
+        for (int i = modifiedTimes.length - 1; i >= 0; --i) {
+            long modifiedTime = modifiedTimes[i];
+            long age = now - modifiedTime;
+
+            boolean newest = (kept == 0);
+
+            if (!newest && ((this.maxAgeMilliSeconds > 0 && age > this.maxAgeMilliSeconds)
+                    || (this.maxCount > 0 && kept >= this.maxCount))) {
+                dropped.set(i);
+                continue;
+            }
+
+            int t = tierOf(age);
+            if (t >= 0) {
+                long b = Math.floorDiv(modifiedTime, this.tiers.get(t)[1]);
+
+                if (!newest && t == tier && b == bucket) {
+                    dropped.set(i);
+                    continue;
+                }
+
+                tier = t;
+                bucket = b;
+            }
+
+            ++kept;
+        }
+
+        return dropped;
+    }
+
+    // the last tier age is in, -1 if none
+    private int tierOf(long age) {
+        int t = -1;
+        while (t + 1 < this.tiers.size() && this.tiers.get(t + 1)[0] <= age) {
+            ++t;
+        }
+
+        return t;
+    }
+}
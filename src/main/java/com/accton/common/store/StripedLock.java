@@ -0,0 +1,63 @@
+package com.accton.common.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by any number of keys, a key always maps to the same lock. Writers of
+ * different keys seldom share a lock, so they don't wait for each other, and the number of locks
+ * doesn't grow with the number of keys.
+ */
+final class StripedLock {
+    static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] locks;
+
+    StripedLock(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+
+        this.locks = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    private int indexOf(String key) {
+        // spread the hash, String.hashCode differs mostly in the low bits of similar keys
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % this.locks.length;
+    }
+
+    Lock get(String key) {
+        return this.locks[indexOf(key)];
+    }
+
+    /**
+     * @return the locks of keys, each once, in the same order for every caller. Taking them in
+     * this order can't deadlock with another caller doing the same.
+     */
+    List<Lock> getAll(Collection<String> keys) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (String key : keys) {
+            indexes.add(indexOf(key));
+        }
+
+        List<Lock> result = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            result.add(this.locks[index]);
+        }
+
+        return result;
+    }
+}
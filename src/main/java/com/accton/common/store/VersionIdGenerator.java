@@ -0,0 +1,13 @@
+package com.accton.common.store;
+
+/**
+ * Makes the ids of the versions of a package. The id names the backup of the version, so two
+ * versions of a package must never get the same one, and ids sort as the versions were saved.
+ */
+public interface VersionIdGenerator {
+    /**
+     * @param time the time the version is saved, milliseconds since 1970
+     * @return an id unique to the package, greater than the ids returned before
+     */
+    String nextId(long time);
+}
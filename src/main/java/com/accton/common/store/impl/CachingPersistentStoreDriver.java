@@ -0,0 +1,241 @@
+package com.accton.common.store.impl;
+
+import com.accton.common.store.DocumentMeta;
+import com.accton.common.store.PersistentStoreDriver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recently loaded documents of a PersistentStoreDriver in memory, up to maxBytes.
+ *
+ * Documents are cached by load and dropped by every write to their key, the next load reads them
+ * again. Callers get copies, the cached value and meta are never handed out (loadBuffer returns a
+ * read-only view).
+ */
+public class CachingPersistentStoreDriver implements PersistentStoreDriver {
+    // rough heap cost of a cached entry besides its value, mostly the meta
+    static final int ENTRY_OVERHEAD_BYTES = 512;
+
+    private PersistentStoreDriver persistentStoreDriver;
+    private long maxBytes;
+
+    // least recently used first
+    private final LinkedHashMap<String, Map.Entry<byte[], DocumentMeta>> entries;
+    private long cachedBytes;
+
+    // bumped by every write, a load that raced with a write isn't cached
+    private long writes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingPersistentStoreDriver(PersistentStoreDriver persistentStoreDriver, long maxBytes) {
+        this.persistentStoreDriver = persistentStoreDriver;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public PersistentStoreDriver getPersistentStoreDriver() {
+        return this.persistentStoreDriver;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return this.cachedBytes;
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.cachedBytes = 0;
+        ++this.writes;
+    }
+
+    private static long weight(byte[] value) {
+        return ENTRY_OVERHEAD_BYTES + (value != null ? value.length : 0);
+    }
+
+    private synchronized Map.Entry<byte[], DocumentMeta> get(String key) {
+        return this.entries.get(key);
+    }
+
+    private synchronized long getWrites() {
+        return this.writes;
+    }
+
+    private synchronized void put(String key, Map.Entry<byte[], DocumentMeta> entry, long writes) {
+        long weight = weight(entry.getKey());
+
+        if (writes != this.writes || weight > this.maxBytes) {
+            return;
+        }
+
+        Map.Entry<byte[], DocumentMeta> previous = this.entries.put(key, entry);
+        if (previous != null) {
+            this.cachedBytes -= weight(previous.getKey());
+        }
+        this.cachedBytes += weight;
+
+        for (Iterator<Map.Entry<String, Map.Entry<byte[], DocumentMeta>>> iterator = this.entries.entrySet().iterator();
+             this.cachedBytes > this.maxBytes && iterator.hasNext();) {
+            this.cachedBytes -= weight(iterator.next().getValue().getKey());
+            iterator.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void invalidate(String key) {
+        Map.Entry<byte[], DocumentMeta> previous = this.entries.remove(key);
+        if (previous != null) {
+            this.cachedBytes -= weight(previous.getKey());
+        }
+
+        ++this.writes;
+    }
+
+    private static Map.Entry<byte[], DocumentMeta> copy(Map.Entry<byte[], DocumentMeta> entry) {
+        byte[] value = entry.getKey();
+        return new AbstractMap.SimpleEntry<>(value != null ? value.clone() : null, entry.getValue().copy());
+    }
+
+    public DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.save(key, value, meta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.save(key, value, meta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public DocumentMeta save(String key, ReadableByteChannel value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.save(key, value, meta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    public DocumentMeta append(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.append(key, value, meta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    public DocumentMeta append(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.append(key, value, meta);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public Map<String, DocumentMeta> saveAll(Map<String, Map.Entry<byte[], DocumentMeta>> entries)
+            throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.saveAll(entries);
+        } finally {
+            for (String key : entries.keySet()) {
+                invalidate(key);
+            }
+        }
+    }
+
+    public boolean delete(String key) throws IllegalArgumentException, IOException {
+        try {
+            return this.persistentStoreDriver.delete(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void collectGarbage() throws IOException {
+        this.persistentStoreDriver.collectGarbage();
+    }
+
+    public Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> entry = get(key);
+
+        if (entry != null) {
+            this.hits.incrementAndGet();
+            return copy(entry);
+        }
+
+        this.misses.incrementAndGet();
+
+        long writes = getWrites();
+        Map.Entry<byte[], DocumentMeta> result = this.persistentStoreDriver.load(key);
+
+        put(key, copy(result), writes);
+        return result;
+    }
+
+    /**
+     * A cached document is returned as a read-only view, without copying it. Others are loaded
+     * by the driver, and not cached, since it may map them.
+     */
+    @Override
+    public Map.Entry<ByteBuffer, DocumentMeta> loadBuffer(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> entry = get(key);
+
+        if (entry == null || entry.getKey() == null) {
+            this.misses.incrementAndGet();
+            return this.persistentStoreDriver.loadBuffer(key);
+        }
+
+        this.hits.incrementAndGet();
+        return new AbstractMap.SimpleEntry<>(ByteBuffer.wrap(entry.getKey()).asReadOnlyBuffer(), entry.getValue().copy());
+    }
+
+    /**
+     * A cached document is read from memory. Others are streamed by the driver, and not cached.
+     */
+    @Override
+    public Map.Entry<ReadableByteChannel, DocumentMeta> loadChannel(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> entry = get(key);
+
+        if (entry == null || entry.getKey() == null) {
+            this.misses.incrementAndGet();
+            return this.persistentStoreDriver.loadChannel(key);
+        }
+
+        this.hits.incrementAndGet();
+        return new AbstractMap.SimpleEntry<>(Channels.newChannel(new ByteArrayInputStream(entry.getKey())),
+                entry.getValue().copy());
+    }
+}
@@ -0,0 +1,68 @@
+package com.accton.common.store.impl;
+
+import com.accton.common.store.PayloadCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * zlib compression by the JDK Deflater.
+ */
+public class DeflatePayloadCodec implements PayloadCodec {
+    public static final String ID = "deflate";
+
+    private static final int BUFFER_BYTES = 8192;
+
+    private int level;
+
+    public DeflatePayloadCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflatePayloadCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public OutputStream encode(OutputStream out) throws IOException {
+        final Deflater deflater = new Deflater(this.level);
+
+        // the native memory of a Deflater is only freed by end(), not left to the finalizer
+        return new DeflaterOutputStream(out, deflater, BUFFER_BYTES) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public InputStream decode(InputStream in) throws IOException {
+        final Inflater inflater = new Inflater();
+
+        return new InflaterInputStream(in, inflater, BUFFER_BYTES) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,58 @@
+package com.accton.common.store.impl;
+
+import com.accton.common.store.AsyncPersistentStoreDriver;
+import com.accton.common.store.DocumentMeta;
+import com.accton.common.store.PersistentStoreDriver;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the blocking calls of a PersistentStoreDriver on an executor.
+ */
+public class ExecutorAsyncPersistentStoreDriver implements AsyncPersistentStoreDriver {
+    private PersistentStoreDriver persistentStoreDriver;
+    private Executor executor;
+
+    public ExecutorAsyncPersistentStoreDriver(PersistentStoreDriver persistentStoreDriver, Executor executor) {
+        this.persistentStoreDriver = persistentStoreDriver;
+        this.executor = executor;
+    }
+
+    public PersistentStoreDriver getPersistentStoreDriver() {
+        return this.persistentStoreDriver;
+    }
+
+    public CompletableFuture<DocumentMeta> saveAsync(final String key, final byte[] value, final Map<String, Object> meta) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.persistentStoreDriver.save(key, value, meta);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor);
+    }
+
+    public CompletableFuture<DocumentMeta> saveAsync(final String key, final byte[] value, final DocumentMeta meta) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.persistentStoreDriver.save(key, value, meta);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor);
+    }
+
+    public CompletableFuture<Map.Entry<byte[], DocumentMeta>> loadAsync(final String key) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.persistentStoreDriver.load(key);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor);
+    }
+}
@@ -1,24 +1,231 @@
 package com.accton.common.store.impl;
 
 import com.accton.common.store.DocumentMeta;
+import com.accton.common.store.PayloadCodec;
 import com.accton.common.store.PersistentStoreDriver;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Stores each key as a payload file plus a `.meta.json` file.
+ *
+ * A save writes the payload to a new file, named after the key plus a generation, and then
+ * replaces the meta file by an atomic rename. The meta file is the commit point. A crash before
+ * the rename leaves the previous payload/meta pair in place, a crash after it leaves the new one.
+ * Either way load never sees a payload that doesn't belong to its meta.
+ */
+public class FilePersistentStoreDriver implements PersistentStoreDriver, Closeable {
+    public enum DurabilityMode {
+        // leave it to the OS to write files back, a crash of the machine may lose recent saves
+        NO_SYNC,
+        // force files to the storage device before save returns
+        SYNC_ON_COMMIT,
+        // force files written since the last round in the background, every syncIntervalMilliSeconds
+        PERIODIC_SYNC
+    }
+
+    static final long DEFAULT_SYNC_INTERVAL_MILLI_SECONDS = 1000;
+
+    // payloads from this size on are mapped by loadBuffer, smaller ones are read onto the heap
+    public static final long DEFAULT_MAP_THRESHOLD_BYTES = 256 * 1024;
+
+    static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    // content addressed payloads are stored here, named by their hash. Keys are split on ".", so
+    // no key maps into this directory
+    static final String BLOB_DIRECTORY = ".blobs";
+    static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    // collectGarbage keeps blobs used this recently, a save may be about to commit a meta file
+    // pointing at them
+    public static final long DEFAULT_BLOB_GRACE_MILLI_SECONDS = 60 * 60 * 1000;
+
+    private static final AtomicLong GENERATION = new AtomicLong(System.currentTimeMillis() * 1000);
 
-public class FilePersistentStoreDriver implements PersistentStoreDriver {
     private String baseuri;
 
+    private DurabilityMode durabilityMode;
+    private ScheduledExecutorService syncService;
+    private Set<Path> unsyncedFiles;
+
+    private long mapThreshold = DEFAULT_MAP_THRESHOLD_BYTES;
+
+    // documents with the compress hint are encoded by codec from this size on
+    public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 4096;
+
+    private PayloadCodec codec = new DeflatePayloadCodec();
+    private Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    private long blobGraceMilliSeconds = DEFAULT_BLOB_GRACE_MILLI_SECONDS;
+
     public FilePersistentStoreDriver(String baseuri) {
+        this(baseuri, DurabilityMode.NO_SYNC);
+    }
+
+    public FilePersistentStoreDriver(String baseuri, boolean syncOnCommit) {
+        this(baseuri, syncOnCommit ? DurabilityMode.SYNC_ON_COMMIT : DurabilityMode.NO_SYNC);
+    }
+
+    public FilePersistentStoreDriver(String baseuri, DurabilityMode durabilityMode) {
+        this(baseuri, durabilityMode, DEFAULT_SYNC_INTERVAL_MILLI_SECONDS);
+    }
+
+    public FilePersistentStoreDriver(String baseuri, DurabilityMode durabilityMode, long syncIntervalMilliSeconds) {
         this.baseuri = baseuri;
+        this.durabilityMode = durabilityMode;
+        this.unsyncedFiles = ConcurrentHashMap.newKeySet();
+        this.codecs.put(this.codec.getId(), this.codec);
+
+        if (durabilityMode == DurabilityMode.PERIODIC_SYNC) {
+            this.syncService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "file-persistent-store-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            this.syncService.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    // retried in the next round
+                }
+            }, syncIntervalMilliSeconds, syncIntervalMilliSeconds, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return this.durabilityMode;
+    }
+
+    public long getMapThreshold() {
+        return this.mapThreshold;
+    }
+
+    public void setMapThreshold(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    public PayloadCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * Sets the codec of documents saved with the compress hint. Documents stored with a codec set
+     * before, by its id, are still decoded by it.
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codecs.put(codec.getId(), codec);
+        this.codec = codec;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public long getBlobGraceMilliSeconds() {
+        return this.blobGraceMilliSeconds;
+    }
+
+    public void setBlobGraceMilliSeconds(long blobGraceMilliSeconds) {
+        this.blobGraceMilliSeconds = blobGraceMilliSeconds;
+    }
+
+    /**
+     * @return what to store for value, encoded by the codec if meta asks for it and it's worth it
+     */
+    private byte[] encodePayload(byte[] value, DocumentMeta meta) throws IOException {
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        PayloadCodec payloadCodec = this.codec;
+        if (!meta.getBoolean(DocumentMeta.COMPRESS, false) || value.length < this.compressionThreshold) {
+            return value;
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(value.length / 4);
+        try (OutputStream outputStream = payloadCodec.encode(encoded)) {
+            outputStream.write(value);
+        }
+
+        if (encoded.size() >= value.length) {
+            return value;
+        }
+
+        meta.put(DocumentMeta.CODEC, payloadCodec.getId());
+        meta.put(DocumentMeta.STORED_SIZE, encoded.size());
+        return encoded.toByteArray();
+    }
+
+    private PayloadCodec getCodec(DocumentMeta meta) throws IOException {
+        String id = meta.getString(DocumentMeta.CODEC);
+        if (id == null) {
+            return null;
+        }
+
+        PayloadCodec payloadCodec = this.codecs.get(id);
+        if (payloadCodec == null) {
+            throw new IOException("unknown codec (" + id + ") of " + meta.getFileUrl());
+        }
+
+        return payloadCodec;
+    }
+
+    private byte[] readFile(String path, DocumentMeta meta) throws IOException {
+        PayloadCodec payloadCodec = getCodec(meta);
+        if (payloadCodec == null) {
+            return readFile(path);
+        }
+
+        try (InputStream inputStream = payloadCodec.decode(Files.newInputStream(Paths.get(path)))) {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(Math.max(32, meta.getSize()));
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = inputStream.read(buffer)) != -1) {
+                decoded.write(buffer, 0, n);
+            }
+
+            return decoded.toByteArray();
+        }
     }
 
     private Path keyToFilePath(String key)
@@ -30,21 +237,154 @@ public class FilePersistentStoreDriver implements PersistentStoreDriver {
         return Paths.get(this.baseuri, path);
     }
 
-    private void writeFile(String path, byte[] value) throws IOException {
-        OutputStream outputStream = new FileOutputStream(path);
-        outputStream.write(value);
+    private static String nextGeneration() {
+        return Long.toString(GENERATION.incrementAndGet(), 36);
+    }
+
+    private interface PayloadWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Creates a new file, path plus a generation plus suffix, and fills it by writer.
+     */
+    private Path writeNewFile(String path, String suffix, PayloadWriter writer) throws IOException {
+        while (true) {
+            Path filePath = Paths.get(path + "." + nextGeneration() + suffix);
+            FileChannel channel;
+
+            try {
+                channel = FileChannel.open(filePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // left by another process or an earlier run, try the next generation
+                continue;
+            }
+
+            try (FileChannel ch = channel) {
+                writer.write(ch);
+                return filePath;
+            } catch (IOException e) {
+                Files.deleteIfExists(filePath);
+                throw e;
+            }
+        }
+    }
+
+    private Path writeNewFile(String path, String suffix, byte[] value) throws IOException {
+        return writeNewFile(path, suffix, channel -> {
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        });
     }
 
     private byte[] readFile(String path) throws IOException {
         return Files.readAllBytes(Paths.get(path));
     }
 
+    /**
+     * Maps the file when it's at least mapThreshold bytes, reads it otherwise.
+     */
+    private ByteBuffer readFileBuffer(String path, DocumentMeta meta) throws IOException {
+        if (getCodec(meta) != null) {
+            return ByteBuffer.wrap(readFile(path, meta)).asReadOnlyBuffer();
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size >= this.mapThreshold) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // read until the end of file
+            }
+
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    private void syncFiles(Collection<Path> files) throws IOException {
+        for (Path path : files) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory, e.g. Windows
+        }
+    }
+
+    /**
+     * Forces every file written since the last call to the storage device. Only needed in
+     * PERIODIC_SYNC mode, where it is also called in the background. A file that fails to be
+     * forced is kept for the next call, the first failure is thrown after the others are forced.
+     */
+    public void sync() throws IOException {
+        Set<Path> directories = new LinkedHashSet<>();
+        List<Path> failed = new ArrayList<>();
+        IOException failure = null;
+
+        for (Iterator<Path> iterator = this.unsyncedFiles.iterator(); iterator.hasNext();) {
+            // removed first, a save of the file meanwhile adds it again
+            Path path = iterator.next();
+            iterator.remove();
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // replaced by a later save
+            } catch (IOException e) {
+                failed.add(path);
+                if (failure == null) {
+                    failure = e;
+                }
+                continue;
+            }
+
+            directories.add(path.getParent());
+        }
+
+        this.unsyncedFiles.addAll(failed);
+
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+
+        if (failure != null) {
+            throw new IOException("failed to sync " + failed.size() + " files: ", failure);
+        }
+    }
+
+    /**
+     * Stops the background sync, if any, and syncs what it hasn't yet.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.syncService != null) {
+            this.syncService.shutdown();
+        }
+
+        if (this.durabilityMode == DurabilityMode.PERIODIC_SYNC) {
+            sync();
+        }
+    }
+
     public DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
         DocumentMeta documentMeta = DocumentMeta.create(meta);
         return save(key, value, documentMeta);
     }
 
-    public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+    private Path validateFilePath(String key) throws IllegalArgumentException {
         Path path;
 
         try {
@@ -53,40 +393,621 @@ public class FilePersistentStoreDriver implements PersistentStoreDriver {
             if (path.getNameCount() < 2) {
                 throw new IllegalArgumentException("invalid path (" + path + ")");
             }
+        } catch (FileSystemNotFoundException | SecurityException e) {
+            throw new IllegalArgumentException("invalid key (" + key + "): ", e);
+        }
+
+        return path;
+    }
 
+    private void createParent(String key, Path path) throws IllegalArgumentException {
+        try {
             File parent = path.getParent().toFile();
             parent.mkdirs();
-        } catch (FileSystemNotFoundException | SecurityException e) {
+        } catch (SecurityException e) {
             throw new IllegalArgumentException("invalid key (" + key + "): ", e);
         }
+    }
+
+    private Path prepareFilePath(String key) throws IllegalArgumentException {
+        Path path = validateFilePath(key);
+        createParent(key, path);
+        return path;
+    }
+
+    public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>(1);
+        entries.put(key, new AbstractMap.SimpleEntry<>(value, meta));
+
+        saveAll(entries);
+        return meta;
+    }
+
+    /**
+     * Group commit: every key is validated first and each directory is created once. All payload
+     * and meta files are written first, then forced in one pass before any of them is renamed, and
+     * each directory is synced once. Java can't force many files in one call, so each file is still
+     * forced on its own, but nothing is renamed or written between the forces.
+     */
+    @Override
+    public Map<String, DocumentMeta> saveAll(Map<String, Map.Entry<byte[], DocumentMeta>> entries)
+            throws IllegalArgumentException, IOException {
+        List<Path> paths = new ArrayList<>(entries.size());
+        Set<Path> parents = new LinkedHashSet<>();
+
+        for (String key : entries.keySet()) {
+            Path path = validateFilePath(key);
+            paths.add(path);
+
+            if (parents.add(path.getParent())) {
+                createParent(key, path);
+            }
+        }
+
+        List<Path> payloads = new ArrayList<>(entries.size());
+        List<PendingBlob> blobs = new ArrayList<>();
+        Map<String, DocumentMeta> result = new LinkedHashMap<>();
+
+        try {
+            int i = 0;
+            for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+                Path path = paths.get(i++);
+                byte[] value = entry.getValue().getKey();
+                DocumentMeta meta = entry.getValue().getValue();
+
+                String fileExtension = meta.getString("fileExtension", "");
+                byte[] stored = encodePayload(value, meta);
+                Path payload = meta.getBoolean(DocumentMeta.CONTENT_ADDRESSED, false)
+                        ? writeBlob(stored, fileExtension, meta, blobs)
+                        : writeNewFile(path.toString(), fileExtension, stored);
+                payloads.add(payload);
+
+                meta.put("fileUrl", payload.toString());
+                meta.put("size", value.length);
+
+                result.put(entry.getKey(), meta);
+            }
+        } catch (IOException e) {
+            deleteQuietly(payloads);
+            deletePendingBlobs(blobs);
+            throw e;
+        }
+
+        commit(paths, parents, payloads, blobs, new ArrayList<>(result.values()));
+        return result;
+    }
+
+    /**
+     * Copies value to a new payload file as it's read, the document is never held in memory.
+     * The compress hint is ignored, the payload is stored as is.
+     */
+    @Override
+    public DocumentMeta save(String key, ReadableByteChannel value, DocumentMeta meta)
+            throws IllegalArgumentException, IOException {
+        Path path = prepareFilePath(key);
+        Set<Path> parents = new LinkedHashSet<>();
+        parents.add(path.getParent());
+
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        boolean contentAddressed = meta.getBoolean(DocumentMeta.CONTENT_ADDRESSED, false);
+        MessageDigest digest = contentAddressed ? newDigest() : null;
+        long[] size = new long[1];
 
         String fileExtension = meta.getString("fileExtension", "");
-        writeFile(path.toString() + fileExtension, value);
+        String target = contentAddressed ? blobRoot().resolve("blob").toString() : path.toString();
 
-        meta.put("fileUrl", path.toString() + fileExtension);
-        meta.put("size", value.length);
+        if (contentAddressed) {
+            Files.createDirectories(blobRoot());
+        }
 
-        writeFile(path.toString() + ".meta.json", meta.toJsonString().getBytes());
+        Path payload = writeNewFile(target, contentAddressed ? ".tmp" : fileExtension, channel -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_BYTES);
+
+            while (value.read(buffer) != -1) {
+                buffer.flip();
+
+                if (digest != null) {
+                    buffer.mark();
+                    digest.update(buffer);
+                    buffer.reset();
+                }
+
+                while (buffer.hasRemaining()) {
+                    size[0] += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        });
+
+        List<PendingBlob> blobs = new ArrayList<>(1);
+        if (contentAddressed) {
+            payload = addBlob(payload, toHex(digest.digest()), fileExtension, meta, blobs);
+        }
+
+        meta.put("fileUrl", payload.toString());
+        meta.put("size", size[0]);
+
+        commit(Collections.singletonList(path), parents,
+                Collections.singletonList(payload), blobs, Collections.singletonList(meta));
         return meta;
     }
 
-    public Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException {
-        byte[] value = null;
-        Path path = keyToFilePath(key);
+    private Path blobRoot() {
+        return Paths.get(this.baseuri, BLOB_DIRECTORY);
+    }
+
+    private boolean isBlob(Path path) {
+        return path.startsWith(blobRoot());
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("failed to hash content: ", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+
+        return new String(chars);
+    }
 
-        byte[] m = readFile(path.toString() + ".meta.json");
-        String str = new String(m, StandardCharsets.UTF_8);
+    // content written to tmp, renamed to the blob named by its hash when committed
+    private static final class PendingBlob {
+        final Path tmp;
+        final Path blob;
 
-        DocumentMeta documentMeta = DocumentMeta.create(str);
-        if (documentMeta == null) {
-            throw new IOException("meta file is not valid json format.");
+        PendingBlob(Path tmp, Path blob) {
+            this.tmp = tmp;
+            this.blob = blob;
         }
+    }
+
+    private Path blobPath(String hash, String fileExtension) {
+        return blobRoot().resolve(hash.substring(0, 2)).resolve(hash + fileExtension);
+    }
+
+    /**
+     * Stores value as the blob named by its hash, unless the same content is already stored. A new
+     * blob is added to blobs, commit renames it.
+     *
+     * @return the blob
+     */
+    private Path writeBlob(byte[] value, String fileExtension, DocumentMeta meta, List<PendingBlob> blobs)
+            throws IOException {
+        String hash = toHex(newDigest().digest(value));
+        Path blob = blobPath(hash, fileExtension);
 
-        String s = documentMeta.getFileUrl();
-        if (s != null) {
-            value = readFile(s);
+        if (Files.exists(blob) && touch(blob)) {
+            meta.put(DocumentMeta.CONTENT_HASH, hash);
+            return blob;
         }
 
-        return new AbstractMap.SimpleEntry<>(value, documentMeta);
+        Files.createDirectories(blob.getParent());
+        Path tmp = writeNewFile(blob.toString(), ".tmp", value);
+
+        return addBlob(tmp, hash, fileExtension, meta, blobs);
+    }
+
+    /**
+     * Adds tmp, the content just written, to blobs, unless the blob named by hash is already
+     * stored, which is trusted to be complete.
+     *
+     * @return the blob
+     */
+    private Path addBlob(Path tmp, String hash, String fileExtension, DocumentMeta meta, List<PendingBlob> blobs)
+            throws IOException {
+        Path blob = blobPath(hash, fileExtension);
+
+        meta.put(DocumentMeta.CONTENT_HASH, hash);
+
+        if (Files.exists(blob) && touch(blob)) {
+            Files.delete(tmp);
+        } else {
+            blobs.add(new PendingBlob(tmp, blob));
+        }
+
+        return blob;
+    }
+
+    /**
+     * Renames the content of pending to its blob, unless stored meanwhile, e.g. by the same
+     * content earlier in the batch or a concurrent save.
+     */
+    private void commitBlob(PendingBlob pending, Set<Path> parents) throws IOException {
+        if (Files.exists(pending.blob) && touch(pending.blob)) {
+            Files.delete(pending.tmp);
+            return;
+        }
+
+        try {
+            Files.createDirectories(pending.blob.getParent());
+            Files.move(pending.tmp, pending.blob, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // stored by a concurrent save
+            Files.deleteIfExists(pending.tmp);
+        }
+
+        parents.add(pending.blob.getParent());
+    }
+
+    private static void deletePendingBlobs(List<PendingBlob> blobs) {
+        for (PendingBlob pending : blobs) {
+            try {
+                Files.deleteIfExists(pending.tmp);
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+    }
+
+    /**
+     * Marks blob as used now, so collectGarbage keeps it until the meta file pointing at it is
+     * committed.
+     *
+     * @return false if blob was deleted meanwhile
+     */
+    private static boolean touch(Path blob) {
+        try {
+            Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the meta file of each path, whose payload or pending blob is already written, forces
+     * them all in one pass in SYNC_ON_COMMIT mode, then renames the blobs and commits the metas.
+     */
+    private void commit(List<Path> paths, Set<Path> parents, List<Path> payloads, List<PendingBlob> blobs,
+            List<DocumentMeta> documentMetas) throws IOException {
+        List<Path> metas = new ArrayList<>(paths.size());
+
+        try {
+            for (int i = 0; i < paths.size(); ++i) {
+                Path path = paths.get(i);
+                metas.add(writeNewFile(path.toString() + ".meta.json", ".tmp", documentMetas.get(i).toJsonBytes()));
+            }
+
+            if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+                List<Path> files = new ArrayList<>(payloads.size() + blobs.size() + metas.size());
+                for (Path payload : payloads) {
+                    // a blob is either pending or trusted to be complete
+                    if (!isBlob(payload)) {
+                        files.add(payload);
+                    }
+                }
+                for (PendingBlob pending : blobs) {
+                    files.add(pending.tmp);
+                }
+                files.addAll(metas);
+
+                syncFiles(files);
+            }
+
+            for (PendingBlob pending : blobs) {
+                commitBlob(pending, parents);
+            }
+        } catch (IOException e) {
+            deleteQuietly(payloads);
+            deleteQuietly(metas);
+            deletePendingBlobs(blobs);
+            throw e;
+        }
+
+        for (int i = 0; i < paths.size(); ++i) {
+            commitMeta(paths.get(i), metas.get(i), payloads.get(i));
+        }
+
+        if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+            for (Path parent : parents) {
+                syncDirectory(parent);
+            }
+        } else if (this.durabilityMode == DurabilityMode.PERIODIC_SYNC) {
+            this.unsyncedFiles.addAll(payloads);
+            for (Path path : paths) {
+                this.unsyncedFiles.add(Paths.get(path.toString() + ".meta.json"));
+            }
+        }
+    }
+
+    /**
+     * Atomically replaces the meta file of path by tmpMeta, then removes the payload the old
+     * meta file pointed at.
+     */
+    protected void commitMeta(Path path, Path tmpMeta, Path payload) throws IOException {
+        Path metaPath = Paths.get(path.toString() + ".meta.json");
+        String previousFileUrl = readFileUrl(metaPath);
+
+        try {
+            Files.move(tmpMeta, metaPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(Arrays.asList(tmpMeta, payload));
+            throw e;
+        }
+
+        if (previousFileUrl != null && !previousFileUrl.equals(payload.toString())) {
+            deletePayload(path, Paths.get(previousFileUrl));
+        }
+    }
+
+    private static String readFileUrl(Path metaPath) {
+        DocumentMeta documentMeta = readMeta(metaPath);
+        return (documentMeta != null) ? documentMeta.getFileUrl() : null;
+    }
+
+    private static DocumentMeta readMeta(Path metaPath) {
+        try {
+            return DocumentMeta.create(Files.readAllBytes(metaPath));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes payload if it was written for path, never a file outside of it.
+     */
+    private static void deletePayload(Path path, Path payload) {
+        if (payload.getParent() == null || !payload.getParent().equals(path.getParent())
+                || !payload.getFileName().toString().startsWith(path.getFileName().toString() + ".")) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(payload);
+        } catch (IOException e) {
+            // a leftover file doesn't affect load
+        }
+    }
+
+    /**
+     * Deletes files that failed to commit. Blobs are kept, they may be shared with other documents.
+     */
+    private void deleteQuietly(List<Path> files) {
+        for (Path file : files) {
+            if (isBlob(file)) {
+                continue;
+            }
+
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // best effort
+            }
+        }
+    }
+
+    public DocumentMeta append(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        DocumentMeta documentMeta = DocumentMeta.create(meta);
+        return append(key, value, documentMeta);
+    }
+
+    /**
+     * Appends value to the payload file of key in place. A crash may leave a partial value at the
+     * end of the document, callers needing more should frame and validate their records.
+     * A content addressed payload is copied first, an encoded one is decoded first, the
+     * contentAddressed and compress hints are ignored.
+     */
+    public DocumentMeta append(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        Path path = prepareFilePath(key);
+        Path metaPath = Paths.get(path.toString() + ".meta.json");
+
+        DocumentMeta previous = readMeta(metaPath);
+        String fileUrl = (previous != null) ? previous.getFileUrl() : null;
+        Path filePath = (fileUrl != null) ? Paths.get(fileUrl) : Paths.get(path.toString() + meta.getString("fileExtension", ""));
+        long size;
+
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        if (fileUrl != null && getCodec(previous) != null) {
+            // append to the decoded payload
+            byte[] decoded = readFile(fileUrl, previous);
+            filePath = writeNewFile(path.toString(), meta.getString("fileExtension", ""), decoded);
+            fileUrl = null;
+        } else if (isBlob(filePath)) {
+            // a blob may be shared, append to a copy of it
+            Path blob = filePath;
+            filePath = writeNewFile(path.toString(), meta.getString("fileExtension", ""), channel -> {
+                try (FileChannel source = FileChannel.open(blob, StandardOpenOption.READ)) {
+                    long position = 0;
+                    long count = source.size();
+                    while (position < count) {
+                        position += channel.transferFrom(source, position, count - position);
+                    }
+                }
+            });
+            fileUrl = null;
+        }
+
+        try (FileChannel channel = FileChannel.open(filePath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+                channel.force(false);
+            }
+
+            size = channel.size();
+        }
+
+        meta.put("fileUrl", filePath.toString());
+        meta.put("size", size);
+
+        // the meta is always rewritten, its size and attributes change; NO_SYNC only skips the force
+        Path tmpMeta = writeNewFile(metaPath.toString(), ".tmp", meta.toJsonBytes());
+
+        if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+            syncFiles(Collections.singletonList(tmpMeta));
+        }
+
+        Files.move(tmpMeta, metaPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+            syncDirectory(path.getParent());
+        }
+
+        if (this.durabilityMode == DurabilityMode.PERIODIC_SYNC) {
+            this.unsyncedFiles.add(filePath);
+            this.unsyncedFiles.add(metaPath);
+        }
+
+        return meta;
+    }
+
+    /**
+     * Removes the meta file, the commit point, then the payload. A blob is left to collectGarbage.
+     */
+    public boolean delete(String key) throws IllegalArgumentException, IOException {
+        Path path = validateFilePath(key);
+        Path metaPath = Paths.get(path.toString() + ".meta.json");
+        String fileUrl = readFileUrl(metaPath);
+
+        try {
+            Files.delete(metaPath);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        if (fileUrl != null && !isBlob(Paths.get(fileUrl))) {
+            deletePayload(path, Paths.get(fileUrl));
+        }
+
+        if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+            syncDirectory(path.getParent());
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the blobs no meta file points at, unless used within blobGraceMilliSeconds. Reads
+     * every meta file under baseuri.
+     */
+    @Override
+    public void collectGarbage() throws IOException {
+        Path blobRoot = blobRoot();
+        if (!Files.isDirectory(blobRoot)) {
+            return;
+        }
+
+        // the blobs in use, listed before the blobs to check, so a blob saved meanwhile is recent
+        long start = System.currentTimeMillis();
+        Set<String> used = new HashSet<>();
+
+        try (Stream<Path> files = Files.walk(Paths.get(this.baseuri))) {
+            for (Iterator<Path> iterator = files.iterator(); iterator.hasNext();) {
+                Path file = iterator.next();
+
+                if (!file.startsWith(blobRoot) && file.getFileName().toString().endsWith(".meta.json")) {
+                    String fileUrl = readFileUrl(file);
+                    if (fileUrl != null && isBlob(Paths.get(fileUrl))) {
+                        used.add(Paths.get(fileUrl).getFileName().toString());
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw new IOException("failed to collect garbage: ", e.getCause());
+        }
+
+        try (Stream<Path> blobs = Files.walk(blobRoot)) {
+            for (Iterator<Path> iterator = blobs.iterator(); iterator.hasNext();) {
+                Path blob = iterator.next();
+
+                if (!Files.isRegularFile(blob) || used.contains(blob.getFileName().toString())) {
+                    continue;
+                }
+
+                try {
+                    if (start - Files.getLastModifiedTime(blob).toMillis() >= this.blobGraceMilliSeconds) {
+                        Files.deleteIfExists(blob);
+                    }
+                } catch (IOException e) {
+                    // tried again next time
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw new IOException("failed to collect garbage: ", e.getCause());
+        }
+    }
+
+    public Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException {
+        return load(key, this::readFile);
+    }
+
+    /**
+     * The payload of a mapped buffer stays valid after the document is saved again, since a save
+     * writes a new payload file and only unlinks the old one. Only append changes a payload in
+     * place and its bytes past the mapped size are not visible.
+     */
+    @Override
+    public Map.Entry<ByteBuffer, DocumentMeta> loadBuffer(String key) throws IllegalArgumentException, IOException {
+        return load(key, this::readFileBuffer);
+    }
+
+    /**
+     * The channel reads the payload file directly, decoding it as it's read if it's encoded, and
+     * must be closed by the caller.
+     */
+    @Override
+    public Map.Entry<ReadableByteChannel, DocumentMeta> loadChannel(String key) throws IllegalArgumentException, IOException {
+        return load(key, (path, meta) -> {
+            PayloadCodec payloadCodec = getCodec(meta);
+            FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+
+            if (payloadCodec == null) {
+                return channel;
+            }
+
+            return Channels.newChannel(payloadCodec.decode(Channels.newInputStream(channel)));
+        });
+    }
+
+    private interface PayloadReader<T> {
+        T read(String path, DocumentMeta meta) throws IOException;
+    }
+
+    private <T> Map.Entry<T, DocumentMeta> load(String key, PayloadReader<T> payloadReader)
+            throws IllegalArgumentException, IOException {
+        Path path = keyToFilePath(key);
+
+        while (true) {
+            T value = null;
+            byte[] m = readFile(path.toString() + ".meta.json");
+
+            DocumentMeta documentMeta = DocumentMeta.create(m);
+            if (documentMeta == null) {
+                throw new IOException("meta file is not valid json format.");
+            }
+
+            String s = documentMeta.getFileUrl();
+            if (s != null) {
+                try {
+                    value = payloadReader.read(s, documentMeta);
+                } catch (NoSuchFileException e) {
+                    // replaced by a concurrent save after the meta file was read, read the new pair
+                    if (s.equals(readFileUrl(Paths.get(path.toString() + ".meta.json")))) {
+                        throw e;
+                    }
+
+                    continue;
+                }
+            }
+
+            return new AbstractMap.SimpleEntry<>(value, documentMeta);
+        }
     }
 }
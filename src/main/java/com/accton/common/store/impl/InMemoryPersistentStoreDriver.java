@@ -0,0 +1,645 @@
+package com.accton.common.store.impl;
+
+import com.accton.common.store.DocumentMeta;
+import com.accton.common.store.PayloadCodec;
+import com.accton.common.store.PersistentStoreDriver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps documents in memory, for tests and ephemeral stores, and as the baseline cost of a driver.
+ * Payloads are copied into direct ByteBuffer slabs, off the heap, metas are kept in a concurrent
+ * map. Otherwise it behaves as FilePersistentStoreDriver: the same meta (fileUrl, size, the
+ * contentAddressed and compress hints, codec), NoSuchFileException for a missing key, shared
+ * payloads of content addressed documents, and buffers of loadBuffer that stay valid after the
+ * document is saved again.
+ *
+ * Payloads are allocated one after another in slabs of slabBytes, a large one gets a slab of its
+ * own. The space of a replaced payload is reclaimed once its whole slab is unused, or by
+ * collectGarbage, which copies the payloads in use to new slabs, as a save does when the slabs
+ * would exceed capacityBytes. Writes are serialized, loads don't lock.
+ */
+public class InMemoryPersistentStoreDriver implements PersistentStoreDriver {
+    public static final long DEFAULT_CAPACITY_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_SLAB_BYTES = 1024 * 1024;
+
+    // the fileUrl of a document starts with it, followed by its key, or by the blob it's stored as
+    static final String URL_PREFIX = "memory:";
+    static final String BLOB_DIRECTORY = ".blobs";
+
+    private static final Pattern KEY_SEPARATORS = Pattern.compile("[./]|" + Pattern.quote(File.separator));
+
+    private final long capacityBytes;
+    private final int slabBytes;
+
+    private final ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private final List<Slab> slabs = new ArrayList<>();
+    private Slab currentSlab;
+    private long allocatedBytes;
+
+    private volatile PayloadCodec codec = new DeflatePayloadCodec();
+    private final Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+    private volatile int compressionThreshold = FilePersistentStoreDriver.DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    private static final class Slab {
+        final ByteBuffer buffer;
+        int used;
+        int live;
+
+        Slab(int bytes) {
+            this.buffer = ByteBuffer.allocateDirect(bytes);
+        }
+    }
+
+    // immutable, a payload appended to in place is replaced by a longer one
+    private static final class Payload {
+        final Slab slab;
+        final int offset;
+        final int length;
+
+        Payload(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        ByteBuffer view() {
+            ByteBuffer buffer = this.slab.buffer.duplicate();
+            buffer.limit(this.offset + this.length);
+            buffer.position(this.offset);
+            return buffer.slice().asReadOnlyBuffer();
+        }
+    }
+
+    private static final class Blob {
+        final Payload payload;
+        int references;
+
+        Blob(Payload payload) {
+            this.payload = payload;
+        }
+    }
+
+    // immutable, replaced by every write of its key
+    private static final class Document {
+        final DocumentMeta meta;
+        final Payload payload;
+        final String blob;
+
+        Document(DocumentMeta meta, Payload payload, String blob) {
+            this.meta = meta;
+            this.payload = payload;
+            this.blob = blob;
+        }
+    }
+
+    public InMemoryPersistentStoreDriver() {
+        this(DEFAULT_CAPACITY_BYTES, DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * @param capacityBytes the most off-heap memory of the slabs, a write beyond it fails
+     * @param slabBytes the size of a slab, payloads over a quarter of it get a slab of their own
+     */
+    public InMemoryPersistentStoreDriver(long capacityBytes, int slabBytes) {
+        if (capacityBytes < 1 || slabBytes < 1) {
+            throw new IllegalArgumentException("invalid capacity (" + capacityBytes + ", " + slabBytes + ")");
+        }
+
+        this.capacityBytes = capacityBytes;
+        this.slabBytes = slabBytes;
+        this.codecs.put(this.codec.getId(), this.codec);
+    }
+
+    public long getCapacityBytes() {
+        return this.capacityBytes;
+    }
+
+    public int getSlabBytes() {
+        return this.slabBytes;
+    }
+
+    /**
+     * @return the off-heap memory of the slabs in use
+     */
+    public synchronized long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    public PayloadCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * Sets the codec of documents saved with the compress hint, see FilePersistentStoreDriver.setCodec.
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codecs.put(codec.getId(), codec);
+        this.codec = codec;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return key with its parts joined by dots, as the file driver maps both dots and separators
+     * of a key to directories, e.g. "foo/backups.1" and "foo.backups.1" are the same document.
+     * Like the file driver, a key needs two parts at least, a package and a name.
+     */
+    static String normalizeKey(String key) throws IllegalArgumentException {
+        StringBuilder normalized = new StringBuilder();
+        int parts = 0;
+
+        if (key != null) {
+            for (String part : KEY_SEPARATORS.split(key)) {
+                if (!part.isEmpty()) {
+                    normalized.append(normalized.length() > 0 ? "." : "").append(part);
+                    ++parts;
+                }
+            }
+        }
+
+        if (parts < 2) {
+            throw new IllegalArgumentException("invalid key (" + key + ")");
+        }
+
+        return normalized.toString();
+    }
+
+    // called with this locked
+    private Payload allocate(byte[] value) throws IOException {
+        int length = value.length;
+        boolean own = length > this.slabBytes / 4;
+
+        Slab slab = own ? null : this.currentSlab;
+        if (slab == null || slab.buffer.capacity() - slab.used < length) {
+            int bytes = own ? Math.max(1, length) : this.slabBytes;
+
+            if (this.allocatedBytes + bytes > this.capacityBytes) {
+                compact();
+            }
+
+            if (this.allocatedBytes + bytes > this.capacityBytes) {
+                throw new IOException("out of capacity (" + this.capacityBytes + " bytes), " + length + " bytes more needed");
+            }
+
+            slab = newSlab(bytes);
+            if (!own) {
+                this.currentSlab = slab;
+            }
+        }
+
+        return write(slab, value);
+    }
+
+    // called with this locked
+    private Slab newSlab(int bytes) {
+        Slab slab = new Slab(bytes);
+        this.slabs.add(slab);
+        this.allocatedBytes += bytes;
+        return slab;
+    }
+
+    private static Payload write(Slab slab, byte[] value) {
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(slab.used);
+        buffer.put(value);
+
+        Payload payload = new Payload(slab, slab.used, value.length);
+        slab.used += value.length;
+        ++slab.live;
+
+        return payload;
+    }
+
+    // called with this locked. Views of loadBuffer keep the memory of a released slab until collected
+    private void free(Payload payload) {
+        Slab slab = payload.slab;
+
+        if (--slab.live == 0 && slab != this.currentSlab) {
+            this.slabs.remove(slab);
+            this.allocatedBytes -= slab.buffer.capacity();
+        }
+    }
+
+    // called with this locked
+    private void release(Document document) {
+        if (document == null) {
+            return;
+        }
+
+        if (document.blob == null) {
+            free(document.payload);
+            return;
+        }
+
+        Blob blob = this.blobs.get(document.blob);
+        if (blob != null && --blob.references == 0) {
+            this.blobs.remove(document.blob);
+            free(blob.payload);
+        }
+    }
+
+    /**
+     * Copies the payloads in use to new slabs, releasing the space of replaced ones. Memory may
+     * reach twice the size of the payloads meanwhile.
+     */
+    private void compact() {
+        this.slabs.clear();
+        this.currentSlab = null;
+        this.allocatedBytes = 0;
+
+        Map<Payload, Payload> moved = new IdentityHashMap<>();
+
+        for (Map.Entry<String, Blob> entry : new ArrayList<>(this.blobs.entrySet())) {
+            Blob blob = new Blob(move(entry.getValue().payload, moved));
+            blob.references = entry.getValue().references;
+            entry.setValue(blob);
+        }
+
+        for (Map.Entry<String, Document> entry : this.documents.entrySet()) {
+            Document document = entry.getValue();
+            entry.setValue(new Document(document.meta, move(document.payload, moved), document.blob));
+        }
+    }
+
+    // called with this locked, during compact
+    private Payload move(Payload payload, Map<Payload, Payload> moved) {
+        Payload result = moved.get(payload);
+        if (result != null) {
+            return result;
+        }
+
+        byte[] value = new byte[payload.length];
+        payload.view().get(value);
+
+        boolean own = value.length > this.slabBytes / 4;
+        Slab slab = own ? null : this.currentSlab;
+        if (slab == null || slab.buffer.capacity() - slab.used < value.length) {
+            slab = newSlab(own ? Math.max(1, value.length) : this.slabBytes);
+            if (!own) {
+                this.currentSlab = slab;
+            }
+        }
+
+        result = write(slab, value);
+        moved.put(payload, result);
+        return result;
+    }
+
+    /**
+     * @return what to store for value, encoded by the codec if meta asks for it and it's worth it
+     */
+    private byte[] encodePayload(byte[] value, DocumentMeta meta) throws IOException {
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        PayloadCodec payloadCodec = this.codec;
+        if (!meta.getBoolean(DocumentMeta.COMPRESS, false) || value.length < this.compressionThreshold) {
+            return value;
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(value.length / 4);
+        try (OutputStream outputStream = payloadCodec.encode(encoded)) {
+            outputStream.write(value);
+        }
+
+        if (encoded.size() >= value.length) {
+            return value;
+        }
+
+        meta.put(DocumentMeta.CODEC, payloadCodec.getId());
+        meta.put(DocumentMeta.STORED_SIZE, encoded.size());
+        return encoded.toByteArray();
+    }
+
+    private PayloadCodec getCodec(DocumentMeta meta) throws IOException {
+        String id = meta.getString(DocumentMeta.CODEC);
+        if (id == null) {
+            return null;
+        }
+
+        PayloadCodec payloadCodec = this.codecs.get(id);
+        if (payloadCodec == null) {
+            throw new IOException("unknown codec (" + id + ") of " + meta.getFileUrl());
+        }
+
+        return payloadCodec;
+    }
+
+    private static String hash(byte[] value) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(FilePersistentStoreDriver.CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("failed to hash content: ", e);
+        }
+
+        byte[] bytes = digest.digest(value);
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Stores stored, the payload of a document of size bytes, as key. Called with this locked.
+     */
+    private DocumentMeta store(String key, byte[] stored, long size, DocumentMeta meta) throws IOException {
+        String fileExtension = meta.getString("fileExtension", "");
+        Payload payload;
+        String blobName = null;
+
+        if (meta.getBoolean(DocumentMeta.CONTENT_ADDRESSED, false)) {
+            String hash = hash(stored);
+            blobName = hash + fileExtension;
+
+            Blob blob = this.blobs.get(blobName);
+            if (blob == null) {
+                blob = new Blob(allocate(stored));
+                this.blobs.put(blobName, blob);
+            }
+
+            ++blob.references;
+            payload = blob.payload;
+
+            meta.put(DocumentMeta.CONTENT_HASH, hash);
+            meta.put("fileUrl", URL_PREFIX + BLOB_DIRECTORY + "/" + blobName);
+        } else {
+            payload = allocate(stored);
+            meta.put("fileUrl", URL_PREFIX + key + fileExtension);
+        }
+
+        meta.put("size", size);
+
+        // after allocating, which may have moved the previous document
+        release(this.documents.put(key, new Document(meta.copy(), payload, blobName)));
+        return meta;
+    }
+
+    public DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return save(key, value, DocumentMeta.create(meta));
+    }
+
+    public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>(1);
+        entries.put(key, new AbstractMap.SimpleEntry<>(value, meta));
+
+        saveAll(entries);
+        return meta;
+    }
+
+    /**
+     * Every key is validated first, then the entries are stored in order. A batch failing for
+     * capacity keeps the entries stored before.
+     */
+    @Override
+    public synchronized Map<String, DocumentMeta> saveAll(Map<String, Map.Entry<byte[], DocumentMeta>> entries)
+            throws IllegalArgumentException, IOException {
+        List<String> keys = new ArrayList<>(entries.size());
+        for (String key : entries.keySet()) {
+            keys.add(normalizeKey(key));
+        }
+
+        Map<String, DocumentMeta> result = new LinkedHashMap<>();
+
+        int i = 0;
+        for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+            String key = keys.get(i++);
+            byte[] value = entry.getValue().getKey();
+            DocumentMeta meta = entry.getValue().getValue();
+
+            result.put(entry.getKey(), store(key, encodePayload(value, meta), value.length, meta));
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads value to its end first. The compress hint is ignored, the payload is stored as is.
+     */
+    @Override
+    public DocumentMeta save(String key, ReadableByteChannel value, DocumentMeta meta)
+            throws IllegalArgumentException, IOException {
+        String normalized = normalizeKey(key);
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream inputStream = Channels.newInputStream(value);
+
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1) {
+            content.write(buffer, 0, n);
+        }
+
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        synchronized (this) {
+            return store(normalized, content.toByteArray(), content.size(), meta);
+        }
+    }
+
+    public DocumentMeta append(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return append(key, value, DocumentMeta.create(meta));
+    }
+
+    /**
+     * Appends in place while the payload is the last one of the current slab, e.g. a journal
+     * appended to between saves of other keys, otherwise copies it. A content addressed payload is
+     * copied, an encoded one is decoded first, the contentAddressed and compress hints are ignored.
+     */
+    public synchronized DocumentMeta append(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        String normalized = normalizeKey(key);
+
+        Document previous = this.documents.get(normalized);
+        Slab slab = (previous != null) ? previous.payload.slab : null;
+
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        Payload payload;
+        String fileUrl;
+        boolean inPlace = previous != null && previous.blob == null && getCodec(previous.meta) == null && slab == this.currentSlab
+                && previous.payload.offset + previous.payload.length == slab.used
+                && slab.buffer.capacity() - slab.used >= value.length;
+
+        if (inPlace) {
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.position(slab.used);
+            buffer.put(value);
+            slab.used += value.length;
+
+            payload = new Payload(slab, previous.payload.offset, previous.payload.length + value.length);
+            fileUrl = previous.meta.getFileUrl();
+        } else {
+            byte[] content = value;
+            fileUrl = URL_PREFIX + normalized + meta.getString("fileExtension", "");
+
+            if (previous != null) {
+                byte[] old = read(previous);
+                content = new byte[old.length + value.length];
+                System.arraycopy(old, 0, content, 0, old.length);
+                System.arraycopy(value, 0, content, old.length, value.length);
+
+                if (previous.blob == null && getCodec(previous.meta) == null) {
+                    fileUrl = previous.meta.getFileUrl();
+                }
+            }
+
+            payload = allocate(content);
+        }
+
+        meta.put("fileUrl", fileUrl);
+        meta.put("size", payload.length);
+
+        // after allocating, which may have moved the previous document
+        Document replaced = this.documents.put(normalized, new Document(meta.copy(), payload, null));
+        if (!inPlace) {
+            release(replaced);
+        }
+
+        return meta;
+    }
+
+    public synchronized boolean delete(String key) throws IllegalArgumentException, IOException {
+        Document document = this.documents.remove(normalizeKey(key));
+        release(document);
+
+        return document != null;
+    }
+
+    /**
+     * Copies the payloads in use to new slabs, freeing the space of replaced ones.
+     */
+    @Override
+    public synchronized void collectGarbage() {
+        compact();
+    }
+
+    private Document get(String key) throws IOException {
+        Document document = this.documents.get(normalizeKey(key));
+
+        if (document == null) {
+            throw new NoSuchFileException(URL_PREFIX + key);
+        }
+
+        return document;
+    }
+
+    private byte[] read(Document document) throws IOException {
+        PayloadCodec payloadCodec = getCodec(document.meta);
+
+        if (payloadCodec == null) {
+            byte[] value = new byte[document.payload.length];
+            document.payload.view().get(value);
+            return value;
+        }
+
+        try (InputStream inputStream = payloadCodec.decode(new ByteBufferInputStream(document.payload.view()))) {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(Math.max(32, document.meta.getSize()));
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = inputStream.read(buffer)) != -1) {
+                decoded.write(buffer, 0, n);
+            }
+
+            return decoded.toByteArray();
+        }
+    }
+
+    public Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException {
+        Document document = get(key);
+        return new AbstractMap.SimpleEntry<>(read(document), document.meta.copy());
+    }
+
+    /**
+     * A payload stored as is is returned as a read-only view of its slab, without copying it.
+     */
+    @Override
+    public Map.Entry<ByteBuffer, DocumentMeta> loadBuffer(String key) throws IllegalArgumentException, IOException {
+        Document document = get(key);
+
+        ByteBuffer value = (getCodec(document.meta) == null)
+                ? document.payload.view() : ByteBuffer.wrap(read(document)).asReadOnlyBuffer();
+
+        return new AbstractMap.SimpleEntry<>(value, document.meta.copy());
+    }
+
+    @Override
+    public Map.Entry<ReadableByteChannel, DocumentMeta> loadChannel(String key) throws IllegalArgumentException, IOException {
+        Document document = get(key);
+
+        PayloadCodec payloadCodec = getCodec(document.meta);
+        InputStream inputStream = new ByteBufferInputStream(document.payload.view());
+
+        return new AbstractMap.SimpleEntry<>(
+                Channels.newChannel(payloadCodec == null ? inputStream : payloadCodec.decode(inputStream)),
+                document.meta.copy());
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? (this.buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,948 @@
+package com.accton.common.store.impl;
+
+import com.accton.common.store.DocumentMeta;
+import com.accton.common.store.PayloadCodec;
+import com.accton.common.store.PersistentStoreDriver;
+import com.accton.common.store.impl.FilePersistentStoreDriver.DurabilityMode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps every document of a store in a few large segment files under baseuri, instead of a payload
+ * file and a meta file each, for stores of many small documents where the file driver pays mostly
+ * for inodes and directory lookups.
+ *
+ * A save appends a record, the key, meta and payload framed by their length and CRC32, to the
+ * active segment, rolled at maxSegmentBytes. An append logs the appended bytes only. The index, key
+ * to meta and payload locations, is kept in memory and rebuilt by the constructor by scanning the
+ * segments in order, a torn record at the end of a segment is cut off. Loads read the payload at
+ * its position without locking, writes are serialized.
+ *
+ * Replaced and deleted records are garbage. collectGarbage, and every roll for the worst segment,
+ * copies the live records of segments less than compactionThreshold live to the active one, then
+ * deletes them. The compress hint and codecs work as in the file driver, a content addressed
+ * document gets its contentHash but keeps a payload of its own.
+ */
+public class LogStructuredPersistentStoreDriver implements PersistentStoreDriver, Closeable {
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    // segments with less of their bytes live are compacted
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    static final String SEGMENT_EXTENSION = ".seg";
+
+    private static final byte PUT = 1;
+    private static final byte APPEND = 2;
+    private static final byte DELETE = 3;
+
+    // the length and CRC32 before the body of a record
+    private static final int FRAME_BYTES = 8;
+
+    private final Path directory;
+    private final DurabilityMode durabilityMode;
+    private final long maxSegmentBytes;
+    private volatile double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+
+    // guarded by this, oldest first
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private boolean unsynced;
+
+    private ScheduledExecutorService syncService;
+
+    private volatile PayloadCodec codec = new DeflatePayloadCodec();
+    private final Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+    private volatile int compressionThreshold = FilePersistentStoreDriver.DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        volatile FileChannel channel;
+        volatile boolean deleted;
+
+        // guarded by the driver
+        long size;
+        long liveBytes;
+
+        Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        // an interrupted read or write closes the channel for every thread, it's opened again
+        synchronized FileChannel open() throws IOException {
+            if (!this.channel.isOpen() && !this.deleted) {
+                this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+
+            return this.channel;
+        }
+    }
+
+    // a payload, or the part of one appended by a record
+    private static final class Chunk {
+        final Segment segment;
+        final long position;
+        final int length;
+        final int recordBytes;
+
+        Chunk(Segment segment, long position, int length, int recordBytes) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.recordBytes = recordBytes;
+        }
+    }
+
+    // immutable, replaced by every write of its key. The meta has no fileUrl
+    private static final class Entry {
+        final DocumentMeta meta;
+        final List<Chunk> chunks;
+
+        Entry(DocumentMeta meta, List<Chunk> chunks) {
+            this.meta = meta;
+            this.chunks = chunks;
+        }
+
+        int length() {
+            int length = 0;
+            for (Chunk chunk : this.chunks) {
+                length += chunk.length;
+            }
+
+            return length;
+        }
+    }
+
+    // an encoded record, the payload at payloadOffset
+    private static final class Record {
+        final byte[] bytes;
+        final int payloadOffset;
+        final int payloadLength;
+
+        Record(byte[] bytes, int payloadOffset, int payloadLength) {
+            this.bytes = bytes;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, String key, byte[] meta, long payloadPosition, int payloadLength, int recordBytes)
+                throws IOException;
+    }
+
+    public LogStructuredPersistentStoreDriver(String baseuri) throws IOException {
+        this(baseuri, DurabilityMode.NO_SYNC, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    public LogStructuredPersistentStoreDriver(String baseuri, DurabilityMode durabilityMode) throws IOException {
+        this(baseuri, durabilityMode, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the store under baseuri, reading the index from its segments.
+     *
+     * @param durabilityMode forces the active segment before a write returns, in the background
+     *                       every DEFAULT_SYNC_INTERVAL_MILLI_SECONDS, or never
+     * @param maxSegmentBytes a new segment is started when the active one would grow beyond it
+     */
+    public LogStructuredPersistentStoreDriver(String baseuri, DurabilityMode durabilityMode, long maxSegmentBytes)
+            throws IOException {
+        if (maxSegmentBytes < 1) {
+            throw new IllegalArgumentException("invalid segment size (" + maxSegmentBytes + ")");
+        }
+
+        this.directory = Paths.get(baseuri);
+        this.durabilityMode = durabilityMode;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.codecs.put(this.codec.getId(), this.codec);
+
+        recover();
+
+        if (durabilityMode == DurabilityMode.PERIODIC_SYNC) {
+            this.syncService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "log-structured-persistent-store-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            long interval = FilePersistentStoreDriver.DEFAULT_SYNC_INTERVAL_MILLI_SECONDS;
+            this.syncService.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    // retried in the next round
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return this.durabilityMode;
+    }
+
+    public long getMaxSegmentBytes() {
+        return this.maxSegmentBytes;
+    }
+
+    public double getCompactionThreshold() {
+        return this.compactionThreshold;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public PayloadCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * Sets the codec of documents saved with the compress hint, see FilePersistentStoreDriver.setCodec.
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codecs.put(codec.getId(), codec);
+        this.codec = codec;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * @return the bytes of every segment, live or not
+     */
+    public synchronized long getSegmentBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments.values()) {
+            bytes += segment.size;
+        }
+
+        return bytes;
+    }
+
+    public synchronized long getLiveBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments.values()) {
+            bytes += segment.liveBytes;
+        }
+
+        return bytes;
+    }
+
+    // ---- segments ----
+
+    private Path segmentPath(long id) {
+        return this.directory.resolve(String.format("%016x", id) + SEGMENT_EXTENSION);
+    }
+
+    private static long segmentId(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()), 16);
+    }
+
+    /**
+     * Calls visitor for every valid record of segment, in order.
+     *
+     * @return the end of the last valid record
+     */
+    private static long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long position = 0;
+
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(segment.path), 64 * 1024)) {
+            DataInputStream in = new DataInputStream(inputStream);
+            CRC32 crc = new CRC32();
+
+            for (;;) {
+                byte[] body;
+                try {
+                    int length = in.readInt();
+                    int expected = in.readInt();
+
+                    if (length < 0 || position + FRAME_BYTES + length > segment.size) {
+                        break;
+                    }
+
+                    body = new byte[length];
+                    in.readFully(body);
+
+                    crc.reset();
+                    crc.update(body, 0, body.length);
+                    if ((int) crc.getValue() != expected) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                String key = record.readUTF();
+
+                byte[] meta = new byte[record.readInt()];
+                record.readFully(meta);
+                int payloadLength = record.readInt();
+
+                visitor.visit(type, key, meta, position + FRAME_BYTES + body.length - payloadLength, payloadLength,
+                        FRAME_BYTES + body.length);
+
+                position += FRAME_BYTES + body.length;
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Rebuilds the index from the segments, oldest first. Whatever follows the last valid record of
+     * the last segment, a write torn by a crash, is cut off. A segment written to before was complete
+     * when the next one was started, so a corrupt record in it fails the recovery rather than drop
+     * the records after it.
+     */
+    private synchronized void recover() throws IOException {
+        Files.createDirectories(this.directory);
+
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            paths = files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        for (int i = 0; i < paths.size(); ++i) {
+            Path path = paths.get(i);
+            Segment segment = new Segment(segmentId(path), path);
+            segment.size = segment.channel.size();
+            this.segments.put(segment.id, segment);
+
+            long end = scan(segment, (type, key, meta, payloadPosition, payloadLength, recordBytes) -> {
+                if (type == DELETE) {
+                    release(this.index.remove(key));
+                    return;
+                }
+
+                Chunk chunk = new Chunk(segment, payloadPosition, payloadLength, recordBytes);
+                segment.liveBytes += recordBytes;
+                index(key, type, DocumentMeta.create(meta), chunk);
+            });
+
+            if (end < segment.size && i + 1 < paths.size()) {
+                for (Segment opened : this.segments.values()) {
+                    opened.channel.close();
+                }
+
+                throw new IOException("failed to recover " + path + ": corrupt record at " + end);
+            }
+
+            if (end < segment.size) {
+                segment.channel.truncate(end);
+                segment.size = end;
+            }
+        }
+
+        if (this.segments.isEmpty()) {
+            this.active = new Segment(1, segmentPath(1));
+            this.segments.put(this.active.id, this.active);
+        } else {
+            this.active = this.segments.lastEntry().getValue();
+        }
+    }
+
+    // called with this locked
+    private void index(String key, byte type, DocumentMeta meta, Chunk chunk) {
+        Entry previous = this.index.get(key);
+        List<Chunk> chunks;
+
+        if (type == APPEND && previous != null) {
+            chunks = new ArrayList<>(previous.chunks.size() + 1);
+            chunks.addAll(previous.chunks);
+            chunks.add(chunk);
+        } else {
+            chunks = Collections.singletonList(chunk);
+            release(previous);
+        }
+
+        this.index.put(key, new Entry(meta, chunks));
+    }
+
+    // called with this locked
+    private static void release(Entry entry) {
+        if (entry != null) {
+            for (Chunk chunk : entry.chunks) {
+                chunk.segment.liveBytes -= chunk.recordBytes;
+            }
+        }
+    }
+
+    private static Record encodeRecord(byte type, String key, DocumentMeta meta, byte[] payload) throws IOException {
+        byte[] metaBytes = (meta != null) ? meta.toJsonBytes() : new byte[0];
+        int payloadLength = (payload != null) ? payload.length : 0;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(FRAME_BYTES + 64 + metaBytes.length + payloadLength);
+        DataOutputStream data = new DataOutputStream(out);
+
+        // the frame, filled in below
+        data.writeLong(0);
+        data.writeByte(type);
+        data.writeUTF(key);
+        data.writeInt(metaBytes.length);
+        data.write(metaBytes);
+        data.writeInt(payloadLength);
+
+        int payloadOffset = out.size();
+        if (payload != null) {
+            data.write(payload);
+        }
+
+        byte[] bytes = out.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, FRAME_BYTES, bytes.length - FRAME_BYTES);
+
+        ByteBuffer frame = ByteBuffer.wrap(bytes, 0, FRAME_BYTES);
+        frame.putInt(bytes.length - FRAME_BYTES);
+        frame.putInt((int) crc.getValue());
+
+        return new Record(bytes, payloadOffset, payloadLength);
+    }
+
+    /**
+     * Appends records to the active segment as one write, rolling it first if they don't fit.
+     * Called with this locked.
+     *
+     * @return the position of the first record
+     */
+    private long writeRecords(List<Record> records) throws IOException {
+        int length = 0;
+        for (Record record : records) {
+            length += record.bytes.length;
+        }
+
+        if (this.active.size > 0 && this.active.size + length > this.maxSegmentBytes) {
+            roll();
+        }
+
+        return appendRecords(records, length);
+    }
+
+    // called with this locked
+    private long appendRecords(List<Record> records, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Record record : records) {
+            buffer.put(record.bytes);
+        }
+        buffer.flip();
+
+        long position = this.active.size;
+        FileChannel channel = this.active.open();
+
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            // a partial write is overwritten by the next one, or cut off by the roll or the next open
+            throw new IOException("failed to write " + this.active.path + ": ", e);
+        }
+
+        this.active.size += length;
+
+        if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+            channel.force(false);
+        } else {
+            this.unsynced = true;
+        }
+
+        return position;
+    }
+
+    // called with this locked
+    private void roll() throws IOException {
+        FileChannel channel = this.active.open();
+
+        // only the last segment may end in a partial write
+        if (channel.size() > this.active.size) {
+            channel.truncate(this.active.size);
+        }
+
+        if (this.durabilityMode != DurabilityMode.NO_SYNC) {
+            channel.force(false);
+        }
+
+        long id = this.active.id + 1;
+        this.active = new Segment(id, segmentPath(id));
+        this.segments.put(id, this.active);
+        this.unsynced = false;
+
+        if (this.durabilityMode != DurabilityMode.NO_SYNC) {
+            syncDirectory(this.directory);
+        }
+
+        // the segment with the least live, if worth it
+        Segment worst = null;
+        for (Segment segment : this.segments.values()) {
+            if (segment != this.active && isGarbage(segment)
+                    && (worst == null || segment.liveBytes * worst.size < worst.liveBytes * segment.size)) {
+                worst = segment;
+            }
+        }
+
+        if (worst != null) {
+            compact(worst);
+        }
+    }
+
+    private boolean isGarbage(Segment segment) {
+        return segment.size == 0 || segment.liveBytes < segment.size * this.compactionThreshold;
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory, e.g. Windows
+        }
+    }
+
+    /**
+     * Forces the active segment to the storage device. Only needed in PERIODIC_SYNC mode, where it
+     * is also called in the background.
+     */
+    public synchronized void sync() throws IOException {
+        if (this.unsynced) {
+            this.active.open().force(false);
+            this.unsynced = false;
+        }
+    }
+
+    // ---- compaction ----
+
+    /**
+     * Copies the live records of segment to the active one, then deletes it. A tombstone is copied
+     * while an older segment may hold a record of its key. Called with this locked.
+     */
+    private void compact(Segment segment) throws IOException {
+        boolean older = this.segments.firstKey() < segment.id;
+        Set<String> live = new LinkedHashSet<>();
+        Set<String> tombstones = new LinkedHashSet<>();
+        int length = 0;
+
+        scan(segment, (type, key, meta, payloadPosition, payloadLength, recordBytes) -> {
+            Entry entry = this.index.get(key);
+
+            if (type == DELETE) {
+                if (entry == null && older) {
+                    tombstones.add(key);
+                }
+            } else if (entry != null) {
+                for (Chunk chunk : entry.chunks) {
+                    if (chunk.segment == segment) {
+                        live.add(key);
+                        break;
+                    }
+                }
+            }
+        });
+
+        List<Record> records = new ArrayList<>(live.size() + tombstones.size());
+        List<String> keys = new ArrayList<>(live);
+
+        for (String key : keys) {
+            // appended chunks are merged, only a single chunk may be encoded
+            Entry entry = this.index.get(key);
+            records.add(encodeRecord(PUT, key, entry.meta, readStored(entry)));
+        }
+
+        for (String key : tombstones) {
+            records.add(encodeRecord(DELETE, key, null, null));
+        }
+
+        for (Record record : records) {
+            length += record.bytes.length;
+        }
+
+        if (!records.isEmpty()) {
+            // not rolled meanwhile, the active segment may go over maxSegmentBytes once
+            long position = appendRecords(records, length);
+
+            for (int i = 0; i < keys.size(); ++i) {
+                Record record = records.get(i);
+                Chunk chunk = new Chunk(this.active, position + record.payloadOffset, record.payloadLength,
+                        record.bytes.length);
+                this.active.liveBytes += record.bytes.length;
+
+                Entry entry = this.index.get(keys.get(i));
+                release(entry);
+                this.index.put(keys.get(i), new Entry(entry.meta, Collections.singletonList(chunk)));
+                position += record.bytes.length;
+            }
+        }
+
+        // the copies are durable before the originals go
+        this.active.open().force(false);
+
+        this.segments.remove(segment.id);
+        segment.deleted = true;
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+        syncDirectory(this.directory);
+    }
+
+    /**
+     * Copies the live records of every segment less than compactionThreshold live to the active
+     * segment and deletes them.
+     */
+    @Override
+    public synchronized void collectGarbage() throws IOException {
+        for (Segment segment : new ArrayList<>(this.segments.values())) {
+            if (segment != this.active && isGarbage(segment)) {
+                compact(segment);
+            }
+        }
+    }
+
+    // ---- writes ----
+
+    /**
+     * @return what to store for value, encoded by the codec if meta asks for it and it's worth it
+     */
+    private byte[] encodePayload(byte[] value, DocumentMeta meta) throws IOException {
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        PayloadCodec payloadCodec = this.codec;
+        if (!meta.getBoolean(DocumentMeta.COMPRESS, false) || value.length < this.compressionThreshold) {
+            return value;
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(value.length / 4);
+        try (OutputStream outputStream = payloadCodec.encode(encoded)) {
+            outputStream.write(value);
+        }
+
+        if (encoded.size() >= value.length) {
+            return value;
+        }
+
+        meta.put(DocumentMeta.CODEC, payloadCodec.getId());
+        meta.put(DocumentMeta.STORED_SIZE, encoded.size());
+        return encoded.toByteArray();
+    }
+
+    private PayloadCodec getCodec(DocumentMeta meta) throws IOException {
+        String id = meta.getString(DocumentMeta.CODEC);
+        if (id == null) {
+            return null;
+        }
+
+        PayloadCodec payloadCodec = this.codecs.get(id);
+        if (payloadCodec == null) {
+            throw new IOException("unknown codec (" + id + ")");
+        }
+
+        return payloadCodec;
+    }
+
+    private static String hash(byte[] value) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(FilePersistentStoreDriver.CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("failed to hash content: ", e);
+        }
+
+        byte[] bytes = digest.digest(value);
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+
+        return new String(chars);
+    }
+
+    private static String fileUrl(Entry entry) {
+        Chunk chunk = entry.chunks.get(0);
+        return chunk.segment.path + "#" + chunk.position;
+    }
+
+    public DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return save(key, value, DocumentMeta.create(meta));
+    }
+
+    public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>(1);
+        entries.put(key, new AbstractMap.SimpleEntry<>(value, meta));
+
+        saveAll(entries);
+        return meta;
+    }
+
+    /**
+     * Every key is validated first, then the records of all entries are appended by one write,
+     * forced once in SYNC_ON_COMMIT mode.
+     */
+    @Override
+    public Map<String, DocumentMeta> saveAll(Map<String, Map.Entry<byte[], DocumentMeta>> entries)
+            throws IllegalArgumentException, IOException {
+        List<String> keys = new ArrayList<>(entries.size());
+        for (String key : entries.keySet()) {
+            keys.add(InMemoryPersistentStoreDriver.normalizeKey(key));
+        }
+
+        List<Record> records = new ArrayList<>(entries.size());
+        List<DocumentMeta> stored = new ArrayList<>(entries.size());
+
+        for (Map.Entry<byte[], DocumentMeta> entry : entries.values()) {
+            byte[] value = entry.getKey();
+            DocumentMeta meta = entry.getValue();
+
+            byte[] payload = encodePayload(value, meta);
+            if (meta.getBoolean(DocumentMeta.CONTENT_ADDRESSED, false)) {
+                meta.put(DocumentMeta.CONTENT_HASH, hash(payload));
+            }
+            meta.put("size", value.length);
+
+            DocumentMeta recordMeta = meta.copy().remove("fileUrl");
+            records.add(encodeRecord(PUT, keys.get(records.size()), recordMeta, payload));
+            stored.add(recordMeta);
+        }
+
+        synchronized (this) {
+            long position = writeRecords(records);
+            Segment segment = this.active;
+
+            int i = 0;
+            for (Map.Entry<byte[], DocumentMeta> entry : entries.values()) {
+                Record record = records.get(i);
+                Chunk chunk = new Chunk(segment, position + record.payloadOffset, record.payloadLength,
+                        record.bytes.length);
+                segment.liveBytes += record.bytes.length;
+
+                index(keys.get(i), PUT, stored.get(i), chunk);
+                entry.getValue().put("fileUrl", segment.path + "#" + chunk.position);
+
+                position += record.bytes.length;
+                ++i;
+            }
+        }
+
+        Map<String, DocumentMeta> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getValue());
+        }
+
+        return result;
+    }
+
+    public DocumentMeta append(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return append(key, value, DocumentMeta.create(meta));
+    }
+
+    /**
+     * Logs value as a chunk of the document, merged into one record by compaction. An encoded
+     * payload is decoded and saved whole first, the contentAddressed and compress hints are ignored.
+     */
+    public synchronized DocumentMeta append(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+        Entry previous = this.index.get(normalized);
+
+        meta.remove(DocumentMeta.CODEC);
+        meta.remove(DocumentMeta.STORED_SIZE);
+
+        byte type = APPEND;
+        byte[] payload = value;
+
+        if (previous != null && getCodec(previous.meta) != null) {
+            byte[] decoded = read(previous);
+            payload = new byte[decoded.length + value.length];
+            System.arraycopy(decoded, 0, payload, 0, decoded.length);
+            System.arraycopy(value, 0, payload, decoded.length, value.length);
+            type = PUT;
+        }
+
+        int size = ((type == APPEND && previous != null) ? previous.length() : 0) + payload.length;
+        meta.put("size", size);
+
+        DocumentMeta recordMeta = meta.copy().remove("fileUrl");
+        Record record = encodeRecord(type, normalized, recordMeta, payload);
+
+        long position = writeRecords(Collections.singletonList(record));
+        Chunk chunk = new Chunk(this.active, position + record.payloadOffset, record.payloadLength, record.bytes.length);
+        this.active.liveBytes += record.bytes.length;
+
+        index(normalized, type, recordMeta, chunk);
+        meta.put("fileUrl", fileUrl(this.index.get(normalized)));
+
+        return meta;
+    }
+
+    public synchronized boolean delete(String key) throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+
+        if (!this.index.containsKey(normalized)) {
+            return false;
+        }
+
+        writeRecords(Collections.singletonList(encodeRecord(DELETE, normalized, null, null)));
+        release(this.index.remove(normalized));
+
+        return true;
+    }
+
+    /**
+     * Forces what the background sync hasn't yet and closes the segments.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.syncService != null) {
+            this.syncService.shutdown();
+        }
+
+        if (this.durabilityMode != DurabilityMode.NO_SYNC) {
+            sync();
+        }
+
+        for (Segment segment : this.segments.values()) {
+            segment.channel.close();
+        }
+    }
+
+    // ---- reads ----
+
+    /**
+     * @return the payload as stored, the chunks of an appended one joined
+     */
+    private static byte[] readStored(Entry entry) throws IOException {
+        byte[] stored = new byte[entry.length()];
+        int offset = 0;
+
+        for (Chunk chunk : entry.chunks) {
+            ByteBuffer buffer = ByteBuffer.wrap(stored, offset, chunk.length);
+            FileChannel channel = chunk.segment.open();
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, chunk.position + buffer.position() - offset) < 0) {
+                    throw new EOFException("truncated payload in " + chunk.segment.path);
+                }
+            }
+
+            offset += chunk.length;
+        }
+
+        return stored;
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        byte[] stored = readStored(entry);
+        PayloadCodec payloadCodec = getCodec(entry.meta);
+
+        if (payloadCodec == null) {
+            return stored;
+        }
+
+        try (InputStream inputStream = payloadCodec.decode(new ByteArrayInputStream(stored))) {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(Math.max(32, entry.meta.getSize()));
+            byte[] buffer = new byte[8192];
+            int n;
+
+            while ((n = inputStream.read(buffer)) != -1) {
+                decoded.write(buffer, 0, n);
+            }
+
+            return decoded.toByteArray();
+        }
+    }
+
+    /**
+     * Reads the document of key. A segment deleted by compaction meanwhile is retried at the new
+     * location of the document.
+     */
+    private Map.Entry<byte[], DocumentMeta> get(String key) throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+
+        for (;;) {
+            Entry entry = this.index.get(normalized);
+            if (entry == null) {
+                throw new NoSuchFileException(key);
+            }
+
+            try {
+                byte[] value = read(entry);
+                return new AbstractMap.SimpleEntry<>(value, entry.meta.copy().put("fileUrl", fileUrl(entry)));
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // compacted, or closed by an interrupted thread and opened again
+            }
+        }
+    }
+
+    public Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException {
+        return get(key);
+    }
+
+    @Override
+    public Map.Entry<ByteBuffer, DocumentMeta> loadBuffer(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> result = get(key);
+        return new AbstractMap.SimpleEntry<>(ByteBuffer.wrap(result.getKey()).asReadOnlyBuffer(), result.getValue());
+    }
+
+    @Override
+    public Map.Entry<ReadableByteChannel, DocumentMeta> loadChannel(String key) throws IllegalArgumentException, IOException {
+        Map.Entry<byte[], DocumentMeta> result = get(key);
+        return new AbstractMap.SimpleEntry<>(Channels.newChannel(new ByteArrayInputStream(result.getKey())),
+                result.getValue());
+    }
+}
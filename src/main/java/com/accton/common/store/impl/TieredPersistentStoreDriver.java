@@ -0,0 +1,981 @@
+package com.accton.common.store.impl;
+
+import com.accton.common.store.DocumentMeta;
+import com.accton.common.store.PersistentStoreDriver;
+import com.accton.common.store.impl.FilePersistentStoreDriver.DurabilityMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Serves reads and absorbs writes from a hot driver in memory, and writes them behind to a cold
+ * driver, e.g. a FilePersistentStoreDriver, in batches of saveAll from a background thread.
+ *
+ * Every write is appended to a log under logDirectory before it's applied, forced as durabilityMode
+ * says, and replayed to the cold driver by the constructor after a crash. A record the log failed to
+ * take is cut off again, so only the last segment may end in a torn record, a corrupt record in an
+ * older one fails the replay rather than dropping the writes after it. Each document written to
+ * the cold driver carries the sequence of the last record it includes, so replaying a record
+ * written before is skipped, appends included. The log is rolled by every flush and the old
+ * segments deleted once their documents are written, the cold driver should sync them by then,
+ * e.g. SYNC_ON_COMMIT or a FilePersistentStoreDriver in PERIODIC_SYNC, which is synced first.
+ *
+ * Unwritten documents are bounded by maxDirtyBytes and maxDirtyCount, beyond them a write waits
+ * for a flush. They are kept in the hot driver until written, written documents are evicted oldest
+ * first when the hot driver runs out of capacity and read through from the cold one again, so the
+ * limits should stay well below the capacity of the hot driver. close flushes everything.
+ */
+public class TieredPersistentStoreDriver implements PersistentStoreDriver, Closeable {
+    public static final long DEFAULT_MAX_DIRTY_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_DIRTY_COUNT = 10000;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLI_SECONDS = 1000;
+
+    // documents written to the cold driver by one saveAll
+    static final int FLUSH_BATCH_SIZE = 256;
+
+    // the meta of a document in the cold driver, the sequence of the last log record it includes
+    static final String LOG_SEQUENCE = "logSequence";
+    static final String LOG_DIRECTORY = ".wal";
+    static final String LOG_EXTENSION = ".log";
+
+    private static final byte SAVE = 1;
+    private static final byte APPEND = 2;
+    private static final byte DELETE = 3;
+
+    private final PersistentStoreDriver hot;
+    private final PersistentStoreDriver cold;
+    private final boolean closeCold;
+
+    private final Path logDirectory;
+    private final DurabilityMode durabilityMode;
+    private final long maxDirtyBytes;
+    private final int maxDirtyCount;
+
+    // guarded by this. Documents not written to the cold driver yet by their latest write, in the
+    // order of their first one, and the written ones in the hot driver, oldest first
+    private final LinkedHashMap<String, Pending> dirty = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Boolean> clean = new LinkedHashMap<>();
+    private long dirtyBytes;
+    private long writes;
+
+    // guarded by this, the sequence of the last record logged, the log segment written to, the end
+    // of its last record, and whether a failed write left bytes after it
+    private long sequence;
+    private FileChannel log;
+    private long logSize;
+    private boolean logTorn;
+    private boolean logUnsynced;
+    private boolean closed;
+
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService flushService;
+
+    // the latest write of a dirty document
+    private static final class Pending {
+        final long sequence;
+        final boolean deleted;
+        final DocumentMeta meta;
+        final long bytes;
+
+        Pending(long sequence, boolean deleted, DocumentMeta meta, long bytes) {
+            this.sequence = sequence;
+            this.deleted = deleted;
+            this.meta = meta;
+            this.bytes = bytes;
+        }
+    }
+
+    private interface HotWrite<T> {
+        T apply() throws IOException;
+    }
+
+    private interface HotRead<T> {
+        T apply(String key) throws IOException;
+    }
+
+    /**
+     * Keeps documents in an InMemoryPersistentStoreDriver, writes them to a FilePersistentStoreDriver
+     * under baseuri, the log to its .wal directory, forced every flush interval.
+     */
+    public TieredPersistentStoreDriver(String baseuri) throws IOException {
+        this(new InMemoryPersistentStoreDriver(), new FilePersistentStoreDriver(baseuri), true,
+                Paths.get(baseuri, LOG_DIRECTORY), DurabilityMode.PERIODIC_SYNC, DEFAULT_MAX_DIRTY_BYTES,
+                DEFAULT_MAX_DIRTY_COUNT, DEFAULT_FLUSH_INTERVAL_MILLI_SECONDS);
+    }
+
+    /**
+     * @param hot serves reads and takes every write, it should free a document on delete
+     * @param cold documents are written to it in the background, it isn't closed by close
+     * @param logDirectory holds the log of writes not written to cold yet, replayed to it here
+     * @param durabilityMode forces the log before a write returns, every flushIntervalMilliSeconds,
+     *                       or never
+     * @param maxDirtyBytes a write waits while the documents not written to cold are this large
+     * @param maxDirtyCount a write waits while so many documents aren't written to cold
+     * @param flushIntervalMilliSeconds documents are written to cold this often, and when half the
+     *                                  limits are reached
+     */
+    public TieredPersistentStoreDriver(PersistentStoreDriver hot, PersistentStoreDriver cold, Path logDirectory,
+                                       DurabilityMode durabilityMode, long maxDirtyBytes, int maxDirtyCount,
+                                       long flushIntervalMilliSeconds) throws IOException {
+        this(hot, cold, false, logDirectory, durabilityMode, maxDirtyBytes, maxDirtyCount, flushIntervalMilliSeconds);
+    }
+
+    private TieredPersistentStoreDriver(PersistentStoreDriver hot, PersistentStoreDriver cold, boolean closeCold,
+                                        Path logDirectory, DurabilityMode durabilityMode, long maxDirtyBytes,
+                                        int maxDirtyCount, long flushIntervalMilliSeconds) throws IOException {
+        if (maxDirtyBytes < 1 || maxDirtyCount < 1 || flushIntervalMilliSeconds < 1) {
+            throw new IllegalArgumentException("invalid write-behind limits (" + maxDirtyBytes + ", " + maxDirtyCount
+                    + ", " + flushIntervalMilliSeconds + ")");
+        }
+
+        this.hot = hot;
+        this.cold = cold;
+        this.closeCold = closeCold;
+        this.logDirectory = logDirectory;
+        this.durabilityMode = durabilityMode;
+        this.maxDirtyBytes = maxDirtyBytes;
+        this.maxDirtyCount = maxDirtyCount;
+
+        recover();
+
+        this.flushService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tiered-persistent-store-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.flushService.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMilliSeconds,
+                flushIntervalMilliSeconds, TimeUnit.MILLISECONDS);
+    }
+
+    public PersistentStoreDriver getHotDriver() {
+        return this.hot;
+    }
+
+    public PersistentStoreDriver getColdDriver() {
+        return this.cold;
+    }
+
+    public long getMaxDirtyBytes() {
+        return this.maxDirtyBytes;
+    }
+
+    public int getMaxDirtyCount() {
+        return this.maxDirtyCount;
+    }
+
+    /**
+     * @return the number of documents not written to the cold driver yet
+     */
+    public synchronized int getDirtyCount() {
+        return this.dirty.size();
+    }
+
+    public synchronized long getDirtyBytes() {
+        return this.dirtyBytes;
+    }
+
+    // ---- log ----
+
+    private static String segmentName(long firstSequence) {
+        return String.format("%016x", firstSequence) + LOG_EXTENSION;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(this.logDirectory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(LOG_EXTENSION))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+
+        try {
+            return Long.parseLong(name.substring(0, name.length() - LOG_EXTENSION.length()), 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Frames a record as its length, its CRC32 and its body, so a torn tail is detected on replay.
+     */
+    private static byte[] encodeRecord(long sequence, byte type, String key, DocumentMeta meta, byte[] value)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 + (value != null ? value.length : 0));
+        DataOutputStream out = new DataOutputStream(body);
+
+        out.writeLong(sequence);
+        out.writeByte(type);
+        out.writeUTF(key);
+
+        byte[] metaBytes = (meta != null) ? meta.toJsonBytes() : new byte[0];
+        out.writeInt(metaBytes.length);
+        out.write(metaBytes);
+
+        out.writeInt(value != null ? value.length : 0);
+        if (value != null) {
+            out.write(value);
+        }
+
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+        record.putInt(bytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes);
+
+        return record.array();
+    }
+
+    // called with this locked. No record of the segment was replayed, a file left by a crash only
+    // holds a torn one
+    private void openSegment(long firstSequence) throws IOException {
+        this.log = FileChannel.open(this.logDirectory.resolve(segmentName(firstSequence)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.logSize = 0;
+        this.logTorn = false;
+
+        if (this.durabilityMode != DurabilityMode.NO_SYNC) {
+            syncDirectory(this.logDirectory);
+        }
+    }
+
+    /**
+     * Writes records at the end of the last one, a write that fails is cut off again. Called with
+     * this locked.
+     *
+     * @return the end of the log before the records, see undoLog
+     */
+    private long writeLog(List<byte[]> records) throws IOException {
+        repairLog();
+
+        int length = 0;
+        for (byte[] record : records) {
+            length += record.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+
+        long size = this.logSize;
+        long position = size;
+
+        try {
+            while (buffer.hasRemaining()) {
+                position += this.log.write(buffer, position);
+            }
+
+            if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+                this.log.force(false);
+            } else {
+                this.logUnsynced = true;
+            }
+        } catch (IOException e) {
+            undoLog(size, this.sequence);
+            throw e;
+        }
+
+        this.logSize = position;
+        return size;
+    }
+
+    // called with this locked, takes the records after size back out of the log, for a write that
+    // failed, and the sequence back to the last record kept
+    private void undoLog(long size, long sequence) {
+        this.sequence = sequence;
+        this.logSize = size;
+        this.logTorn = true;
+
+        try {
+            repairLog();
+
+            if (this.durabilityMode == DurabilityMode.SYNC_ON_COMMIT) {
+                this.log.force(false);
+            }
+        } catch (IOException e) {
+            // cut off before the next record is written, or the segment is rolled
+        }
+    }
+
+    // called with this locked
+    private void repairLog() throws IOException {
+        if (this.logTorn) {
+            this.log.truncate(this.logSize);
+            this.logTorn = false;
+        }
+    }
+
+    // called with this locked
+    private void syncLog() throws IOException {
+        if (this.logUnsynced && this.durabilityMode != DurabilityMode.NO_SYNC) {
+            this.log.force(false);
+        }
+
+        this.logUnsynced = false;
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory, e.g. Windows
+        }
+    }
+
+    /**
+     * Replays the records of every segment the cold driver doesn't include yet, in order, then
+     * starts a new segment and deletes the old ones. A torn record only ends the last segment, the
+     * write it was logged for never returned. Anywhere else it fails the replay.
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(this.logDirectory);
+
+        List<Path> segments = listSegments();
+        Map<String, Long> applied = new HashMap<>();
+        long last = 0;
+
+        for (int i = 0; i < segments.size(); ++i) {
+            Path segment = segments.get(i);
+            last = Math.max(last, firstSequence(segment) - 1);
+
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(segment));
+
+            while (in.hasRemaining()) {
+                int offset = in.position();
+                byte[] body = readRecord(in);
+
+                if (body == null) {
+                    if (i + 1 < segments.size()) {
+                        throw new IOException("failed to replay the write-behind log: corrupt record in " + segment
+                                + " at " + offset);
+                    }
+
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                long sequence = record.readLong();
+                byte type = record.readByte();
+                String key = record.readUTF();
+
+                byte[] metaBytes = new byte[record.readInt()];
+                record.readFully(metaBytes);
+                byte[] value = new byte[record.readInt()];
+                record.readFully(value);
+
+                last = Math.max(last, sequence);
+
+                Long coldSequence = applied.get(key);
+                if (coldSequence == null) {
+                    coldSequence = readColdSequence(key);
+                }
+
+                if (sequence <= coldSequence) {
+                    continue;
+                }
+
+                DocumentMeta meta = (metaBytes.length > 0) ? DocumentMeta.create(metaBytes) : null;
+                if (meta != null) {
+                    meta.put(LOG_SEQUENCE, Long.toString(sequence));
+                }
+
+                try {
+                    if (type == SAVE) {
+                        this.cold.save(key, value, meta);
+                    } else if (type == APPEND) {
+                        this.cold.append(key, value, meta);
+                    } else if (type == DELETE) {
+                        this.cold.delete(key);
+                    }
+                } catch (IOException e) {
+                    throw new IOException("failed to replay the write-behind log: " + key, e);
+                }
+
+                applied.put(key, sequence);
+            }
+        }
+
+        syncCold();
+
+        synchronized (this) {
+            this.sequence = last;
+            openSegment(last + 1);
+        }
+
+        for (Path segment : segments) {
+            if (firstSequence(segment) != last + 1) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    /**
+     * @return the body of the record at the position of in, or null if it's torn or corrupt
+     */
+    private static byte[] readRecord(ByteBuffer in) {
+        if (in.remaining() < 8) {
+            return null;
+        }
+
+        int length = in.getInt();
+        int crc = in.getInt();
+
+        if (length < 0 || length > in.remaining()) {
+            return null;
+        }
+
+        byte[] body = new byte[length];
+        in.get(body);
+
+        CRC32 actual = new CRC32();
+        actual.update(body, 0, body.length);
+
+        return ((int) actual.getValue() == crc) ? body : null;
+    }
+
+    private long readColdSequence(String key) throws IOException {
+        String value;
+        try {
+            value = this.cold.load(key).getValue().getString(LOG_SEQUENCE);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        return (value != null) ? Long.parseLong(value) : 0;
+    }
+
+    private void syncCold() throws IOException {
+        if (this.cold instanceof FilePersistentStoreDriver) {
+            ((FilePersistentStoreDriver) this.cold).sync();
+        }
+    }
+
+    // ---- writes ----
+
+    // called with this locked
+    private void awaitCapacity(long bytes) throws IOException {
+        while (!this.closed && !this.dirty.isEmpty()
+                && (this.dirtyBytes + bytes > this.maxDirtyBytes || this.dirty.size() >= this.maxDirtyCount)) {
+            requestFlush();
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for a flush");
+            }
+        }
+
+        if (this.closed) {
+            throw new IOException("driver closed");
+        }
+    }
+
+    // called with this locked. A write the hot driver has no room for evicts written documents,
+    // but key, which it may append to
+    private <T> T writeHot(String key, HotWrite<T> write) throws IOException {
+        for (;;) {
+            try {
+                return write.apply();
+            } catch (IOException e) {
+                if (this.clean.isEmpty() || (this.clean.size() == 1 && this.clean.containsKey(key))) {
+                    throw e;
+                }
+
+                evict(Math.max(1, this.clean.size() / 4), key);
+            }
+        }
+    }
+
+    // called with this locked
+    private void evict(int count, String except) throws IOException {
+        Iterator<String> iterator = this.clean.keySet().iterator();
+
+        for (int i = 0; i < count && iterator.hasNext();) {
+            String key = iterator.next();
+
+            if (!key.equals(except)) {
+                iterator.remove();
+                this.hot.delete(key);
+                ++i;
+            }
+        }
+    }
+
+    // called with this locked
+    private void markDirty(String key, Pending pending) {
+        Pending previous = this.dirty.put(key, pending);
+        if (previous != null) {
+            this.dirtyBytes -= previous.bytes;
+        }
+
+        this.dirtyBytes += pending.bytes;
+        this.clean.remove(key);
+        ++this.writes;
+
+        if (this.dirtyBytes * 2 > this.maxDirtyBytes || this.dirty.size() * 2 > this.maxDirtyCount) {
+            requestFlush();
+        }
+    }
+
+    // called with this locked
+    private boolean isHot(String key) {
+        Pending pending = this.dirty.get(key);
+        return (pending != null) ? !pending.deleted : this.clean.containsKey(key);
+    }
+
+    /**
+     * Logs a record of the write, then writes to the hot driver. A write the hot driver fails is
+     * taken back out of the log.
+     */
+    private <T> T write(String key, byte type, byte[] value, DocumentMeta meta, HotWrite<T> write) throws IOException {
+        synchronized (this) {
+            awaitCapacity(value.length);
+
+            if (type == APPEND && !isHot(key)) {
+                readThroughLocked(key);
+            }
+
+            long sequence = this.sequence + 1;
+            long logSize = writeLog(Collections.singletonList(encodeRecord(sequence, type, key, meta, value)));
+            this.sequence = sequence;
+
+            T result;
+            try {
+                result = writeHot(key, write);
+            } catch (IOException | RuntimeException e) {
+                undoLog(logSize, sequence - 1);
+                throw e;
+            }
+
+            markDirty(key, new Pending(sequence, false, meta, value.length));
+            return result;
+        }
+    }
+
+    public DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return save(key, value, DocumentMeta.create(meta));
+    }
+
+    public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>(1);
+        entries.put(key, new AbstractMap.SimpleEntry<>(value, meta));
+
+        saveAll(entries);
+        return meta;
+    }
+
+    /**
+     * Logs the entries as one write, forced once in SYNC_ON_COMMIT mode.
+     */
+    @Override
+    public Map<String, DocumentMeta> saveAll(Map<String, Map.Entry<byte[], DocumentMeta>> entries)
+            throws IllegalArgumentException, IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> normalized = new LinkedHashMap<>();
+        Map<String, DocumentMeta> metas = new HashMap<>();
+        long bytes = 0;
+
+        for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+            String key = InMemoryPersistentStoreDriver.normalizeKey(entry.getKey());
+
+            normalized.put(key, entry.getValue());
+            // the meta as given, before the hot driver adds its own
+            metas.put(key, entry.getValue().getValue().copy());
+            bytes += entry.getValue().getKey().length;
+        }
+
+        synchronized (this) {
+            awaitCapacity(bytes);
+
+            long first = this.sequence;
+            long sequence = first;
+            List<byte[]> records = new ArrayList<>(normalized.size());
+
+            for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : normalized.entrySet()) {
+                records.add(encodeRecord(++sequence, SAVE, entry.getKey(), metas.get(entry.getKey()),
+                        entry.getValue().getKey()));
+            }
+
+            long logSize = writeLog(records);
+            this.sequence = sequence;
+
+            try {
+                writeHot(null, () -> this.hot.saveAll(normalized));
+            } catch (IOException | RuntimeException e) {
+                undoLog(logSize, first);
+                throw e;
+            }
+
+            sequence = first;
+            for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : normalized.entrySet()) {
+                markDirty(entry.getKey(), new Pending(++sequence, false, metas.get(entry.getKey()),
+                        entry.getValue().getKey().length));
+            }
+        }
+
+        Map<String, DocumentMeta> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getValue());
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads value to its end first. The compress hint is ignored, the payload is stored as is.
+     */
+    @Override
+    public DocumentMeta save(String key, ReadableByteChannel value, DocumentMeta meta)
+            throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream inputStream = Channels.newInputStream(value);
+
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1) {
+            content.write(buffer, 0, n);
+        }
+
+        byte[] bytes = content.toByteArray();
+        DocumentMeta logged = meta.copy().remove(DocumentMeta.COMPRESS);
+
+        return write(normalized, SAVE, bytes, logged,
+                () -> this.hot.save(normalized, Channels.newChannel(new ByteArrayInputStream(bytes)), meta));
+    }
+
+    public DocumentMeta append(String key, byte[] value, Map<String, Object> meta) throws IllegalArgumentException, IOException {
+        return append(key, value, DocumentMeta.create(meta));
+    }
+
+    /**
+     * Logs the appended value only, a document not in the hot driver is read from the cold one first.
+     */
+    public DocumentMeta append(String key, byte[] value, DocumentMeta meta) throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+        DocumentMeta logged = meta.copy();
+
+        return write(normalized, APPEND, value, logged, () -> this.hot.append(normalized, value, meta));
+    }
+
+    public boolean delete(String key) throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+
+        synchronized (this) {
+            awaitCapacity(0);
+
+            Pending pending = this.dirty.get(normalized);
+            boolean existed = isHot(normalized)
+                    || (pending == null && existsCold(normalized));
+
+            if (!existed) {
+                return false;
+            }
+
+            long sequence = this.sequence + 1;
+            long logSize = writeLog(Collections.singletonList(encodeRecord(sequence, DELETE, normalized, null, null)));
+            this.sequence = sequence;
+
+            try {
+                this.hot.delete(normalized);
+            } catch (IOException | RuntimeException e) {
+                undoLog(logSize, sequence - 1);
+                throw e;
+            }
+
+            markDirty(normalized, new Pending(sequence, true, null, 0));
+            return true;
+        }
+    }
+
+    private boolean existsCold(String key) throws IOException {
+        ReadableByteChannel channel;
+        try {
+            channel = this.cold.loadChannel(key).getKey();
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void collectGarbage() throws IOException {
+        this.hot.collectGarbage();
+        this.cold.collectGarbage();
+    }
+
+    // ---- flush ----
+
+    private void requestFlush() {
+        if (this.flushRequested.compareAndSet(false, true)) {
+            this.flushService.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+        this.flushRequested.set(false);
+
+        try {
+            flush();
+        } catch (IOException e) {
+            // retried in the next round
+        }
+    }
+
+    /**
+     * Writes every document dirty by now to the cold driver, then deletes the log segments it
+     * made obsolete. Also run in the background.
+     */
+    public void flush() throws IOException {
+        synchronized (this.flushLock) {
+            List<String> keys;
+            long rolledAt;
+
+            synchronized (this) {
+                syncLog();
+
+                if (this.dirty.isEmpty()) {
+                    return;
+                }
+
+                keys = new ArrayList<>(this.dirty.keySet());
+
+                // records from here on are in the new segment, which the old one must not end in a
+                // torn record for
+                rolledAt = this.sequence + 1;
+                repairLog();
+                this.log.close();
+                openSegment(rolledAt);
+            }
+
+            for (int i = 0; i < keys.size(); i += FLUSH_BATCH_SIZE) {
+                flushBatch(keys.subList(i, Math.min(keys.size(), i + FLUSH_BATCH_SIZE)));
+            }
+
+            syncCold();
+
+            for (Path segment : listSegments()) {
+                if (firstSequence(segment) < rolledAt) {
+                    Files.deleteIfExists(segment);
+                }
+            }
+        }
+    }
+
+    private void flushBatch(List<String> keys) throws IOException {
+        Map<String, Pending> taken = new LinkedHashMap<>();
+        Map<String, Map.Entry<byte[], DocumentMeta>> saves = new LinkedHashMap<>();
+        List<String> deletes = new ArrayList<>();
+
+        synchronized (this) {
+            for (String key : keys) {
+                Pending pending = this.dirty.get(key);
+                if (pending == null) {
+                    continue;
+                }
+
+                taken.put(key, pending);
+
+                if (pending.deleted) {
+                    deletes.add(key);
+                } else {
+                    // dirty documents are never evicted, the hot driver has it as of pending
+                    DocumentMeta meta = pending.meta.copy();
+                    meta.put(LOG_SEQUENCE, Long.toString(pending.sequence));
+                    saves.put(key, new AbstractMap.SimpleEntry<>(this.hot.load(key).getKey(), meta));
+                }
+            }
+        }
+
+        if (!saves.isEmpty()) {
+            this.cold.saveAll(saves);
+        }
+
+        for (String key : deletes) {
+            this.cold.delete(key);
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, Pending> entry : taken.entrySet()) {
+                Pending pending = entry.getValue();
+
+                // a later write leaves it dirty
+                if (this.dirty.get(entry.getKey()) == pending) {
+                    this.dirty.remove(entry.getKey());
+                    this.dirtyBytes -= pending.bytes;
+
+                    if (!pending.deleted) {
+                        this.clean.put(entry.getKey(), Boolean.TRUE);
+                    }
+                }
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops the background flush and writes everything to the cold driver, closing it if it was
+     * created here. Writes fail from now on.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+
+            this.closed = true;
+            notifyAll();
+        }
+
+        this.flushService.shutdown();
+
+        try {
+            this.flushService.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+
+        synchronized (this) {
+            repairLog();
+            syncLog();
+            this.log.close();
+        }
+
+        if (this.closeCold && this.cold instanceof Closeable) {
+            ((Closeable) this.cold).close();
+        }
+    }
+
+    // ---- reads ----
+
+    // called with this locked, copies a written document from the cold driver to the hot one
+    private boolean readThroughLocked(String key) throws IOException {
+        Map.Entry<byte[], DocumentMeta> result;
+        try {
+            result = this.cold.load(key);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        cache(key, result);
+        return true;
+    }
+
+    // called with this locked
+    private void cache(String key, Map.Entry<byte[], DocumentMeta> result) throws IOException {
+        DocumentMeta meta = result.getValue().remove(LOG_SEQUENCE);
+        writeHot(key, () -> this.hot.save(key, result.getKey(), meta));
+        this.clean.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * @return true if the hot driver may have key now
+     */
+    private boolean readThrough(String key) throws IOException {
+        long writes;
+
+        synchronized (this) {
+            Pending pending = this.dirty.get(key);
+            if (pending != null) {
+                return !pending.deleted;
+            }
+
+            writes = this.writes;
+        }
+
+        Map.Entry<byte[], DocumentMeta> result;
+        try {
+            result = this.cold.load(key);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        synchronized (this) {
+            // a write meanwhile is newer than what was read
+            if (this.writes == writes && !this.clean.containsKey(key)) {
+                cache(key, result);
+            }
+
+            return true;
+        }
+    }
+
+    private <T> T read(String key, HotRead<T> read) throws IllegalArgumentException, IOException {
+        String normalized = InMemoryPersistentStoreDriver.normalizeKey(key);
+
+        for (;;) {
+            try {
+                return read.apply(normalized);
+            } catch (NoSuchFileException e) {
+                // not in the hot driver
+            }
+
+            if (!readThrough(normalized)) {
+                throw new NoSuchFileException(key);
+            }
+        }
+    }
+
+    public Map.Entry<byte[], DocumentMeta> load(String key) throws IllegalArgumentException, IOException {
+        return read(key, this.hot::load);
+    }
+
+    @Override
+    public Map.Entry<ByteBuffer, DocumentMeta> loadBuffer(String key) throws IllegalArgumentException, IOException {
+        return read(key, this.hot::loadBuffer);
+    }
+
+    @Override
+    public Map.Entry<ReadableByteChannel, DocumentMeta> loadChannel(String key) throws IllegalArgumentException, IOException {
+        return read(key, this.hot::loadChannel);
+    }
+}
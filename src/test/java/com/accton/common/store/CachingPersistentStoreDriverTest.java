@@ -0,0 +1,100 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.CachingPersistentStoreDriver;
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CachingPersistentStoreDriverTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CachingPersistentStoreDriverTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(CachingPersistentStoreDriverTest.class);
+    }
+
+    public void testLoadFromCache() throws Exception {
+        FilePersistentStoreDriver fileDriver = new FilePersistentStoreDriver(Files.createTempDirectory("cache").toString());
+        CachingPersistentStoreDriver driver = new CachingPersistentStoreDriver(fileDriver, 64 * 1024);
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        byte[] v1 = "{\"version\": 1}".getBytes();
+        byte[] v2 = "{\"version\": 2}".getBytes();
+
+        driver.save("network.current", v1, meta);
+
+        assertTrue(Arrays.equals(driver.load("network.current").getKey(), v1));
+        assertTrue(driver.getMisses() == 1 && driver.getHits() == 0);
+
+        // a copy is returned, changing it doesn't change the cache
+        Map.Entry<byte[], DocumentMeta> result = driver.load("network.current");
+        result.getKey()[0] = 'x';
+        result.getValue().put("size", 0);
+        assertTrue(driver.getHits() == 1);
+
+        result = driver.load("network.current");
+        assertTrue(Arrays.equals(result.getKey(), v1));
+        assertTrue(result.getValue().getSize() == v1.length);
+        assertTrue(driver.loadBuffer("network.current").getKey().equals(ByteBuffer.wrap(v1)));
+        assertTrue(driver.getHits() == 3);
+
+        // a save drops the cached document
+        driver.save("network.current", v2, meta);
+        assertTrue(Arrays.equals(driver.load("network.current").getKey(), v2));
+        assertTrue(driver.getMisses() == 2);
+
+        driver.append("network.current", v1, meta);
+        assertTrue(driver.load("network.current").getKey().length == v2.length + v1.length);
+        assertTrue(driver.getMisses() == 3);
+    }
+
+    public void testEviction() throws Exception {
+        FilePersistentStoreDriver fileDriver = new FilePersistentStoreDriver(Files.createTempDirectory("cache").toString());
+        CachingPersistentStoreDriver driver = new CachingPersistentStoreDriver(fileDriver, 3 * (1024 + 512));
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        for (int i = 0; i < 4; ++i) {
+            driver.save("package" + i + ".current", new byte[1024], meta);
+        }
+
+        for (int i = 0; i < 4; ++i) {
+            driver.load("package" + i + ".current");
+        }
+
+        // the least recently used document is evicted
+        assertTrue(driver.getEvictions() == 1);
+        assertTrue(driver.getCachedBytes() <= driver.getMaxBytes());
+
+        driver.load("package3.current");
+        driver.load("package0.current");
+        assertTrue(driver.getHits() == 1 && driver.getMisses() == 5);
+
+        // larger than the whole cache
+        driver.save("large.current", new byte[16 * 1024], meta);
+        driver.load("large.current");
+        driver.load("large.current");
+        assertTrue(driver.getMisses() == 7);
+    }
+}
@@ -0,0 +1,88 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.DeflatePayloadCodec;
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading a config with and without compression, synced on every save like on a
+ * flash-limited appliance. level -1 saves uncompressed, otherwise it's the Deflater level. The
+ * compression ratio is printed after each trial.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main CompressionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"-1", "1", "6"})
+    public int level;
+
+    @Param({"4096", "262144"})
+    public int documentBytes;
+
+    private FilePersistentStoreDriver driver;
+    private byte[] content;
+    private DocumentMeta saved;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.driver = new FilePersistentStoreDriver(
+                Files.createTempDirectory("angelfish-bench").toString(), FilePersistentStoreDriver.DurabilityMode.SYNC_ON_COMMIT);
+        if (this.level >= 0) {
+            this.driver.setCodec(new DeflatePayloadCodec(this.level));
+        }
+
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; builder.length() < this.documentBytes - 64; ++i) {
+            builder.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"name\": \"vlan").append(i)
+                    .append("\", \"enabled\": ").append(i % 3 == 0).append("}");
+        }
+        this.content = builder.append("]").toString().getBytes();
+
+        this.saved = save();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.driver.close();
+
+        Integer storedSize = this.saved.getInt(DocumentMeta.STORED_SIZE);
+        System.out.println("level=" + this.level + " size=" + this.content.length
+                + " stored=" + (storedSize != null ? storedSize : this.content.length));
+    }
+
+    @Benchmark
+    public DocumentMeta save() throws IOException {
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+        meta.put(DocumentMeta.COMPRESS, this.level >= 0);
+
+        return this.driver.save("network.current", this.content, meta);
+    }
+
+    @Benchmark
+    public byte[] load() throws IOException {
+        return this.driver.load("network.current").getKey();
+    }
+}
@@ -0,0 +1,74 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves from many threads, each to a package of its own or all to the same package. Packages are
+ * written in parallel, so the first should scale with the threads, up to the disk, and the second
+ * shouldn't lose throughput to contention. Compare runs with -t 1 and -t max.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main ConcurrentSaveBenchmark -t max
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(Threads.MAX)
+public class ConcurrentSaveBenchmark {
+    @Param({"false", "true"})
+    public boolean samePackage;
+
+    private FilePersistentStoreDriver driver;
+    private PersistentStoreManager shared;
+    private final AtomicInteger packages = new AtomicInteger();
+    private byte[] content;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path directory = Files.createTempDirectory("angelfish-bench");
+        this.driver = new FilePersistentStoreDriver(directory.toString());
+        this.shared = new PersistentStoreManager("shared", this.driver);
+
+        StringBuilder builder = new StringBuilder("{\"vlans\": [");
+        for (int i = 0; i < 256; ++i) {
+            builder.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"name\": \"vlan").append(i).append("\"}");
+        }
+        this.content = builder.append("]}").toString().getBytes();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        PersistentStoreManager mgr;
+
+        @Setup
+        public void setUp(ConcurrentSaveBenchmark benchmark) {
+            this.mgr = benchmark.samePackage ? benchmark.shared
+                    : new PersistentStoreManager("package" + benchmark.packages.incrementAndGet(), benchmark.driver);
+        }
+    }
+
+    @Benchmark
+    public void save(ThreadState state) throws IOException {
+        state.mgr.save(this.content);
+    }
+}
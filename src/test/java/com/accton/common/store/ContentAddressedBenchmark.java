@@ -0,0 +1,88 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Automation re-applying the same config: every changeEvery-th save has new content, the others
+ * repeat the previous one. The disk usage of the store is printed after each trial.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main ContentAddressedBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContentAddressedBenchmark {
+    @Param({"false", "true"})
+    public boolean contentAddressed;
+
+    @Param({"1", "10"})
+    public int changeEvery;
+
+    private Path directory;
+    private PersistentStoreManager mgr;
+    private byte[] content;
+    private long saves;
+    private Calendar calendar;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("angelfish-bench");
+        this.mgr = new PersistentStoreManager("network", new FilePersistentStoreDriver(this.directory.toString()));
+        this.mgr.setContentAddressed(this.contentAddressed);
+
+        // one second between saves, so every save is a version of its own
+        this.calendar = Calendar.getInstance();
+        this.mgr.setCalendarInstance(this.calendar);
+
+        StringBuilder builder = new StringBuilder("{\"vlans\": [");
+        for (int i = 0; i < 1024; ++i) {
+            builder.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"name\": \"vlan").append(i).append("\"}");
+        }
+        this.content = builder.append("], \"revision\": 0000000000}").toString().getBytes();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        long bytes;
+        try (Stream<Path> files = Files.walk(this.directory)) {
+            bytes = files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+
+        System.out.println("contentAddressed=" + this.contentAddressed + " changeEvery=" + this.changeEvery
+                + " saves=" + this.saves + " disk usage=" + bytes + " bytes");
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        if (this.saves++ % this.changeEvery == 0) {
+            // rewrite the 10 digit revision at the end of the document
+            String revision = String.format("%010d", this.saves % 10000000000L);
+            System.arraycopy(revision.getBytes(), 0, this.content, this.content.length - 11, 10);
+        }
+
+        this.calendar.add(Calendar.SECOND, 1);
+        this.mgr.save(this.content);
+    }
+}
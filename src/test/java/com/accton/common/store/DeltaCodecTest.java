@@ -0,0 +1,81 @@
+package com.accton.common.store;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class DeltaCodecTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public DeltaCodecTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(DeltaCodecTest.class);
+    }
+
+    private static byte[] config(int vlans, String suffix) {
+        StringBuilder builder = new StringBuilder("{\"vlans\": [");
+        for (int i = 0; i < vlans; ++i) {
+            builder.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"name\": \"vlan").append(i).append(suffix).append("\"}");
+        }
+        return builder.append("]}").toString().getBytes();
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] base = config(200, "");
+
+        byte[] changed = base.clone();
+        changed[100] = 'X';
+        changed[5000] = 'Y';
+
+        byte[][] targets = {base, changed, config(210, ""), config(150, "-renamed"), new byte[0], "short".getBytes()};
+
+        for (byte[] target : targets) {
+            byte[] delta = DeltaCodec.encode(base, target);
+            assertTrue(Arrays.equals(DeltaCodec.decode(base, delta), target));
+        }
+
+        // a few changed fields cost a few bytes
+        assertTrue(DeltaCodec.encode(base, changed).length < 64);
+
+        Random random = new Random(1);
+        byte[] noise = new byte[4096];
+        random.nextBytes(noise);
+        assertTrue(Arrays.equals(DeltaCodec.decode(base, DeltaCodec.encode(base, noise)), noise));
+        assertTrue(Arrays.equals(DeltaCodec.decode(new byte[0], DeltaCodec.encode(new byte[0], base)), base));
+    }
+
+    public void testInvalidDelta() {
+        byte[] base = config(10, "");
+        byte[] delta = DeltaCodec.encode(base, config(11, ""));
+
+        byte[][] invalids = {
+                Arrays.copyOf(delta, delta.length - 1),
+                DeltaCodec.encode(config(12, ""), base),
+                "not a delta".getBytes(),
+                new byte[0]
+        };
+
+        for (byte[] invalid : invalids) {
+            try {
+                DeltaCodec.decode(base, invalid);
+                fail();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
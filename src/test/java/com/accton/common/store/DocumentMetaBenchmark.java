@@ -0,0 +1,82 @@
+package com.accton.common.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DocumentMeta operations done for every save (create from the meta map, serialize) and for
+ * every history record loaded (parse). Run with the gc profiler to see the allocation rate:
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main DocumentMetaBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DocumentMetaBenchmark {
+    private Map<String, Object> meta;
+    private String json;
+    private byte[] jsonBytes;
+
+    @Setup
+    public void setUp() {
+        this.meta = new HashMap<>();
+        this.meta.put("version", "1.0");
+        this.meta.put("id", "20170501010000000");
+        this.meta.put("key", "network.current");
+        this.meta.put("modified", "2017-05-01 01:00:00.000");
+        this.meta.put("modifiedFormat", "yyyy-MM-dd HH:mm:ss.SSS");
+        this.meta.put("fileExtension", ".json");
+
+        DocumentMeta documentMeta = DocumentMeta.create(this.meta);
+        documentMeta.put("fileUrl", "/var/angelfish/network/backups/20170501010000000.json");
+        documentMeta.put("size", 1024);
+
+        this.json = documentMeta.toJsonString();
+        this.jsonBytes = documentMeta.toJsonBytes();
+    }
+
+    @Benchmark
+    public DocumentMeta createFromMap() {
+        return DocumentMeta.create(this.meta);
+    }
+
+    @Benchmark
+    public DocumentMeta createFromString() {
+        return DocumentMeta.create(this.json);
+    }
+
+    @Benchmark
+    public DocumentMeta createFromBytes() {
+        return DocumentMeta.create(this.jsonBytes);
+    }
+
+    @Benchmark
+    public String toJsonString() {
+        return DocumentMeta.create(this.meta).toJsonString();
+    }
+
+    @Benchmark
+    public byte[] toJsonBytes() {
+        return DocumentMeta.create(this.meta).toJsonBytes();
+    }
+
+    @Benchmark
+    public String getId() {
+        return DocumentMeta.create(this.meta).getId();
+    }
+}
@@ -9,6 +9,8 @@ import junit.framework.TestSuite;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -200,4 +202,43 @@ public class DocumentMetaTest
 //        String abc = jsonObject.optString("abc");
 //        assertTrue(true);
     }
+
+    public void testModifiedTime() throws ParseException {
+        DocumentMeta meta = new DocumentMeta("id", "2017-05-01 01:00:00.000", 100, "");
+
+        long expected = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").parse("2017-05-01 01:00:00.000").getTime();
+        assertTrue(meta.getModifiedTime() == expected);
+        assertTrue(DocumentMeta.formatTime(expected, DocumentMeta.DEFAULT_MODIFIED_FORMAT).equals("2017-05-01 01:00:00.000"));
+
+        meta.put("modified", "2017-05-01 01:10:00.000");
+        assertTrue(meta.getModifiedTime() == expected + 10 * 60 * 1000);
+
+        meta.put("modified", "2000-01-01 00:00:00:000");
+        assertTrue(meta.getModifiedTime() == DocumentMeta.INVALID_TIME);
+    }
+
+    public void testCoreFieldsRoundTrip() {
+        DocumentMeta meta = DocumentMeta.create("{\"id\": 123, \"key\": \"network.current\", \"size\": 10, \"extra\": [1, 2]}");
+
+        assertTrue(meta.getId().equals("123"));
+        assertTrue(meta.getKey().equals("network.current"));
+        assertTrue(meta.getSize() == 10);
+        assertTrue(meta.getFileUrl() == null);
+
+        meta.put("size", 20L);
+        meta.put("fileUrl", "/tmp/network/current.json");
+        assertTrue(meta.getSize() == 20);
+
+        DocumentMeta copy = DocumentMeta.create(meta.toJsonBytes());
+        assertTrue(copy.getId().equals("123"));
+        assertTrue(copy.getKey().equals("network.current"));
+        assertTrue(copy.getSize() == 20);
+        assertTrue(copy.getFileUrl().equals("/tmp/network/current.json"));
+        assertTrue(copy.get("extra").toString().equals("[1,2]"));
+        assertTrue(copy.keys().length == 5);
+
+        copy.put("size", "unknown");
+        assertTrue(copy.getString("size").equals("unknown"));
+        assertTrue(copy.getSize() == 0);
+    }
 }
@@ -0,0 +1,95 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushing a config to many packages: one saveAll of N documents against N single saves.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main FilePersistentStoreDriverBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilePersistentStoreDriverBenchmark {
+    @Param({"1", "16", "128"})
+    public int packages;
+
+    @Param({"NO_SYNC", "SYNC_ON_COMMIT", "PERIODIC_SYNC"})
+    public FilePersistentStoreDriver.DurabilityMode durability;
+
+    private FilePersistentStoreDriver driver;
+    private byte[] value;
+    private String[] keys;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.driver = new FilePersistentStoreDriver(
+                Files.createTempDirectory("angelfish-bench").toString(), this.durability);
+
+        this.value = new byte[4096];
+        for (int i = 0; i < this.value.length; ++i) {
+            this.value[i] = (byte) ('a' + i % 26);
+        }
+
+        this.keys = new String[this.packages];
+        for (int i = 0; i < this.packages; ++i) {
+            this.keys[i] = "package" + i + ".current";
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.driver.close();
+    }
+
+    private DocumentMeta createMeta() {
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+        return DocumentMeta.create(meta);
+    }
+
+    @Benchmark
+    public Map<String, DocumentMeta> saveAll() throws IOException {
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>();
+
+        for (String key : this.keys) {
+            entries.put(key, new AbstractMap.SimpleEntry<>(this.value, createMeta()));
+        }
+
+        return this.driver.saveAll(entries);
+    }
+
+    @Benchmark
+    public DocumentMeta saveOneByOne() throws IOException {
+        DocumentMeta documentMeta = null;
+
+        for (String key : this.keys) {
+            documentMeta = this.driver.save(key, this.value, createMeta());
+        }
+
+        return documentMeta;
+    }
+}
@@ -5,11 +5,22 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Unit test for simple App.
@@ -83,6 +94,386 @@ public class FilePersistentStoreDriverDriverTest
         }
     }
 
+    public void testSaveAll() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd, true);
+
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>();
+
+        for (int i = 0; i < 10; ++i) {
+            Map<String, Object> meta = new HashMap<>();
+            meta.put("fileExtension", ".json");
+
+            entries.put("batch.package" + i, new AbstractMap.SimpleEntry<>(
+                    ("{\"package\": " + i + "}").getBytes(), DocumentMeta.create(meta)));
+        }
+
+        try {
+            Map<String, DocumentMeta> result = service.saveAll(entries);
+            assertTrue(result.size() == 10);
+
+            Map<String, Map.Entry<byte[], DocumentMeta>> loaded = service.loadAll(entries.keySet());
+            assertTrue(loaded.size() == 10);
+
+            for (Map.Entry<String, Map.Entry<byte[], DocumentMeta>> entry : entries.entrySet()) {
+                assertTrue(Arrays.equals(loaded.get(entry.getKey()).getKey(), entry.getValue().getKey()));
+                assertTrue(loaded.get(entry.getKey()).getValue().getSize() == entry.getValue().getKey().length);
+                assertTrue(result.get(entry.getKey()).getFileUrl().equals(loaded.get(entry.getKey()).getValue().getFileUrl()));
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveAllIllegalKeyError() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver("");
+
+        Map<String, Map.Entry<byte[], DocumentMeta>> entries = new LinkedHashMap<>();
+        entries.put("batch.valid", new AbstractMap.SimpleEntry<>("valid".getBytes(), DocumentMeta.create(new HashMap<String, Object>())));
+        entries.put("invalid", new AbstractMap.SimpleEntry<>("invalid".getBytes(), DocumentMeta.create(new HashMap<String, Object>())));
+
+        try {
+            service.saveAll(entries);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // nothing is written when a key is invalid
+            assertFalse(new File("batch" + File.separator + "valid.meta.json").isFile());
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveCrashRecovery() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd, FilePersistentStoreDriver.DurabilityMode.SYNC_ON_COMMIT);
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        try {
+            byte[] v1 = "{\"version\": 1}".getBytes();
+            service.save("crash.recovery", v1, meta);
+
+            // crash while saving v2, before the meta file is renamed
+            String path = this.cwd + File.separator + "crash" + File.separator + "recovery";
+            Files.write(Paths.get(path + ".zzzzzz.json"), "{\"vers".getBytes());
+            Files.write(Paths.get(path + ".meta.json.zzzzzz.tmp"), "{\"fileUrl\":".getBytes());
+
+            Map.Entry<byte[], DocumentMeta> result = service.load("crash.recovery");
+            assertTrue(Arrays.equals(result.getKey(), v1));
+            assertTrue(result.getValue().getSize() == v1.length);
+
+            // crash right after the rename, the payload of v1 is left behind
+            byte[] v2 = "{\"version\": 2}".getBytes();
+            String v1FileUrl = result.getValue().getFileUrl();
+            byte[] v1Content = Files.readAllBytes(Paths.get(v1FileUrl));
+
+            service.save("crash.recovery", v2, meta);
+            Files.write(Paths.get(v1FileUrl), v1Content);
+
+            result = service.load("crash.recovery");
+            assertTrue(Arrays.equals(result.getKey(), v2));
+            assertTrue(result.getValue().getSize() == v2.length);
+
+            Files.deleteIfExists(Paths.get(v1FileUrl));
+            Files.deleteIfExists(Paths.get(path + ".zzzzzz.json"));
+            Files.deleteIfExists(Paths.get(path + ".meta.json.zzzzzz.tmp"));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testConcurrentSaveLoad() throws Exception {
+        final FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd);
+
+        final Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        service.save("concurrent.document", "{}".getBytes(), meta);
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread writer = new Thread(() -> {
+            try {
+                StringBuilder builder = new StringBuilder();
+                for (int i = 0; i < 200; ++i) {
+                    builder.append(i);
+                    service.save("concurrent.document", ("{\"n\": \"" + builder + "\"}").getBytes(), meta);
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+
+        writer.start();
+
+        while (writer.isAlive()) {
+            Map.Entry<byte[], DocumentMeta> result = service.load("concurrent.document");
+
+            // never a payload of one save with the meta of another
+            assertTrue(result.getKey().length == result.getValue().getSize());
+        }
+
+        writer.join();
+        assertTrue(error.get() == null);
+    }
+
+    public void testPeriodicSync() {
+        try (FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd,
+                FilePersistentStoreDriver.DurabilityMode.PERIODIC_SYNC, 10)) {
+            byte[] value = "{\"periodic\": true}".getBytes();
+            Map<String, Object> meta = new HashMap<>();
+            meta.put("fileExtension", ".json");
+
+            service.save("periodic.document", value, meta);
+
+            Map.Entry<byte[], DocumentMeta> result = service.load("periodic.document");
+            assertTrue(Arrays.equals(result.getKey(), value));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testPeriodicSyncFailure() throws Exception {
+        try (FilePersistentStoreDriver service = new FilePersistentStoreDriver(
+                Files.createTempDirectory("periodic").toString(),
+                FilePersistentStoreDriver.DurabilityMode.PERIODIC_SYNC, 60 * 60 * 1000)) {
+            Map<String, Object> meta = new HashMap<>();
+            meta.put("fileExtension", ".json");
+
+            // a payload that can't be forced
+            DocumentMeta saved = service.save("periodic.failing", "{}".getBytes(), meta);
+            Files.delete(Paths.get(saved.getFileUrl()));
+            Files.createDirectory(Paths.get(saved.getFileUrl()));
+
+            for (int i = 0; i < 2; ++i) {
+                try {
+                    service.sync();
+                    fail();
+                } catch (IOException e) {
+                    // expected, kept for the next sync
+                }
+            }
+
+            Files.delete(Paths.get(saved.getFileUrl()));
+            service.sync();
+        }
+    }
+
+    public void testAppendNoSync() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd,
+                FilePersistentStoreDriver.DurabilityMode.NO_SYNC);
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        try {
+            service.append("nosync.journal", "a".getBytes(), meta);
+            service.append("nosync.journal", "bc".getBytes(), meta);
+
+            // the meta is rewritten on every append, not only the first
+            Map.Entry<byte[], DocumentMeta> result = service.load("nosync.journal");
+            assertTrue(Arrays.equals(result.getKey(), "abc".getBytes()));
+            assertTrue(result.getValue().getSize() == 3);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testLoadBuffer() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd);
+
+        byte[] small = "{\"hello\": \"world\"}".getBytes();
+        byte[] large = new byte[64 * 1024];
+        Arrays.fill(large, (byte) 'x');
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        try {
+            service.setMapThreshold(large.length);
+
+            service.save("buffer.small", small, meta);
+            service.save("buffer.large", large, meta);
+
+            Map.Entry<ByteBuffer, DocumentMeta> result = service.loadBuffer("buffer.small");
+            assertTrue(result.getKey().isReadOnly());
+            assertFalse(result.getKey().isDirect());
+            assertTrue(result.getKey().equals(ByteBuffer.wrap(small)));
+
+            result = service.loadBuffer("buffer.large");
+            assertTrue(result.getKey().isReadOnly());
+            assertTrue(result.getKey().isDirect());
+            assertTrue(result.getKey().equals(ByteBuffer.wrap(large)));
+
+            // a mapped buffer keeps its content when the document is saved again
+            service.save("buffer.large", small, meta);
+            assertTrue(result.getKey().equals(ByteBuffer.wrap(large)));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveChannel() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd);
+
+        byte[] value = new byte[200 * 1024];
+        for (int i = 0; i < value.length; ++i) {
+            value[i] = (byte) ('a' + i % 26);
+        }
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        try {
+            DocumentMeta documentMeta = service.save("channel.document", new ByteArrayInputStream(value), DocumentMeta.create(meta));
+            assertTrue(documentMeta.getSize() == value.length);
+
+            Map.Entry<ReadableByteChannel, DocumentMeta> result = service.loadChannel("channel.document");
+            assertTrue(result.getValue().getSize() == value.length);
+
+            try (InputStream inputStream = Channels.newInputStream(result.getKey())) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = inputStream.read(buffer)) != -1) {
+                    content.write(buffer, 0, n);
+                }
+
+                assertTrue(Arrays.equals(content.toByteArray(), value));
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveContentAddressed() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd);
+
+        byte[] value = "{\"shared\": true}".getBytes();
+        byte[] other = "{\"shared\": false}".getBytes();
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+        meta.put(DocumentMeta.CONTENT_ADDRESSED, true);
+
+        try {
+            DocumentMeta first = service.save("dedup.first", value, meta);
+            DocumentMeta second = service.save("dedup.second", new ByteArrayInputStream(value), DocumentMeta.create(meta));
+
+            // stored once
+            assertTrue(first.getFileUrl().equals(second.getFileUrl()));
+            assertTrue(first.getString(DocumentMeta.CONTENT_HASH).equals(second.getString(DocumentMeta.CONTENT_HASH)));
+
+            // replacing one document keeps the shared content of the other
+            service.save("dedup.first", other, meta);
+            assertTrue(Arrays.equals(service.load("dedup.second").getKey(), value));
+            assertTrue(Arrays.equals(service.load("dedup.first").getKey(), other));
+
+            // append doesn't change the shared content
+            service.save("dedup.first", value, meta);
+            service.append("dedup.first", other, new HashMap<String, Object>() {{ put("fileExtension", ".json"); }});
+            assertTrue(Arrays.equals(service.load("dedup.second").getKey(), value));
+            assertTrue(service.load("dedup.first").getValue().getSize() == value.length + other.length);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testDelete() {
+        try {
+            FilePersistentStoreDriver service = new FilePersistentStoreDriver(Files.createTempDirectory("delete").toString());
+            service.setBlobGraceMilliSeconds(0);
+
+            byte[] value = "{\"delete\": true}".getBytes();
+
+            Map<String, Object> meta = new HashMap<>();
+            meta.put("fileExtension", ".json");
+
+            DocumentMeta plain = service.save("delete.plain", value, meta);
+            assertTrue(service.delete("delete.plain"));
+            assertTrue(!Files.exists(Paths.get(plain.getFileUrl())));
+            assertTrue(!service.delete("delete.plain"));
+
+            try {
+                service.load("delete.plain");
+                fail();
+            } catch (IOException e) {
+            }
+
+            // a shared blob stays until no document uses it
+            meta.put(DocumentMeta.CONTENT_ADDRESSED, true);
+            DocumentMeta first = service.save("delete.first", value, meta);
+            service.save("delete.second", value, meta);
+
+            assertTrue(service.delete("delete.first"));
+            service.collectGarbage();
+            assertTrue(Files.exists(Paths.get(first.getFileUrl())));
+            assertTrue(Arrays.equals(service.load("delete.second").getKey(), value));
+
+            assertTrue(service.delete("delete.second"));
+            service.collectGarbage();
+            assertTrue(!Files.exists(Paths.get(first.getFileUrl())));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveCompressed() {
+        FilePersistentStoreDriver service = new FilePersistentStoreDriver(this.cwd);
+
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < 1000; ++i) {
+            builder.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append(", \"name\": \"vlan").append(i).append("\"}");
+        }
+        byte[] value = builder.append("]").toString().getBytes();
+        byte[] tail = ", {}".getBytes();
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+        meta.put(DocumentMeta.COMPRESS, true);
+
+        try {
+            DocumentMeta documentMeta = service.save("compressed.document", value, meta);
+            assertTrue(documentMeta.getString(DocumentMeta.CODEC).equals("deflate"));
+            assertTrue(documentMeta.getSize() == value.length);
+            assertTrue(new File(documentMeta.getFileUrl()).length() == documentMeta.getInt(DocumentMeta.STORED_SIZE));
+            assertTrue(new File(documentMeta.getFileUrl()).length() < value.length / 4);
+
+            assertTrue(Arrays.equals(service.load("compressed.document").getKey(), value));
+            assertTrue(service.loadBuffer("compressed.document").getKey().equals(ByteBuffer.wrap(value)));
+
+            try (InputStream inputStream = Channels.newInputStream(service.loadChannel("compressed.document").getKey())) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = inputStream.read(buffer)) != -1) {
+                    content.write(buffer, 0, n);
+                }
+
+                assertTrue(Arrays.equals(content.toByteArray(), value));
+            }
+
+            // appended to the decoded document
+            documentMeta = service.append("compressed.document", tail, new HashMap<String, Object>() {{ put("fileExtension", ".json"); }});
+            assertTrue(documentMeta.getString(DocumentMeta.CODEC) == null);
+            assertTrue(service.load("compressed.document").getKey().length == value.length + tail.length);
+
+            // below the threshold
+            documentMeta = service.save("compressed.small", "{\"hello\": \"world\"}".getBytes(), meta);
+            assertTrue(documentMeta.getString(DocumentMeta.CODEC) == null);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
     public void testSaveFileError() {
         FilePersistentStoreDriver service = new FilePersistentStoreDriver("a:\\qwertyuiop\\asdfghjkl");
 
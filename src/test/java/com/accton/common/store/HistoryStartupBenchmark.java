@@ -0,0 +1,77 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start of a package: BackupService.init reading a history of the given number of versions,
+ * from the binary snapshot or from the JSON checkpoint of older releases.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main HistoryStartupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryStartupBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int versions;
+
+    @Param({"snapshot", "json"})
+    public String format;
+
+    private FilePersistentStoreDriver driver;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.driver = new FilePersistentStoreDriver(Files.createTempDirectory("angelfish-bench").toString());
+
+        VersionHistoryCache versionHistoryCache = new VersionHistoryCache();
+        long start = DocumentMeta.parseTime("2017-05-01 00:00:00.000", DocumentMeta.DEFAULT_MODIFIED_FORMAT);
+
+        for (int i = 0; i < this.versions; ++i) {
+            DocumentMeta documentMeta = new DocumentMeta(String.format("%017d", i),
+                    DocumentMeta.formatTime(start + i * 1000L, DocumentMeta.DEFAULT_MODIFIED_FORMAT), 4096, "");
+            documentMeta.put("key", VersionHistoryCacheBenchmark.KEYS[i % VersionHistoryCacheBenchmark.KEYS.length]);
+            documentMeta.put("modifiedBy", "admin");
+            versionHistoryCache.add(documentMeta);
+        }
+
+        Map<String, Object> meta = new HashMap<>();
+
+        if (this.format.equals("snapshot")) {
+            meta.put("fileExtension", ".bin");
+            this.driver.save("history.versionHistorySnapshot", versionHistoryCache.toSnapshot(), meta);
+        } else {
+            meta.put("fileExtension", ".json");
+            this.driver.save("history.versionHistoryCache",
+                    versionHistoryCache.toJsonString().getBytes(StandardCharsets.UTF_8), meta);
+        }
+    }
+
+    @Benchmark
+    public BackupService init() throws IOException {
+        BackupService backupService = new BackupService("history", this.driver);
+        backupService.init();
+        return backupService;
+    }
+}
@@ -0,0 +1,207 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.InMemoryPersistentStoreDriver;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+public class InMemoryPersistentStoreDriverTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public InMemoryPersistentStoreDriverTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(InMemoryPersistentStoreDriverTest.class);
+    }
+
+    public void testSaveLoad() throws Exception {
+        InMemoryPersistentStoreDriver driver = new InMemoryPersistentStoreDriver();
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        byte[] v1 = "{\"version\": 1}".getBytes();
+        byte[] v2 = "{\"version\": 2}".getBytes();
+
+        DocumentMeta saved = driver.save("network.current", v1, meta);
+        assertTrue(saved.getSize() == v1.length);
+        assertTrue(saved.getFileUrl().endsWith("network.current.json"));
+
+        ByteBuffer view = driver.loadBuffer("network.current").getKey();
+        assertTrue(view.isReadOnly());
+
+        // a view stays valid after the document is saved again
+        driver.save("network.current", v2, meta);
+        assertTrue(view.equals(ByteBuffer.wrap(v1)));
+
+        Map.Entry<byte[], DocumentMeta> result = driver.load("network.current");
+        assertTrue(Arrays.equals(result.getKey(), v2));
+        assertTrue(result.getValue().getSize() == v2.length);
+
+        // a copy of the meta is returned
+        result.getValue().put("size", 0);
+        assertTrue(driver.load("network.current").getValue().getSize() == v2.length);
+
+        driver.append("network.current", v1, meta);
+        byte[] both = new byte[v1.length + v2.length];
+        System.arraycopy(v2, 0, both, 0, v2.length);
+        System.arraycopy(v1, 0, both, v2.length, v1.length);
+        assertTrue(Arrays.equals(driver.load("network.current").getKey(), both));
+        assertTrue(driver.load("network.current").getValue().getSize() == both.length);
+
+        try {
+            driver.load("network.missing");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        try {
+            driver.save("..", v1, meta);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // a package and a name at least, as the file driver
+        try {
+            driver.save("network", v1, meta);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertTrue(driver.delete("network.current"));
+        assertTrue(!driver.delete("network.current"));
+    }
+
+    public void testContentAddressedAndCompress() throws Exception {
+        InMemoryPersistentStoreDriver driver = new InMemoryPersistentStoreDriver();
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put(DocumentMeta.CONTENT_ADDRESSED, true);
+
+        byte[] value = "{\"hello\": \"world\"}".getBytes();
+
+        DocumentMeta a = driver.save("foo.a", value, meta);
+        DocumentMeta b = driver.save("foo.b", value, meta);
+        assertTrue(a.getFileUrl().equals(b.getFileUrl()));
+        assertTrue(a.getString(DocumentMeta.CONTENT_HASH) != null);
+
+        // the blob is kept while a document uses it
+        driver.delete("foo.a");
+        assertTrue(Arrays.equals(driver.load("foo.b").getKey(), value));
+
+        byte[] large = new byte[64 * 1024];
+        Arrays.fill(large, (byte)'a');
+
+        meta = new HashMap<>();
+        meta.put(DocumentMeta.COMPRESS, true);
+
+        DocumentMeta compressed = driver.save("foo.large", large, meta);
+        assertTrue(compressed.getString(DocumentMeta.CODEC) != null);
+        assertTrue(compressed.getInt(DocumentMeta.STORED_SIZE) < large.length);
+        assertTrue(compressed.getSize() == large.length);
+        assertTrue(Arrays.equals(driver.load("foo.large").getKey(), large));
+        assertTrue(driver.loadBuffer("foo.large").getKey().equals(ByteBuffer.wrap(large)));
+    }
+
+    public void testCapacity() throws Exception {
+        InMemoryPersistentStoreDriver driver = new InMemoryPersistentStoreDriver(64 * 1024, 16 * 1024);
+
+        byte[] value = new byte[6 * 1024];
+        Map<String, Object> meta = new HashMap<>();
+
+        // replaced payloads are compacted away, the slabs stay within capacity
+        for (int i = 0; i < 100; ++i) {
+            value[0] = (byte)i;
+            driver.save("foo.current", value, meta);
+            assertTrue(driver.getAllocatedBytes() <= driver.getCapacityBytes());
+        }
+
+        assertTrue(driver.load("foo.current").getKey()[0] == 99);
+
+        try {
+            for (int i = 0; i < 100; ++i) {
+                driver.save("foo.v" + i, value, meta);
+            }
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertTrue(driver.getAllocatedBytes() <= driver.getCapacityBytes());
+        assertTrue(driver.load("foo.current").getKey()[0] == 99);
+    }
+
+    public void testManager() throws Exception {
+        InMemoryPersistentStoreDriver driver = new InMemoryPersistentStoreDriver();
+        PersistentStoreManager mgr = new PersistentStoreManager("foo", driver);
+        Calendar calendar = Calendar.getInstance();
+
+        for (int i = 0; i < 10; ++i) {
+            calendar.set(2017, 5, 1, 0, i * 10, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save(("{\"version\": " + i + "}").getBytes());
+        }
+
+        DocumentMeta[] versionHistory = mgr.getAllVersions("foo.current");
+        assertTrue(versionHistory.length == 10);
+        assertTrue(Arrays.equals(mgr.restore(versionHistory[3].getId()), "{\"version\": 6}".getBytes()));
+
+        PersistentStoreManager mgr2 = new PersistentStoreManager("foo", driver);
+        mgr2.init();
+
+        assertTrue(mgr2.getAllVersions("foo.current").length == 10);
+        assertTrue(Arrays.equals(mgr2.getCurrentVersionContent(), "{\"version\": 6}".getBytes()));
+    }
+
+    public void testDefaultMethods() throws Exception {
+        InMemoryPersistentStoreDriver memory = new InMemoryPersistentStoreDriver();
+
+        // a driver written before append and delete were added
+        PersistentStoreDriver driver = new PersistentStoreDriver() {
+            public DocumentMeta save(String key, byte[] value, Map<String, Object> meta) throws IOException {
+                return memory.save(key, value, meta);
+            }
+
+            public DocumentMeta save(String key, byte[] value, DocumentMeta meta) throws IOException {
+                return memory.save(key, value, meta);
+            }
+
+            public Map.Entry<byte[], DocumentMeta> load(String key) throws IOException {
+                return memory.load(key);
+            }
+        };
+
+        Map<String, Object> meta = new HashMap<>();
+        driver.append("foo.journal", "a".getBytes(), meta);
+        driver.append("foo.journal", "b".getBytes(), meta);
+        assertTrue(Arrays.equals(driver.load("foo.journal").getKey(), "ab".getBytes()));
+
+        try {
+            driver.delete("foo.journal");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
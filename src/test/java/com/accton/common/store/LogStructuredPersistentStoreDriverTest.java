@@ -0,0 +1,218 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver.DurabilityMode;
+import com.accton.common.store.impl.LogStructuredPersistentStoreDriver;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LogStructuredPersistentStoreDriverTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public LogStructuredPersistentStoreDriverTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(LogStructuredPersistentStoreDriverTest.class);
+    }
+
+    public void testSaveLoad() throws Exception {
+        Path directory = Files.createTempDirectory("log");
+        LogStructuredPersistentStoreDriver driver = new LogStructuredPersistentStoreDriver(directory.toString());
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        byte[] v1 = "{\"version\": 1}".getBytes();
+        byte[] v2 = "{\"version\": 2}".getBytes();
+
+        DocumentMeta saved = driver.save("network.current", v1, meta);
+        assertTrue(saved.getSize() == v1.length);
+        assertTrue(saved.getFileUrl() != null);
+
+        driver.save("network.current", v2, meta);
+        driver.save("network.old", v1, meta);
+        driver.append("network.journal", v1, meta);
+        driver.append("network.journal", v2, meta);
+
+        byte[] both = new byte[v1.length + v2.length];
+        System.arraycopy(v1, 0, both, 0, v1.length);
+        System.arraycopy(v2, 0, both, v1.length, v2.length);
+
+        Map.Entry<byte[], DocumentMeta> result = driver.load("network.current");
+        assertTrue(Arrays.equals(result.getKey(), v2));
+        assertTrue(result.getValue().getSize() == v2.length);
+        assertTrue(driver.loadBuffer("network.journal").getKey().equals(ByteBuffer.wrap(both)));
+        assertTrue(driver.load("network.journal").getValue().getSize() == both.length);
+
+        assertTrue(driver.delete("network.old"));
+        assertTrue(!driver.delete("network.old"));
+
+        try {
+            driver.load("network.old");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        try {
+            driver.save("..", v1, meta);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // compressed, then appended to
+        byte[] large = new byte[64 * 1024];
+        Arrays.fill(large, (byte)'a');
+
+        Map<String, Object> compress = new HashMap<>();
+        compress.put(DocumentMeta.COMPRESS, true);
+        assertTrue(driver.save("network.large", large, compress).getString(DocumentMeta.CODEC) != null);
+        driver.append("network.large", v1, meta);
+
+        driver.close();
+
+        // a write torn by a crash is cut off
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(path -> path.toString().endsWith(".seg")).sorted().reduce((a, b) -> b).get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 1, 2, 3}));
+        }
+
+        driver = new LogStructuredPersistentStoreDriver(directory.toString());
+
+        assertTrue(Arrays.equals(driver.load("network.current").getKey(), v2));
+        assertTrue(Arrays.equals(driver.load("network.journal").getKey(), both));
+        assertTrue(driver.load("network.large").getKey().length == large.length + v1.length);
+        try {
+            driver.load("network.old");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        driver.save("network.next", v1, meta);
+        driver.close();
+
+        driver = new LogStructuredPersistentStoreDriver(directory.toString());
+        assertTrue(Arrays.equals(driver.load("network.next").getKey(), v1));
+        driver.close();
+    }
+
+    public void testCompaction() throws Exception {
+        Path directory = Files.createTempDirectory("log");
+        LogStructuredPersistentStoreDriver driver = new LogStructuredPersistentStoreDriver(directory.toString(),
+                DurabilityMode.NO_SYNC, 4096);
+
+        Map<String, Object> meta = new HashMap<>();
+        byte[] value = new byte[200];
+
+        driver.save("foo.deleted", value, meta);
+        driver.append("foo.journal", value, meta);
+
+        for (int i = 0; i < 1000; ++i) {
+            value[0] = (byte)i;
+            driver.save("foo.v" + (i % 10), value, meta);
+
+            if (i == 500) {
+                driver.delete("foo.deleted");
+            }
+
+            if (i % 100 == 0) {
+                driver.append("foo.journal", value, meta);
+            }
+        }
+
+        // rolls compacted on the way, most of 200 kB was replaced
+        assertTrue(driver.getSegmentBytes() < 64 * 1024);
+
+        driver.collectGarbage();
+        assertTrue(driver.getLiveBytes() * 2 >= driver.getSegmentBytes() - 4096);
+        driver.close();
+
+        driver = new LogStructuredPersistentStoreDriver(directory.toString(), DurabilityMode.NO_SYNC, 4096);
+
+        for (int i = 990; i < 1000; ++i) {
+            assertTrue(driver.load("foo.v" + (i % 10)).getKey()[0] == (byte)i);
+        }
+
+        assertTrue(driver.load("foo.journal").getKey().length == 11 * value.length);
+        try {
+            driver.load("foo.deleted");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        driver.close();
+
+        // a corrupt record before the last segment fails the recovery, rather than cut the segment off
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(path -> path.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+        assertTrue(segments.size() > 1);
+
+        try (FileChannel channel = FileChannel.open(segments.get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1}), channel.size() - 1);
+        }
+
+        try {
+            new LogStructuredPersistentStoreDriver(directory.toString(), DurabilityMode.NO_SYNC, 4096);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testManager() throws Exception {
+        Path directory = Files.createTempDirectory("log");
+        LogStructuredPersistentStoreDriver driver = new LogStructuredPersistentStoreDriver(directory.toString());
+        PersistentStoreManager mgr = new PersistentStoreManager("foo", driver);
+        Calendar calendar = Calendar.getInstance();
+
+        for (int i = 0; i < 5; ++i) {
+            calendar.set(2017, 5, 1, 0, i * 10, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save(("{\"version\": " + i + "}").getBytes());
+        }
+
+        driver.close();
+
+        PersistentStoreManager mgr2 = new PersistentStoreManager("foo",
+                new LogStructuredPersistentStoreDriver(directory.toString()));
+        mgr2.init();
+
+        DocumentMeta[] versionHistory = mgr2.getAllVersions("foo.current");
+        assertTrue(versionHistory.length == 5);
+        assertTrue(Arrays.equals(mgr2.getCurrentVersionContent(), "{\"version\": 4}".getBytes()));
+        assertTrue(Arrays.equals(mgr2.restore(versionHistory[4].getId()), "{\"version\": 0}".getBytes()));
+    }
+}
@@ -10,8 +10,13 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.sql.*;
 import java.text.DateFormat;
@@ -19,6 +24,12 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Unit test for simple App.
@@ -508,6 +519,931 @@ public class PersistentStoreDriverDriverManagerTest
         assertTrue(Arrays.equals(currentOuput, value));
     }
 
+    public void testInitReplaysHistoryJournal() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        PersistentStoreManager mgr = new PersistentStoreManager("journal", filePersistentStoreDriver);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        try {
+            for (int minute = 10; minute <= 30; minute += 10) {
+                calendar.set(2017, 5, 1, 0, minute, 0);
+                mgr.setCalendarInstance(calendar);
+                mgr.save(("{\"minute\": " + minute + "}").getBytes());
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        PersistentStoreManager mgr2 = new PersistentStoreManager("journal", filePersistentStoreDriver);
+
+        try {
+            mgr2.init();
+
+            DocumentMeta[] versionHistory = mgr2.getAllVersions("journal.current");
+            assertTrue(versionHistory.length == 3);
+            assertTrue(versionHistory[0].getModified().equals("2017-06-01 00:30:00.000"));
+            assertTrue(versionHistory[2].getModified().equals("2017-06-01 00:10:00.000"));
+
+            calendar.set(2017, 5, 1, 0, 40, 0);
+            mgr2.setCalendarInstance(calendar);
+            mgr2.save("{\"minute\": 40}".getBytes());
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        PersistentStoreManager mgr3 = new PersistentStoreManager("journal", filePersistentStoreDriver);
+
+        try {
+            mgr3.init();
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        DocumentMeta[] versionHistory = mgr3.getAllVersions("journal.current");
+        assertTrue(versionHistory.length == 4);
+        assertTrue(versionHistory[0].getModified().equals("2017-06-01 00:40:00.000"));
+        assertTrue(Arrays.equals(mgr3.getVersionContent(versionHistory[1].getId()), "{\"minute\": 30}".getBytes()));
+    }
+
+    public void testSaveAsync() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        ExecutorService executor = PersistentStoreExecutors.newBoundedExecutor("test", 2, 4);
+        PersistentStoreManager mgr = new PersistentStoreManager("async", filePersistentStoreDriver, executor);
+
+        ArrayList<byte[]> files = new ArrayList<byte[]>() {{
+            add("{\"version\": \"v1\"}".getBytes());
+            add("{\"version\": \"v2\"}".getBytes());
+            add("{\"version\": \"last\"}".getBytes());
+        }};
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        int minute = 0;
+        ArrayList<CompletableFuture<DocumentMeta>> futures = new ArrayList<>();
+
+        for (byte[] file : files) {
+            calendar.set(2017, 5, 1, 0, minute += 10, 0);
+            mgr.setCalendarInstance(calendar);
+            futures.add(mgr.saveAsync(file));
+
+            // the current document is written before saveAsync returns
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), file));
+        }
+
+        try {
+            for (CompletableFuture<DocumentMeta> future : futures) {
+                future.get();
+            }
+
+            DocumentMeta[] versionHistory = mgr.getAllVersions("async.current");
+            assertTrue(versionHistory.length == 3);
+            assertTrue(versionHistory[0].getModified().equals("2017-06-01 00:30:00.000"));
+            assertTrue(versionHistory[2].getModified().equals("2017-06-01 00:10:00.000"));
+
+            byte[] output = mgr.restoreAsync(versionHistory[2].getId()).get();
+            assertTrue(Arrays.equals(output, files.get(0)));
+            assertTrue(mgr.getCurrentVersionId().equals(versionHistory[2].getId()));
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContentAsync().get(), files.get(0)));
+            assertTrue(Arrays.equals(mgr.getVersionContentAsync(versionHistory[1].getId()).get(), files.get(1)));
+            assertTrue(mgr.getVersionContentAsync("noExist").get() == null);
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        try {
+            mgr.restoreAsync("noExist").get();
+            fail();
+        } catch (InterruptedException e) {
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // a restore is ordered with the writes before and after it
+        try {
+            String first = mgr.getAllVersions("async.current")[2].getId();
+
+            mgr.restoreAsync(first);
+            calendar.set(2017, 5, 1, 0, minute += 10, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.saveAsync(files.get(2)).get();
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), files.get(2)));
+
+            CompletableFuture<byte[]> restored = mgr.restoreAsync(first);
+            calendar.set(2017, 5, 1, 0, minute += 10, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save(files.get(1));
+            assertTrue(restored.isDone());
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), files.get(1)));
+        } catch (InterruptedException | ExecutionException | IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        executor.shutdown();
+    }
+
+    public void testSaveStream() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        PersistentStoreManager mgr = new PersistentStoreManager("stream", filePersistentStoreDriver);
+
+        byte[] v1 = "{\"version\": \"v1\"}".getBytes();
+        byte[] v2 = new byte[1024 * 1024];
+        Arrays.fill(v2, (byte) ' ');
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        try {
+            calendar.set(2017, 5, 1, 0, 10, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save(new ByteArrayInputStream(v1));
+            String v1Id = mgr.getCurrentVersionId();
+
+            calendar.set(2017, 5, 1, 0, 20, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save(new ByteArrayInputStream(v2));
+
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), v2));
+            assertTrue(Arrays.equals(mgr.getVersionContent(mgr.getCurrentVersionId()), v2));
+
+            DocumentMeta documentMeta = mgr.restoreVersion(v1Id);
+            assertTrue(documentMeta.getSize() == v1.length);
+            assertTrue(mgr.getCurrentVersionId().equals(v1Id));
+
+            try (ReadableByteChannel channel = mgr.openCurrentVersionContent()) {
+                ByteBuffer buffer = ByteBuffer.allocate(v1.length + 1);
+                while (channel.read(buffer) != -1) {
+                }
+
+                buffer.flip();
+                assertTrue(buffer.equals(ByteBuffer.wrap(v1)));
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        try {
+            mgr.restoreVersion("noExist");
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testSaveSameContent() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        PersistentStoreManager mgr = new PersistentStoreManager("dedup", filePersistentStoreDriver);
+        byte[] content = "{\"version\": \"same\"}".getBytes();
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        try {
+            ArrayList<String> ids = new ArrayList<>();
+
+            for (int minute = 10; minute <= 30; minute += 10) {
+                calendar.set(2017, 5, 1, 0, minute, 0);
+                mgr.setCalendarInstance(calendar);
+                mgr.save(content);
+                ids.add(mgr.getCurrentVersionId());
+            }
+
+            String fileUrl = filePersistentStoreDriver.load("dedup.current").getValue().getFileUrl();
+
+            // every version references the payload of the current document
+            for (String id : ids) {
+                Map.Entry<byte[], DocumentMeta> version = filePersistentStoreDriver.load("dedup.backups." + id);
+                assertTrue(Arrays.equals(version.getKey(), content));
+                assertTrue(version.getValue().getFileUrl().equals(fileUrl));
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveDelta() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        ExecutorService executor = PersistentStoreExecutors.newBoundedExecutor("test", 2, 4);
+        PersistentStoreManager mgr = new PersistentStoreManager("delta", filePersistentStoreDriver, executor);
+        mgr.setKeyframeInterval(3);
+
+        StringBuilder builder = new StringBuilder("{\"vlans\": [");
+        for (int i = 0; i < 100; ++i) {
+            builder.append(i == 0 ? "" : ", ").append("{\"id\": ").append(i).append("}");
+        }
+        String base = builder.toString();
+
+        ArrayList<byte[]> files = new ArrayList<>();
+        ArrayList<String> ids = new ArrayList<>();
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        try {
+            for (int minute = 1; minute <= 5; ++minute) {
+                byte[] file = (base + "], \"revision\": " + minute + "}").getBytes();
+                files.add(file);
+
+                calendar.set(2017, 5, 1, 0, minute, 0);
+                mgr.setCalendarInstance(calendar);
+                mgr.save(file);
+                ids.add(mgr.getCurrentVersionId());
+            }
+
+            // keyframe, delta, delta, keyframe, delta
+            boolean[] keyframes = {true, false, false, true, false};
+            for (int i = 0; i < files.size(); ++i) {
+                Map.Entry<byte[], DocumentMeta> stored = filePersistentStoreDriver.load("delta.backups." + ids.get(i));
+                assertTrue((stored.getValue().getString("deltaBase") == null) == keyframes[i]);
+                assertTrue(keyframes[i] || stored.getKey().length < files.get(i).length / 2);
+
+                assertTrue(Arrays.equals(mgr.getVersionContent(ids.get(i)), files.get(i)));
+                assertTrue(mgr.getVersionBuffer(ids.get(i)).equals(ByteBuffer.wrap(files.get(i))));
+                assertTrue(Arrays.equals(mgr.getVersionContentAsync(ids.get(i)).get(), files.get(i)));
+            }
+
+            DocumentMeta[] versionHistory = mgr.getAllVersions("delta.current");
+            assertTrue(versionHistory[0].getSize() == files.get(4).length);
+
+            byte[] output = mgr.restore(ids.get(1));
+            assertTrue(Arrays.equals(output, files.get(1)));
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), files.get(1)));
+            assertTrue(mgr.restoreAsync(ids.get(2)).get().length == files.get(2).length);
+
+            mgr.restoreVersion(ids.get(4));
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), files.get(4)));
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        executor.shutdown();
+    }
+
+    public void testSaveAll() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        Map<PersistentStoreManager, byte[]> contents = new LinkedHashMap<>();
+        for (int i = 0; i < 5; ++i) {
+            contents.put(new PersistentStoreManager("batch" + i, filePersistentStoreDriver),
+                    ("{\"package\": " + i + "}").getBytes());
+        }
+
+        try {
+            Map<PersistentStoreManager, DocumentMeta> result = PersistentStoreManager.saveAll(contents);
+            assertTrue(result.size() == 5);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        for (Map.Entry<PersistentStoreManager, byte[]> entry : contents.entrySet()) {
+            PersistentStoreManager mgr = entry.getKey();
+            DocumentMeta[] versionHistory = mgr.getAllVersions().values().iterator().next();
+
+            assertTrue(versionHistory.length == 1);
+            assertTrue(mgr.getCurrentVersionId().equals(versionHistory[0].getId()));
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), entry.getValue()));
+            assertTrue(Arrays.equals(mgr.getVersionContent(versionHistory[0].getId()), entry.getValue()));
+        }
+    }
+
+    public void testHistorySnapshot() {
+        VersionHistoryCache versionHistoryCache = new VersionHistoryCache();
+
+        for (int i = 0; i < 10; ++i) {
+            DocumentMeta documentMeta = new DocumentMeta(String.format("%017d", i), "2017-06-01 00:" + (10 + i) + ":00.000", i, "");
+            documentMeta.put("key", (i % 2 == 0) ? "network.current" : "dhcp.current");
+            documentMeta.put("modifiedBy", "user" + i);
+            versionHistoryCache.add(documentMeta);
+        }
+
+        try {
+            VersionHistoryCache loaded = VersionHistoryCache.fromSnapshot(ByteBuffer.wrap(versionHistoryCache.toSnapshot()));
+
+            assertTrue(loaded.size() == 10);
+            assertTrue(loaded.keys().size() == 2);
+            assertTrue(loaded.contains(String.format("%017d", 3)));
+            assertTrue(loaded.find(String.format("%017d", 3)).getModifiedBy().equals("user3"));
+
+            List<DocumentMeta> network = loaded.getHistoryList("network.current");
+            assertTrue(network.size() == 5);
+            assertTrue(network.get(0).getId().equals(String.format("%017d", 8)));
+            assertTrue(network.get(0).getModifiedTime() == versionHistoryCache.find(String.format("%017d", 8)).getModifiedTime());
+
+            // records never parsed are written back as they are
+            assertTrue(Arrays.equals(loaded.toSnapshot(), versionHistoryCache.toSnapshot()));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        try {
+            VersionHistoryCache.fromSnapshot(ByteBuffer.wrap("[]".getBytes()));
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testInitCorruptHistory() throws Exception {
+        FilePersistentStoreDriver driver = new FilePersistentStoreDriver(Files.createTempDirectory("corrupt").toString());
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        byte[] corrupt = "[]".getBytes();
+        driver.save("corrupt.current", "{}".getBytes(), meta);
+        driver.save("corrupt.versionHistorySnapshot", corrupt, meta);
+
+        PersistentStoreManager mgr = new PersistentStoreManager("corrupt", driver);
+        try {
+            mgr.init();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // nothing is checkpointed over the history that failed to load
+        try {
+            mgr.save("{\"version\": 1}".getBytes());
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        try {
+            mgr.getAllVersions("corrupt.current");
+            fail();
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+
+        assertTrue(Arrays.equals(driver.load("corrupt.versionHistorySnapshot").getKey(), corrupt));
+    }
+
+    public void testInitFromCheckpoint() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("legacy").toString());
+
+            // a store written before history snapshots, with a JSON checkpoint only
+            DocumentMeta documentMeta = new DocumentMeta("20170601001000000", "2017-06-01 00:10:00.000", 2, "");
+            documentMeta.put("key", "legacy.current");
+
+            Map<String, Object> meta = new HashMap<>();
+            meta.put("fileExtension", ".json");
+            filePersistentStoreDriver.save("legacy.versionHistoryCache", ("[\n" + documentMeta.toJsonString() + "\n]").getBytes(), meta);
+            filePersistentStoreDriver.save("legacy.current", "{}".getBytes(), new HashMap<>(meta));
+
+            PersistentStoreManager mgr = new PersistentStoreManager("legacy", filePersistentStoreDriver);
+            mgr.init();
+            assertTrue(mgr.getAllVersions("legacy.current").length == 1);
+
+            // the first checkpoint writes a snapshot, read from then on
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 20, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save("{}".getBytes());
+
+            PersistentStoreManager mgr2 = new PersistentStoreManager("legacy", filePersistentStoreDriver);
+            mgr2.init();
+
+            DocumentMeta[] versionHistory = mgr2.getAllVersions("legacy.current");
+            assertTrue(versionHistory.length == 2);
+            assertTrue(versionHistory[1].getId().equals("20170601001000000"));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testQueryVersions() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("query").toString());
+            PersistentStoreManager mgr = new PersistentStoreManager("query", filePersistentStoreDriver);
+
+            // 50 versions, 10 minutes apart
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 0, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            long first = calendar.getTimeInMillis();
+
+            for (int i = 0; i < 50; ++i) {
+                mgr.setCalendarInstance((Calendar) calendar.clone());
+                mgr.save(("{\"save\": " + i + "}").getBytes());
+                calendar.add(Calendar.MINUTE, 10);
+            }
+
+            DocumentMeta[] versionHistory = mgr.getAllVersions("query.current");
+            assertTrue(versionHistory.length == 50);
+
+            // pages of 20, newest first, without gaps or repeats
+            List<DocumentMeta> all = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            do {
+                HistoryPage page = mgr.queryVersions("query.current", 20, cursor);
+                all.addAll(page.getVersions());
+                cursor = page.getNextCursor();
+                ++pages;
+            } while (cursor != null);
+
+            assertTrue(pages == 3);
+            assertTrue(all.size() == 50);
+            for (int i = 0; i < 50; ++i) {
+                assertTrue(all.get(i).getId().equals(versionHistory[i].getId()));
+            }
+
+            // the 10th to the 19th save, [from, to)
+            long from = first + 10 * 10 * 60 * 1000;
+            long to = first + 20 * 10 * 60 * 1000;
+            HistoryPage page = mgr.queryVersions("query.current", from, to, 4, null);
+            assertTrue(page.getVersions().size() == 4);
+            assertTrue(page.getVersions().get(0).getId().equals(versionHistory[50 - 20].getId()));
+
+            int count = page.getVersions().size();
+            while (page.hasNext()) {
+                page = mgr.queryVersions("query.current", from, to, 4, page.getNextCursor());
+                count += page.getVersions().size();
+            }
+            assertTrue(count == 10);
+            assertTrue(page.getVersions().get(page.getVersions().size() - 1).getId().equals(versionHistory[50 - 11].getId()));
+
+            assertTrue(mgr.queryVersions("unknown.current", 20, null).getVersions().isEmpty());
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        PersistentStoreManager mgr = new PersistentStoreManager("query", new FilePersistentStoreDriver(this.cwd));
+        try {
+            mgr.queryVersions("query.current", 20, "not a cursor");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            mgr.queryVersions("query.current", 0, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testVersionAsOf() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("asof").toString());
+            PersistentStoreManager mgr = new PersistentStoreManager("asof", filePersistentStoreDriver);
+
+            // saves at 00:10, 00:20 and 00:21, the last two within one auto save interval
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 10, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            long first = calendar.getTimeInMillis();
+
+            int[] minutes = {0, 10, 1};
+            for (int i = 0; i < minutes.length; ++i) {
+                calendar.add(Calendar.MINUTE, minutes[i]);
+                mgr.setCalendarInstance((Calendar) calendar.clone());
+                mgr.save(("{\"save\": " + i + "}").getBytes());
+            }
+
+            long minute = 60 * 1000;
+            assertTrue(mgr.getVersionAsOf("asof.current", first - 1) == null);
+            assertTrue(mgr.getVersionAsOf("asof.current", first).getModifiedTime() == first);
+            assertTrue(mgr.getVersionAsOf("asof.current", first + 5 * minute).getModifiedTime() == first);
+            assertTrue(mgr.getVersionAsOf("asof.current", first + 10 * minute + 30 * 1000).getModifiedTime() == first + 10 * minute);
+            assertTrue(mgr.getVersionAsOf("asof.current", Long.MAX_VALUE).getModifiedTime() == first + 11 * minute);
+            assertTrue(mgr.getVersionAsOf("unknown.current", Long.MAX_VALUE) == null);
+
+            DocumentMeta restored = mgr.restoreAsOf("asof.current", first + 5 * minute);
+            assertTrue(restored != null);
+            assertTrue(Arrays.equals(mgr.getCurrentVersionContent(), "{\"save\": 0}".getBytes()));
+
+            try {
+                mgr.restoreAsOf("asof.current", first - 1);
+                fail();
+            } catch (IOException e) {
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testCoalesceSaves() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("coalesce").toString());
+            PersistentStoreManager mgr = new PersistentStoreManager("coalesce", filePersistentStoreDriver);
+            mgr.setCoalesceSaves(true);
+
+            // a burst at 00:10 - 00:13, then saves at 00:25 and 00:26
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 10, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+
+            int[] minutes = {0, 1, 1, 1, 12, 1};
+            String[] ids = new String[minutes.length];
+            for (int i = 0; i < minutes.length; ++i) {
+                calendar.add(Calendar.MINUTE, minutes[i]);
+                mgr.setCalendarInstance((Calendar) calendar.clone());
+                mgr.save(("{\"save\": " + i + "}").getBytes());
+                ids[i] = mgr.getCurrentVersionId();
+            }
+
+            // the saves in between are never backed up, the last one of the burst is
+            assertTrue(mgr.getVersionContent(ids[1]) == null);
+            assertTrue(mgr.getVersionContent(ids[2]) == null);
+            assertTrue(Arrays.equals(mgr.getVersionContent(ids[3]), "{\"save\": 3}".getBytes()));
+
+            DocumentMeta[] versionHistory = mgr.getAllVersions("coalesce.current");
+            assertTrue(versionHistory.length == 2);
+            assertTrue(versionHistory[0].getId().equals(ids[4]));
+            assertTrue(versionHistory[1].getId().equals(ids[3]));
+
+            // the last save is held back until flushed
+            assertTrue(mgr.getVersionContent(ids[5]) == null);
+            mgr.flushPendingBackups();
+            assertTrue(Arrays.equals(mgr.getVersionContent(ids[5]), "{\"save\": 5}".getBytes()));
+            assertTrue(mgr.getAllVersions("coalesce.current")[0].getId().equals(ids[5]));
+
+            // and the history is the same once read again
+            PersistentStoreManager mgr2 = new PersistentStoreManager("coalesce", filePersistentStoreDriver);
+            mgr2.init();
+            versionHistory = mgr2.getAllVersions("coalesce.current");
+            assertTrue(versionHistory.length == 2);
+            assertTrue(versionHistory[0].getId().equals(ids[5]));
+            assertTrue(versionHistory[1].getId().equals(ids[3]));
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testCoalesceSavesDirectExecutor() throws Exception {
+        PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("direct").toString());
+
+        // every task runs on the submitting thread, the scheduler hands the flush off to itself
+        PersistentStoreManager mgr = new PersistentStoreManager("direct", filePersistentStoreDriver, Runnable::run);
+        mgr.setCoalesceSaves(true);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, 5, 1, 0, 10, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        mgr.setCalendarInstance((Calendar) calendar.clone());
+        mgr.save("{\"save\": 0}".getBytes());
+
+        // held back until 100 ms before the end of the interval
+        calendar.add(Calendar.MILLISECOND, (int) BackupService.DEFAULT_AUTO_SAVE_INTERVAL_MILLI_SECONDS - 100);
+        mgr.setCalendarInstance((Calendar) calendar.clone());
+        mgr.save("{\"save\": 1}".getBytes());
+        String id = mgr.getCurrentVersionId();
+
+        // the scheduler backs it up itself once the executor refused it MAX_HAND_OFF_ATTEMPTS times
+        for (int i = 0; i < 1000 && mgr.getVersionContent(id) == null; ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue(Arrays.equals(mgr.getVersionContent(id), "{\"save\": 1}".getBytes()));
+
+        // the same for the rounds of the pruner
+        AtomicBoolean pruned = new AtomicBoolean();
+        Runnable round = PersistentStoreExecutors.handOffPeriodically(Runnable::run, () -> pruned.set(true));
+        for (int i = 0; i < PersistentStoreExecutors.MAX_HAND_OFF_ATTEMPTS; ++i) {
+            round.run();
+        }
+        assertTrue(pruned.get());
+    }
+
+    public void testSaveSameMillisecond() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("millisecond").toString());
+            final PersistentStoreManager mgr = new PersistentStoreManager("millisecond", filePersistentStoreDriver);
+
+            // every save at the same time
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 10, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            mgr.setCalendarInstance(calendar);
+
+            final int threads = 4;
+            final int saves = 25;
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            ArrayList<Future<Map<String, byte[]>>> futures = new ArrayList<>();
+
+            for (int t = 0; t < threads; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    Map<String, byte[]> saved = new HashMap<>();
+                    for (int i = 0; i < saves; ++i) {
+                        byte[] content = ("{\"thread\": " + thread + ", \"save\": " + i + "}").getBytes();
+                        saved.put(mgr.saveAsync(content).join().getId(), content);
+                    }
+
+                    return saved;
+                }));
+            }
+
+            Map<String, byte[]> all = new HashMap<>();
+            for (Future<Map<String, byte[]>> future : futures) {
+                all.putAll(future.get());
+            }
+
+            executor.shutdown();
+
+            // no backup overwrites another
+            assertTrue(all.size() == threads * saves);
+            for (Map.Entry<String, byte[]> entry : all.entrySet()) {
+                assertTrue(Arrays.equals(mgr.getVersionContent(entry.getKey()), entry.getValue()));
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testSaveSameMillisecondConcurrently() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("millisecond").toString());
+            final PersistentStoreManager mgr = new PersistentStoreManager("concurrent", filePersistentStoreDriver);
+
+            // every save at the same time, through save and dataChanged
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 10, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            mgr.setCalendarInstance(calendar);
+
+            final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+            final VersionIdGenerator generator = mgr.getVersionIdGenerator();
+            mgr.setVersionIdGenerator(time -> {
+                String id = generator.nextId(time);
+                ids.add(id);
+                return id;
+            });
+
+            final int threads = 4;
+            final int saves = 25;
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            ArrayList<Future<Set<String>>> futures = new ArrayList<>();
+
+            for (int t = 0; t < threads; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    Set<String> saved = new HashSet<>();
+                    for (int i = 0; i < saves; ++i) {
+                        String content = "{\"thread\": " + thread + ", \"save\": " + i + "}";
+                        mgr.save(content.getBytes());
+                        saved.add(content);
+                    }
+
+                    return saved;
+                }));
+            }
+
+            Set<String> all = new HashSet<>();
+            for (Future<Set<String>> future : futures) {
+                all.addAll(future.get());
+            }
+
+            executor.shutdown();
+
+            // every save has its own backup, none was overwritten
+            Set<String> backups = new HashSet<>();
+            for (String id : ids) {
+                backups.add(new String(mgr.getVersionContent(id)));
+            }
+
+            assertTrue(ids.size() == threads * saves);
+            assertTrue(backups.equals(all));
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testRetention() {
+        try {
+            FilePersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("retention").toString());
+            filePersistentStoreDriver.setBlobGraceMilliSeconds(0);
+            PersistentStoreManager mgr = new PersistentStoreManager("retention", filePersistentStoreDriver);
+
+            // 20 versions, 10 minutes apart from 00:00 on
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 0, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+
+            String[] ids = new String[20];
+            for (int i = 0; i < ids.length; ++i) {
+                mgr.setCalendarInstance((Calendar) calendar.clone());
+                mgr.save(("{\"save\": " + i + "}").getBytes());
+                ids[i] = mgr.getCurrentVersionId();
+                calendar.add(Calendar.MINUTE, 10);
+            }
+
+            // all of the last hour, one per half hour before
+            long minute = 60 * 1000;
+            mgr.setRetentionPolicy(new RetentionPolicy(0, 0).thin(60 * minute, 30 * minute));
+            assertTrue(mgr.pruneHistory() == 9);
+
+            DocumentMeta[] versionHistory = mgr.getAllVersions("retention.current");
+            assertTrue(versionHistory.length == 11);
+            assertTrue(versionHistory[0].getId().equals(ids[19]));
+            assertTrue(versionHistory[6].getId().equals(ids[13]));
+            assertTrue(versionHistory[7].getId().equals(ids[11]));
+            assertTrue(versionHistory[10].getId().equals(ids[2]));
+
+            // the backups are gone, those kept are intact
+            assertTrue(mgr.getVersionContent(ids[12]) == null);
+            assertTrue(mgr.getVersionContent(ids[0]) == null);
+            assertTrue(Arrays.equals(mgr.getVersionContent(ids[11]), "{\"save\": 11}".getBytes()));
+
+            mgr.setRetentionPolicy(new RetentionPolicy(5, 0));
+            assertTrue(mgr.pruneHistory() == 6);
+            mgr.setRetentionPolicy(null);
+
+            // the history is read back as pruned
+            PersistentStoreManager mgr2 = new PersistentStoreManager("retention", filePersistentStoreDriver);
+            mgr2.init();
+            versionHistory = mgr2.getAllVersions("retention.current");
+            assertTrue(versionHistory.length == 5);
+            assertTrue(versionHistory[4].getId().equals(ids[15]));
+
+            // a history dropped from memory is read for a background round, then dropped again
+            mgr.setRetentionPolicy(new RetentionPolicy(3, 0));
+            mgr.unloadHistory();
+            mgr.pruneRound();
+            mgr.setRetentionPolicy(null);
+            assertTrue(!mgr.isHistoryLoaded());
+            assertTrue(mgr.getAllVersions("retention.current").length == 3);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testRetentionKeepsKeyframes() {
+        try {
+            PersistentStoreDriver filePersistentStoreDriver = new FilePersistentStoreDriver(Files.createTempDirectory("keyframes").toString());
+            PersistentStoreManager mgr = new PersistentStoreManager("keyframes", filePersistentStoreDriver);
+            mgr.setKeyframeInterval(4);
+
+            Calendar calendar = Calendar.getInstance();
+            calendar.set(2017, 5, 1, 0, 0, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+
+            // similar versions, stored as deltas of every 4th
+            StringBuilder builder = new StringBuilder("{\"padding\": \"");
+            for (int i = 0; i < 1000; ++i) {
+                builder.append((char) ('a' + i % 26));
+            }
+
+            String[] ids = new String[10];
+            byte[][] contents = new byte[ids.length][];
+            for (int i = 0; i < ids.length; ++i) {
+                contents[i] = (builder + "\", \"save\": " + i + "}").getBytes();
+                mgr.setCalendarInstance((Calendar) calendar.clone());
+                mgr.save(contents[i]);
+                ids[i] = mgr.getCurrentVersionId();
+                calendar.add(Calendar.MINUTE, 10);
+            }
+
+            // the 5 newest are kept, with the keyframe the oldest of them are deltas of
+            mgr.setRetentionPolicy(new RetentionPolicy(5, 0));
+            mgr.pruneHistory();
+            mgr.setRetentionPolicy(null);
+
+            DocumentMeta[] versionHistory = mgr.getAllVersions("keyframes.current");
+            assertTrue(versionHistory.length == 6);
+            assertTrue(versionHistory[5].getId().equals(ids[4]));
+
+            for (int i = 4; i < ids.length; ++i) {
+                assertTrue(Arrays.equals(mgr.getVersionContent(ids[i]), contents[i]));
+            }
+            assertTrue(mgr.getVersionContent(ids[3]) == null);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+    }
+
+    public void testConcurrentSave() {
+        PersistentStoreDriver filePersistentStoreDriver = (FilePersistentStoreDriver)createObject("com.accton.common.store.impl.FilePersistentStoreDriver", this.cwd);
+        if (filePersistentStoreDriver == null) {
+            fail();
+        }
+
+        final int threads = 4;
+        final int saves = 25;
+
+        // every thread writes the shared package and a package of its own
+        final PersistentStoreManager shared = new PersistentStoreManager("concurrent", filePersistentStoreDriver);
+        shared.setKeyframeInterval(4);
+
+        final ArrayList<PersistentStoreManager> own = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            own.add(new PersistentStoreManager("concurrent" + t, filePersistentStoreDriver));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        final AtomicBoolean done = new AtomicBoolean();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; ++t) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < saves; ++i) {
+                    byte[] content = ("{\"thread\": " + thread + ", \"save\": " + i + ", \"padding\": \"" + String.format("%064d", i) + "\"}").getBytes();
+
+                    shared.save(content);
+                    own.get(thread).save(content);
+                }
+                return null;
+            }));
+        }
+
+        // reads go on while the packages are written
+        futures.add(executor.submit(() -> {
+            while (!done.get()) {
+                for (DocumentMeta[] versions : shared.getAllVersions().values()) {
+                    assertTrue(shared.getVersionContent(versions[0].getId()) != null);
+                }
+            }
+            return null;
+        }));
+
+        try {
+            for (int t = 0; t < threads; ++t) {
+                futures.get(t).get();
+            }
+
+            done.set(true);
+            futures.get(threads).get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println(e.getMessage());
+            fail();
+        }
+
+        executor.shutdown();
+
+        Map<String, PersistentStoreManager> mgrs = new LinkedHashMap<>();
+        mgrs.put("concurrent", shared);
+        for (int t = 0; t < threads; ++t) {
+            mgrs.put("concurrent" + t, own.get(t));
+        }
+
+        for (Map.Entry<String, PersistentStoreManager> entry : mgrs.entrySet()) {
+            PersistentStoreManager mgr = entry.getValue();
+
+            // the newest version is the current document, in memory and once reloaded
+            PersistentStoreManager reloaded = new PersistentStoreManager(entry.getKey(), filePersistentStoreDriver);
+
+            try {
+                reloaded.init();
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                fail();
+            }
+
+            for (PersistentStoreManager m : Arrays.asList(mgr, reloaded)) {
+                DocumentMeta[] versions = m.getAllVersions().values().iterator().next();
+
+                assertTrue(versions[0].getId().equals(mgr.getCurrentVersionId()));
+                assertTrue(Arrays.equals(m.getVersionContent(versions[0].getId()), mgr.getCurrentVersionContent()));
+            }
+        }
+    }
+
     public JsonNode getNetworkConfig(PersistentStoreManager persistentStoreManager, String id) {
         ObjectMapper mapper = new ObjectMapper();
         DocumentMeta[] documentMetas = persistentStoreManager.getAllVersions("network.current");
@@ -0,0 +1,115 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Calendar;
+
+public class PersistentStoreRegistryTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PersistentStoreRegistryTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(PersistentStoreRegistryTest.class);
+    }
+
+    private static void save(PersistentStoreManager mgr, int minute, byte[] content) throws Exception {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, 5, 1, 0, minute, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        mgr.setCalendarInstance(calendar);
+        mgr.save(content);
+    }
+
+    public void testOpenLazily() throws Exception {
+        FilePersistentStoreDriver driver = new FilePersistentStoreDriver(Files.createTempDirectory("registry").toString());
+
+        try (PersistentStoreRegistry registry = new PersistentStoreRegistry(driver, PersistentStoreExecutors.getDefaultExecutor(), 2, 0)) {
+            PersistentStoreManager mgr = registry.get("network");
+            assertTrue(registry.get("network") == mgr);
+            assertTrue(mgr.getCurrentVersionId() == null);
+
+            save(mgr, 10, "{\"version\": 1}".getBytes());
+            save(mgr, 20, "{\"version\": 2}".getBytes());
+            assertTrue(mgr.getAllVersions("network.current").length == 2);
+        }
+
+        // a new registry reads the current meta only, the history on first use
+        try (PersistentStoreRegistry registry = new PersistentStoreRegistry(driver, PersistentStoreExecutors.getDefaultExecutor(), 2, 0)) {
+            PersistentStoreManager mgr = registry.get("network");
+
+            assertTrue(!mgr.isHistoryLoaded());
+            assertTrue(mgr.getCurrentVersionId().equals("20170601002000000"));
+
+            DocumentMeta[] versions = mgr.getAllVersions("network.current");
+            assertTrue(mgr.isHistoryLoaded());
+            assertTrue(versions.length == 2);
+            assertTrue(Arrays.equals(mgr.getVersionContent(versions[1].getId()), "{\"version\": 1}".getBytes()));
+        }
+    }
+
+    public void testEviction() throws Exception {
+        FilePersistentStoreDriver driver = new FilePersistentStoreDriver(Files.createTempDirectory("registry").toString());
+
+        try (PersistentStoreRegistry registry = new PersistentStoreRegistry(driver, PersistentStoreExecutors.getDefaultExecutor(), 2, 0)) {
+            PersistentStoreManager first = registry.get("package0");
+            save(first, 10, "{\"package\": 0}".getBytes());
+
+            for (int i = 1; i < 3; ++i) {
+                save(registry.get("package" + i), 10, ("{\"package\": " + i + "}").getBytes());
+            }
+
+            // the least recently used package is dropped
+            assertTrue(registry.getLoadedCount() == 2);
+            assertTrue(!first.isHistoryLoaded());
+            assertTrue(registry.getPackages().size() == 3);
+
+            // only held weakly, it's still returned while kept
+            assertTrue(registry.getHeldCount() == 2);
+
+            // and read again, a save after eviction keeps the earlier versions
+            save(first, 20, "{\"package\": 0, \"version\": 2}".getBytes());
+            assertTrue(first.getAllVersions("package0.current").length == 2);
+            assertTrue(registry.get("package0") == first);
+
+            // a manager with its own settings stays held, a new one would lose them
+            PersistentStoreManager custom = registry.get("package3");
+            custom.setKeyframeInterval(4);
+            registry.get("package4");
+            registry.get("package5");
+
+            assertTrue(!custom.isHistoryLoaded());
+            assertTrue(registry.getHeldCount() == 3);
+            assertTrue(registry.get("package3").getKeyframeInterval() == 4);
+        }
+
+        try (PersistentStoreRegistry registry = new PersistentStoreRegistry(driver, PersistentStoreExecutors.getDefaultExecutor(), 8, 1)) {
+            PersistentStoreManager mgr = registry.get("package1");
+            assertTrue(mgr.getAllVersions("package1.current").length == 1);
+
+            // dropped by the periodic eviction
+            for (int i = 0; i < 500 && (mgr.isHistoryLoaded() || registry.getLoadedCount() != 0); ++i) {
+                Thread.sleep(10);
+            }
+
+            assertTrue(!mgr.isHistoryLoaded());
+            assertTrue(registry.getLoadedCount() == 0);
+        }
+    }
+}
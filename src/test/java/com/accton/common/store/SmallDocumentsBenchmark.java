@@ -0,0 +1,112 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import com.accton.common.store.impl.LogStructuredPersistentStoreDriver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A package with many small backups: saves and loads over N documents of 512 bytes, with the file
+ * driver, a payload and a meta file each, and with the log-structured driver, a few segments. The
+ * files and disk usage of the store are printed after each trial.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main SmallDocumentsBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmallDocumentsBenchmark {
+    @Param({"file", "log"})
+    public String driverType;
+
+    @Param({"1000", "50000"})
+    public int documents;
+
+    private Path directory;
+    private PersistentStoreDriver driver;
+    private byte[] value;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("angelfish-bench");
+        this.driver = "log".equals(this.driverType)
+                ? new LogStructuredPersistentStoreDriver(this.directory.toString())
+                : new FilePersistentStoreDriver(this.directory.toString());
+
+        this.value = new byte[512];
+        for (int i = 0; i < this.value.length; ++i) {
+            this.value[i] = (byte) ('a' + i % 26);
+        }
+
+        this.keys = new String[this.documents];
+        for (int i = 0; i < this.documents; ++i) {
+            this.keys[i] = "network.backups." + i;
+            this.driver.save(this.keys[i], this.value, createMeta());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        long files;
+        long bytes;
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            files = paths.filter(Files::isRegularFile).count();
+        }
+        try (Stream<Path> paths = Files.walk(this.directory)) {
+            bytes = paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+
+        System.out.println("driver=" + this.driverType + " documents=" + this.documents + " files=" + files
+                + " disk usage=" + bytes + " bytes");
+
+        if (this.driver instanceof Closeable) {
+            ((Closeable) this.driver).close();
+        }
+    }
+
+    private DocumentMeta createMeta() {
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+        return DocumentMeta.create(meta);
+    }
+
+    private String nextKey() {
+        // strided, so consecutive operations don't hit neighbouring documents
+        this.next = (this.next + 7919) % this.documents;
+        return this.keys[this.next];
+    }
+
+    @Benchmark
+    public DocumentMeta save() throws IOException {
+        return this.driver.save(nextKey(), this.value, createMeta());
+    }
+
+    @Benchmark
+    public byte[] load() throws IOException {
+        return this.driver.load(nextKey()).getKey();
+    }
+}
@@ -0,0 +1,207 @@
+package com.accton.common.store;
+
+import com.accton.common.store.impl.FilePersistentStoreDriver;
+import com.accton.common.store.impl.FilePersistentStoreDriver.DurabilityMode;
+import com.accton.common.store.impl.InMemoryPersistentStoreDriver;
+import com.accton.common.store.impl.TieredPersistentStoreDriver;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class TieredPersistentStoreDriverTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TieredPersistentStoreDriverTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TieredPersistentStoreDriverTest.class);
+    }
+
+    private static TieredPersistentStoreDriver open(FilePersistentStoreDriver cold, Path directory, int maxDirtyCount)
+            throws Exception {
+        // flushed by the test, or by the limits
+        return new TieredPersistentStoreDriver(new InMemoryPersistentStoreDriver(), cold, directory.resolve(".wal"),
+                DurabilityMode.SYNC_ON_COMMIT, TieredPersistentStoreDriver.DEFAULT_MAX_DIRTY_BYTES, maxDirtyCount,
+                60 * 60 * 1000);
+    }
+
+    public void testWriteBehind() throws Exception {
+        Path directory = Files.createTempDirectory("tiered");
+        FilePersistentStoreDriver cold = new FilePersistentStoreDriver(directory.toString());
+        TieredPersistentStoreDriver driver = open(cold, directory, 1000);
+
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("fileExtension", ".json");
+
+        byte[] v1 = "{\"version\": 1}".getBytes();
+        byte[] v2 = "{\"version\": 2}".getBytes();
+
+        driver.save("network.current", v1, meta);
+        driver.save("network.old", v2, meta);
+        assertTrue(driver.getDirtyCount() == 2);
+
+        // served by the hot driver, not written yet
+        assertTrue(Arrays.equals(driver.load("network.current").getKey(), v1));
+        try {
+            cold.load("network.current");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        driver.flush();
+        assertTrue(driver.getDirtyCount() == 0);
+        assertTrue(Arrays.equals(cold.load("network.current").getKey(), v1));
+
+        // a pending delete hides the written document
+        assertTrue(driver.delete("network.old"));
+        assertTrue(!driver.delete("network.old"));
+        try {
+            driver.load("network.old");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        driver.close();
+
+        try {
+            cold.load("network.old");
+            fail();
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+
+        // read through from the cold driver
+        driver = open(cold, directory, 1000);
+        assertTrue(Arrays.equals(driver.load("network.current").getKey(), v1));
+        driver.close();
+    }
+
+    public void testRecover() throws Exception {
+        Path directory = Files.createTempDirectory("tiered");
+        FilePersistentStoreDriver cold = new FilePersistentStoreDriver(directory.toString());
+        TieredPersistentStoreDriver driver = open(cold, directory, 1000);
+
+        Map<String, Object> meta = new HashMap<>();
+
+        driver.save("journal.current", "a".getBytes(), meta);
+        driver.append("journal.current", "b".getBytes(), meta);
+        driver.flush();
+        driver.append("journal.current", "c".getBytes(), meta);
+        driver.save("journal.other", "x".getBytes(), meta);
+
+        // crashed, not closed: the log is replayed, appends written before aren't again
+        TieredPersistentStoreDriver recovered = open(cold, directory, 1000);
+
+        assertTrue(Arrays.equals(cold.load("journal.current").getKey(), "abc".getBytes()));
+        assertTrue(Arrays.equals(cold.load("journal.other").getKey(), "x".getBytes()));
+
+        recovered.append("journal.current", "d".getBytes(), meta);
+        assertTrue(Arrays.equals(recovered.load("journal.current").getKey(), "abcd".getBytes()));
+        recovered.close();
+
+        recovered = open(cold, directory, 1000);
+        assertTrue(Arrays.equals(recovered.load("journal.current").getKey(), "abcd".getBytes()));
+        recovered.close();
+
+        // crashed in a write, which never returned: its torn record is cut off
+        recovered = open(cold, directory, 1000);
+        recovered.save("journal.torn", "t".getBytes(), meta);
+
+        try (FileChannel channel = FileChannel.open(lastSegment(directory), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 1, 2, 3}));
+        }
+
+        recovered = open(cold, directory, 1000);
+        assertTrue(Arrays.equals(cold.load("journal.torn").getKey(), "t".getBytes()));
+
+        // a corrupt record before the last segment fails the replay, rather than skip the writes after it
+        recovered.save("journal.corrupt", "c".getBytes(), meta);
+
+        Path segment = lastSegment(directory);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'x'}), channel.size() - 1);
+        }
+        Files.createFile(segment.resolveSibling(String.format("%016x", Long.MAX_VALUE) + ".log"));
+
+        try {
+            open(cold, directory, 1000);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Path lastSegment(Path directory) throws Exception {
+        try (Stream<Path> files = Files.list(directory.resolve(".wal"))) {
+            return files.filter(path -> path.toString().endsWith(".log")).sorted().reduce((a, b) -> b).get();
+        }
+    }
+
+    public void testDirtyLimit() throws Exception {
+        Path directory = Files.createTempDirectory("tiered");
+        FilePersistentStoreDriver cold = new FilePersistentStoreDriver(directory.toString());
+        TieredPersistentStoreDriver driver = open(cold, directory, 4);
+
+        Map<String, Object> meta = new HashMap<>();
+
+        for (int i = 0; i < 50; ++i) {
+            driver.save("foo.v" + i, ("{\"version\": " + i + "}").getBytes(), meta);
+            assertTrue(driver.getDirtyCount() <= 4);
+        }
+
+        driver.close();
+
+        for (int i = 0; i < 50; ++i) {
+            assertTrue(Arrays.equals(cold.load("foo.v" + i).getKey(), ("{\"version\": " + i + "}").getBytes()));
+        }
+    }
+
+    public void testManager() throws Exception {
+        Path directory = Files.createTempDirectory("tiered");
+        TieredPersistentStoreDriver driver = new TieredPersistentStoreDriver(directory.toString());
+        PersistentStoreManager mgr = new PersistentStoreManager("foo", driver);
+        Calendar calendar = Calendar.getInstance();
+
+        for (int i = 0; i < 5; ++i) {
+            calendar.set(2017, 5, 1, 0, i * 10, 0);
+            mgr.setCalendarInstance(calendar);
+            mgr.save(("{\"version\": " + i + "}").getBytes());
+        }
+
+        driver.close();
+
+        PersistentStoreManager mgr2 = new PersistentStoreManager("foo", new FilePersistentStoreDriver(directory.toString()));
+        mgr2.init();
+
+        DocumentMeta[] versionHistory = mgr2.getAllVersions("foo.current");
+        assertTrue(versionHistory.length == 5);
+        assertTrue(Arrays.equals(mgr2.getCurrentVersionContent(), "{\"version\": 4}".getBytes()));
+        assertTrue(Arrays.equals(mgr2.restore(versionHistory[4].getId()), "{\"version\": 0}".getBytes()));
+    }
+}
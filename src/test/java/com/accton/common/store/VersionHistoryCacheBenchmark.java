@@ -0,0 +1,81 @@
+package com.accton.common.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the version history operations used by save, restore and history listing.
+ * Each operation should stay flat while the number of versions grows.
+ *
+ * java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main VersionHistoryCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VersionHistoryCacheBenchmark {
+    static final String[] KEYS = {"network.current", "dhcp.current", "feature1.current", "feature2.current"};
+
+    @Param({"1000", "10000", "100000"})
+    public int versions;
+
+    private VersionHistoryCache versionHistoryCache;
+    private String[] ids;
+    private int next;
+
+    static DocumentMeta createRecord(int i) {
+        DocumentMeta documentMeta = new DocumentMeta(String.format("%017d", i), "2017-05-01 01:00:00.000", 100, "");
+        documentMeta.put("key", KEYS[i % KEYS.length]);
+        return documentMeta;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.versionHistoryCache = new VersionHistoryCache();
+        this.ids = new String[this.versions];
+
+        for (int i = 0; i < this.versions; ++i) {
+            DocumentMeta documentMeta = createRecord(i);
+            this.ids[i] = documentMeta.getId();
+            this.versionHistoryCache.add(documentMeta);
+        }
+
+        this.next = this.versions;
+    }
+
+    @Benchmark
+    public boolean add() {
+        return this.versionHistoryCache.add(createRecord(this.next++));
+    }
+
+    @Benchmark
+    public DocumentMeta findOldest() {
+        return this.versionHistoryCache.find(this.ids[0]);
+    }
+
+    @Benchmark
+    public DocumentMeta findNewest() {
+        return this.versionHistoryCache.find(this.ids[this.ids.length - 1]);
+    }
+
+    @Benchmark
+    public DocumentMeta latestOfKey() {
+        List<DocumentMeta> keyHistory = this.versionHistoryCache.getHistoryList(KEYS[1]);
+        return keyHistory.get(0);
+    }
+}
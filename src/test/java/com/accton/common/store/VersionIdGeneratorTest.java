@@ -0,0 +1,98 @@
+package com.accton.common.store;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class VersionIdGeneratorTest
+        extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public VersionIdGeneratorTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(VersionIdGeneratorTest.class);
+    }
+
+    public void testMonotonic() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, 5, 1, 0, 10, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long time = calendar.getTimeInMillis();
+
+        VersionIdGenerator generator = new MonotonicVersionIdGenerator();
+
+        // the first id of a millisecond is the time alone, as before
+        assertTrue(generator.nextId(time).equals("20170601001000000"));
+        assertTrue(generator.nextId(time).equals("20170601001000000-0001"));
+        assertTrue(generator.nextId(time).equals("20170601001000000-0002"));
+        assertTrue(generator.nextId(time + 1).equals("20170601001000001"));
+
+        // the clock goes back, the ids don't
+        assertTrue(generator.nextId(time).equals("20170601001000001-0001"));
+
+        // out of sequence numbers, the next millisecond is borrowed
+        String last = null;
+        for (int i = 0; i < MonotonicVersionIdGenerator.MAX_SEQUENCE + 2; ++i) {
+            String id = generator.nextId(time + 2);
+            assertTrue(last == null || last.compareTo(id) < 0);
+            last = id;
+        }
+        assertTrue(last.equals("20170601001000003"));
+    }
+
+    public void testConcurrent() throws Exception {
+        final VersionIdGenerator generator = new MonotonicVersionIdGenerator();
+        final int threads = 4;
+        final int ids = 100000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<String>>> futures = new ArrayList<>();
+
+        for (int t = 0; t < threads; ++t) {
+            futures.add(executor.submit(() -> {
+                List<String> result = new ArrayList<>(ids);
+                for (int i = 0; i < ids; ++i) {
+                    result.add(generator.nextId(System.currentTimeMillis()));
+                }
+
+                return result;
+            }));
+        }
+
+        Set<String> all = new HashSet<>();
+        for (Future<List<String>> future : futures) {
+            List<String> result = future.get();
+
+            // each thread sees its ids increase
+            for (int i = 1; i < result.size(); ++i) {
+                assertTrue(result.get(i - 1).compareTo(result.get(i)) < 0);
+            }
+
+            all.addAll(result);
+        }
+
+        executor.shutdown();
+
+        // no collisions
+        assertTrue(all.size() == threads * ids);
+    }
+}